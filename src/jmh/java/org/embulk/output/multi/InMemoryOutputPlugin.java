@@ -0,0 +1,65 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.OutputPlugin;
+import org.embulk.spi.Page;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalPageOutput;
+
+import java.util.List;
+
+/**
+ * Sink of the benchmarks. Its outputs only count what they are given, and allow finish() repeatedly.
+ */
+class InMemoryOutputPlugin implements OutputPlugin {
+    @Override
+    public ConfigDiff transaction(ConfigSource config, Schema schema, int taskCount, OutputPlugin.Control control) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ConfigDiff resume(TaskSource taskSource, Schema schema, int taskCount, OutputPlugin.Control control) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void cleanup(TaskSource taskSource, Schema schema, int taskCount, List<TaskReport> successTaskReports) {
+    }
+
+    @Override
+    public TransactionalPageOutput open(TaskSource taskSource, Schema schema, int taskIndex) {
+        return new InMemoryPageOutput();
+    }
+
+    private static class InMemoryPageOutput implements TransactionalPageOutput {
+        private long pages;
+        private long bytes;
+
+        @Override
+        public void add(Page page) {
+            pages++;
+            bytes += page.buffer().limit();
+            page.release();
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public TaskReport commit() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
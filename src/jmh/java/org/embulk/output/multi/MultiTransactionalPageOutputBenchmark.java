@@ -0,0 +1,167 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Column;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out hot path against in-memory sinks. Run with {@code ./gradlew jmh}; the gc profiler reports allocation rate.
+ * The lifecycle calls are measured apart by {@link MultiTransactionalPageOutputLifecycleBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MultiTransactionalPageOutputBenchmark {
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int outputs;
+
+    @Param({"4", "32", "200"})
+    public int columns;
+
+    @Param({"64", "1024"})
+    public int rows;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private MultiTransactionalPageOutput output;
+    private byte[] pageBytes;
+    private List<String> stringReferences;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Schema.Builder schemaBuilder = Schema.builder();
+        for (int i = 0; i < columns; i++) {
+            schemaBuilder.add("c" + i, i % 4 == 0 ? Types.STRING : Types.LONG);
+        }
+        final Schema schema = schemaBuilder.build();
+
+        final List<ConfigSource> outputConfigs = new ArrayList<>();
+        final List<OutputPluginDelegate> plugins = new ArrayList<>();
+        for (int i = 0; i < outputs; i++) {
+            final ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource().set("type", "in_memory");
+            final MultiOutputPlugin.OutputTask outputTask = CONFIG_MAPPER_FACTORY.createConfigMapper()
+                    .map(config, MultiOutputPlugin.OutputTask.class);
+            outputConfigs.add(config);
+            plugins.add(new OutputPluginDelegate("in_memory_" + i, i, new InMemoryOutputPlugin(), config, outputTask, null));
+        }
+        final MultiOutputPlugin.PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(
+                CONFIG_MAPPER_FACTORY.newConfigSource()
+                        .set("outputs", outputConfigs)
+                        .set("parallel", parallel),
+                MultiOutputPlugin.PluginTask.class);
+        output = MultiTransactionalPageOutput.open(task, schema, 0, plugins, SharedExecutor.acquire(outputs + 2, false));
+
+        // One page of the schema built by PageBuilder; its bytes and references are wrapped again for every add
+        final List<Page> pages = new ArrayList<>();
+        try (PageBuilder builder = Exec.getPageBuilder(new HeapBufferAllocator(4 + (4 + (columns + 7) / 8 + columns * 8) * rows), schema,
+                new PageOutput() {
+                    @Override
+                    public void add(Page page) {
+                        pages.add(page);
+                    }
+
+                    @Override
+                    public void finish() {
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                })) {
+            for (int row = 0; row < rows; row++) {
+                for (Column column : schema.getColumns()) {
+                    if (Types.STRING.equals(column.getType())) {
+                        builder.setString(column, "value-" + row + "-" + column.getIndex());
+                    } else {
+                        builder.setLong(column, row);
+                    }
+                }
+                builder.addRecord();
+            }
+            builder.finish();
+        }
+        if (pages.size() != 1) {
+            throw new IllegalStateException("Rows are expected to fit in one page: " + pages.size());
+        }
+        final Page page = pages.get(0);
+        pageBytes = new byte[page.buffer().limit()];
+        page.buffer().getBytes(0, pageBytes, 0, pageBytes.length);
+        stringReferences = Collections.unmodifiableList(new ArrayList<>(page.getStringReferences()));
+        page.release();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        output.finish();
+        output.close();
+    }
+
+    @Benchmark
+    public void add() {
+        output.add(newPage());
+    }
+
+    // What fanning one page out still costs: a Buffer and a Page header per output, without copying the data
+    @Benchmark
+    public void sharedPageViews(Blackhole blackhole) {
+        final SharedPage sharedPage = SharedPage.wrap(newPage(), outputs);
+        for (int i = 0; i < outputs; i++) {
+            blackhole.consume(sharedPage.view());
+            sharedPage.release();
+        }
+    }
+
+    private Page newPage() {
+        final Buffer buffer = Buffer.wrap(pageBytes, 0, pageBytes.length);
+        buffer.limit(pageBytes.length);
+        final Page page = Page.wrap(buffer);
+        page.setStringReferences(stringReferences);
+        page.setValueReferences(Collections.emptyList());
+        return page;
+    }
+
+    private static class HeapBufferAllocator implements BufferAllocator {
+        private final int pageSize;
+
+        private HeapBufferAllocator(int pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public Buffer allocate() {
+            return allocate(pageSize);
+        }
+
+        @Override
+        public Buffer allocate(int minimumCapacity) {
+            return Buffer.wrap(new byte[Math.max(minimumCapacity, pageSize)]);
+        }
+    }
+}
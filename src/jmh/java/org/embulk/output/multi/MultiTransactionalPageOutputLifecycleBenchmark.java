@@ -0,0 +1,71 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigSource;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a lifecycle call fanned out to every output, with no page pending. With {@code parallel} the calls are
+ * run concurrently on the blocking executor, so this is mostly the hand-off to its threads and the join; without it
+ * they are a plain loop on the task's thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MultiTransactionalPageOutputLifecycleBenchmark {
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int outputs;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private MultiTransactionalPageOutput output;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Schema schema = Schema.builder().add("id", Types.LONG).build();
+        final List<ConfigSource> outputConfigs = new ArrayList<>();
+        final List<OutputPluginDelegate> plugins = new ArrayList<>();
+        for (int i = 0; i < outputs; i++) {
+            final ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource().set("type", "in_memory");
+            final MultiOutputPlugin.OutputTask outputTask = CONFIG_MAPPER_FACTORY.createConfigMapper()
+                    .map(config, MultiOutputPlugin.OutputTask.class);
+            outputConfigs.add(config);
+            plugins.add(new OutputPluginDelegate("in_memory_" + i, i, new InMemoryOutputPlugin(), config, outputTask, null));
+        }
+        final MultiOutputPlugin.PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(
+                CONFIG_MAPPER_FACTORY.newConfigSource()
+                        .set("outputs", outputConfigs)
+                        .set("parallel", parallel),
+                MultiOutputPlugin.PluginTask.class);
+        output = MultiTransactionalPageOutput.open(task, schema, 0, plugins, SharedExecutor.acquire(outputs + 2, false));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        output.close();
+    }
+
+    @Benchmark
+    public void finish() {
+        // The sinks allow finish() repeatedly
+        output.finish();
+    }
+}
@@ -0,0 +1,442 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Page;
+import org.embulk.spi.TransactionalPageOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+class AsyncPageOutput implements TransactionalPageOutput {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncPageOutput.class);
+    private static final Runnable NO_OP = () -> {};
+    // Hands a drain put off by the pacer back to the executor once the page is due
+    private static final ScheduledThreadPoolExecutor TIMER = newTimer();
+
+    private final TransactionalPageOutput output;
+    private final BlockingQueue<PendingPage> queue;
+    private final Executor executor;
+    private final PageSpillFile spillFile;
+    private final long spillThreshold;
+    private final long timeoutSeconds;
+    private final Pacer pacer;
+    private final AtomicLong inMemoryBytes = new AtomicLong();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition drained = lock.newCondition();
+    private int pending;
+    private long consumedPages;
+    // The page put aside by the pacer is taken before the queue by the next drain
+    private PendingPage delayed;
+    private ScheduledFuture<?> resumption;
+    private volatile Thread worker;
+    private volatile boolean abandoned;
+    private volatile boolean discarding;
+    private volatile Throwable error;
+
+    AsyncPageOutput(TransactionalPageOutput output, Executor executor, int queueSize) {
+        this(output, executor, queueSize, null, Long.MAX_VALUE);
+    }
+
+    // Pages are handed to the output by at most one drain task at a time, so a shared executor keeps them in order
+    AsyncPageOutput(TransactionalPageOutput output, Executor executor, int queueSize, PageSpillFile spillFile, long spillThreshold) {
+        this(output, executor, queueSize, spillFile, spillThreshold, 0);
+    }
+
+    // With a timeout the output is abandoned once it takes no page for that long, so a call ignoring interrupts can not hang the task
+    AsyncPageOutput(TransactionalPageOutput output, Executor executor, int queueSize, PageSpillFile spillFile, long spillThreshold,
+                    long timeoutSeconds) {
+        this(output, executor, queueSize, spillFile, spillThreshold, timeoutSeconds, null);
+    }
+
+    // With a pacer a page may be delayed; the drain is scheduled again for it instead of waiting on the executor's thread
+    AsyncPageOutput(TransactionalPageOutput output, Executor executor, int queueSize, PageSpillFile spillFile, long spillThreshold,
+                    long timeoutSeconds, Pacer pacer) {
+        this.output = output;
+        this.executor = executor;
+        // With a spill file the queue only holds small entries once the threshold is exceeded, so it needs no bound
+        this.queue = spillFile != null ? new LinkedBlockingQueue<>() : new ArrayBlockingQueue<>(queueSize);
+        this.spillFile = spillFile;
+        this.spillThreshold = spillThreshold;
+        this.timeoutSeconds = timeoutSeconds;
+        this.pacer = pacer;
+    }
+
+    @Override
+    public void add(Page page) {
+        add(page, NO_OP);
+    }
+
+    void add(Page page, Runnable onConsumed) {
+        try {
+            throwIfFailed();
+        } catch (RuntimeException e) {
+            onConsumed.run();
+            throw e;
+        }
+        lock.lock();
+        try {
+            pending++;
+        } finally {
+            lock.unlock();
+        }
+        final PendingPage pendingPage;
+        try {
+            pendingPage = newPendingPage(page, onConsumed);
+        } catch (RuntimeException e) {
+            // newPendingPage has already run onConsumed when it failed to spill
+            consumed(NO_OP);
+            throw e;
+        }
+        try {
+            if (timeoutSeconds <= 0) {
+                queue.put(pendingPage);
+            } else if (!offer(pendingPage)) {
+                pendingPage.discard();
+                consumed(pendingPage.onConsumed);
+                throwIfFailed();
+            }
+        } catch (InterruptedException e) {
+            pendingPage.discard();
+            consumed(pendingPage.onConsumed);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        schedule();
+    }
+
+    // Waits for room in the queue as long as the worker takes pages
+    private boolean offer(PendingPage pendingPage) throws InterruptedException {
+        long consumedBefore = consumedPages();
+        while (!queue.offer(pendingPage, timeoutSeconds, TimeUnit.SECONDS)) {
+            lock.lock();
+            try {
+                if (!abandoned && consumedPages == consumedBefore) {
+                    abandon();
+                }
+                if (abandoned) {
+                    return false;
+                }
+                consumedBefore = consumedPages;
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    private long consumedPages() {
+        lock.lock();
+        try {
+            return consumedPages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getSpilledPages() {
+        return spillFile != null ? spillFile.getSpilledPages() : 0;
+    }
+
+    long getSpilledBytes() {
+        return spillFile != null ? spillFile.getSpilledBytes() : 0;
+    }
+
+    private PendingPage newPendingPage(Page page, Runnable onConsumed) {
+        final int bytes = page.buffer().limit();
+        if (spillFile == null || inMemoryBytes.get() + bytes <= spillThreshold) {
+            inMemoryBytes.addAndGet(bytes);
+            return new PendingPage(page, null, bytes, onConsumed);
+        }
+        try {
+            return new PendingPage(null, spillFile.write(page), 0, NO_OP);
+        } finally {
+            page.release();
+            onConsumed.run();
+        }
+    }
+
+    @Override
+    public void finish() {
+        awaitDrained();
+        throwIfFailed();
+        output.finish();
+    }
+
+    @Override
+    public void close() {
+        discarding = true;
+        resumeNow();
+        awaitDrained();
+        try {
+            closeSpillFile();
+        } finally {
+            output.close();
+        }
+    }
+
+    @Override
+    public void abort() {
+        discarding = true;
+        resumeNow();
+        awaitDrained();
+        try {
+            closeSpillFile();
+        } finally {
+            output.abort();
+        }
+    }
+
+    @Override
+    public TaskReport commit() {
+        awaitDrained();
+        throwIfFailed();
+        closeSpillFile();
+        return output.commit();
+    }
+
+    private void closeSpillFile() {
+        if (spillFile != null) {
+            spillFile.close();
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        worker = Thread.currentThread();
+        while (true) {
+            PendingPage next;
+            while ((next = nextPage()) != null) {
+                if (pace(next)) {
+                    // The drain stays scheduled, so no other drain passes the delayed page
+                    return;
+                }
+                try {
+                    if (!discarding && error == null) {
+                        output.add(next.load(spillFile));
+                    } else {
+                        next.discard();
+                    }
+                } catch (Throwable e) {
+                    error = e;
+                } finally {
+                    inMemoryBytes.addAndGet(-next.bytes);
+                    consumed(next.onConsumed);
+                }
+            }
+            scheduled.set(false);
+            if (queue.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private PendingPage nextPage() {
+        final PendingPage next = delayed;
+        if (next != null) {
+            delayed = null;
+            return next;
+        }
+        return queue.poll();
+    }
+
+    // Puts the page aside if the pacer delays it, and schedules the drain to go on with it after the delay
+    private boolean pace(PendingPage next) {
+        if (pacer == null || next.paced || discarding || error != null) {
+            return false;
+        }
+        next.paced = true;
+        final long delayNanos;
+        try {
+            delayNanos = pacer.delayNanos(next.load(spillFile));
+        } catch (Throwable e) {
+            error = e;
+            return false;
+        }
+        if (delayNanos <= 0) {
+            return false;
+        }
+        lock.lock();
+        try {
+            if (discarding) {
+                // Closing does not wait for the delay
+                return false;
+            }
+            delayed = next;
+            worker = null;
+            resumption = TIMER.schedule(this::resume, delayNanos, TimeUnit.NANOSECONDS);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void resume() {
+        try {
+            executor.execute(this::drain);
+        } catch (RuntimeException e) {
+            // The executor has been shut down; the pages left are only discarded, so the timer's thread does it
+            error = e;
+            drain();
+        }
+    }
+
+    // Runs a drain waiting for its delay right away; the pages are discarded by then
+    private void resumeNow() {
+        final ScheduledFuture<?> future;
+        lock.lock();
+        try {
+            future = resumption;
+            resumption = null;
+        } finally {
+            lock.unlock();
+        }
+        if (future != null && future.cancel(false)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void consumed(Runnable onConsumed) {
+        try {
+            onConsumed.run();
+        } finally {
+            lock.lock();
+            try {
+                consumedPages++;
+                if (--pending == 0) {
+                    drained.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void awaitDrained() {
+        if (abandoned) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (abandoned) {
+                return;
+            }
+            final long timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            long consumedBefore = consumedPages;
+            long remainingNanos = timeoutNanos;
+            while (pending > 0) {
+                if (timeoutSeconds <= 0) {
+                    drained.await();
+                    continue;
+                }
+                if (remainingNanos <= 0) {
+                    if (consumedPages == consumedBefore) {
+                        abandon();
+                        return;
+                    }
+                    // The output is still making progress
+                    consumedBefore = consumedPages;
+                    remainingNanos = timeoutNanos;
+                }
+                remainingNanos = drained.awaitNanos(remainingNanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held. The worker is left in the call; the pages still queued are dropped here so that their
+    // memory is given back
+    private void abandon() {
+        abandoned = true;
+        discarding = true;
+        final Thread thread = worker;
+        LOGGER.error("Output has not taken a page within {} seconds. It is abandoned.\n{}",
+                timeoutSeconds, thread != null ? Watchdog.stackTrace(thread) : "(not started)");
+        if (error == null) {
+            error = new RuntimeException(String.format("Output has not taken a page within %d seconds.", timeoutSeconds));
+        }
+        PendingPage next;
+        while ((next = queue.poll()) != null) {
+            next.discard();
+            inMemoryBytes.addAndGet(-next.bytes);
+            consumed(next.onConsumed);
+        }
+    }
+
+    void throwIfFailed() {
+        final Throwable e = error;
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor newTimer() {
+        final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "embulk-output-multi-pacer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * Decides how long a page waits before it is given to the output. Called once per page on the output's worker.
+     */
+    interface Pacer {
+        long delayNanos(Page page);
+    }
+
+    private static class PendingPage {
+        private Page page;
+        private final PageSpillFile.Entry spillEntry;
+        private final int bytes;
+        private final Runnable onConsumed;
+        private boolean paced;
+
+        private PendingPage(Page page, PageSpillFile.Entry spillEntry, int bytes, Runnable onConsumed) {
+            this.page = page;
+            this.spillEntry = spillEntry;
+            this.bytes = bytes;
+            this.onConsumed = onConsumed;
+        }
+
+        // A spilled page is read once, when the pacer or the output first needs it
+        private Page load(PageSpillFile spillFile) {
+            if (page == null) {
+                page = spillFile.read(spillEntry);
+            }
+            return page;
+        }
+
+        private void discard() {
+            if (page != null) {
+                page.release();
+            }
+        }
+    }
+}
@@ -1,71 +1,175 @@
 package org.embulk.output.multi;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.embulk.config.TaskReport;
 import org.embulk.config.TaskSource;
 import org.embulk.spi.OutputPlugin;
 import org.embulk.util.config.TaskMapper;
 import org.embulk.util.config.ConfigMapperFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 class AsyncRunControl {
-    private static final String THREAD_NAME_FORMAT = "multi-run-control-%d";
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncRunControl.class);
     private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
     
     private final MultiOutputPlugin.PluginTask task;
     private final OutputPlugin.Control control;
     private final CountDownLatch latch;
     private final ConcurrentMap<String, TaskSource> taskSources;
-    private final ExecutorService executorService;
+    private final Set<String> arrivedTags;
+    private final Set<String> detachedTags;
+    // Transactions of the delegates and their threads, to be stopped if they do not arrive in time
+    private final ConcurrentMap<String, Future<?>> transactions;
+    private final ConcurrentMap<String, Thread> transactionThreads;
+    private final List<OutputPluginDelegate> delegates;
     private final Future<List<TaskReport>> result;
 
-    static AsyncRunControl start(MultiOutputPlugin.PluginTask task, OutputPlugin.Control control) {
-        return new AsyncRunControl(task, control);
+    // Outputs sharing a formatter run as one delegate, so the delegates are counted rather than 'outputs'
+    static AsyncRunControl start(MultiOutputPlugin.PluginTask task, OutputPlugin.Control control, ExecutorService executorService,
+                                 List<OutputPluginDelegate> delegates) {
+        return new AsyncRunControl(task, control, executorService, delegates);
     }
 
-    private AsyncRunControl(MultiOutputPlugin.PluginTask task, OutputPlugin.Control control) {
+    private AsyncRunControl(MultiOutputPlugin.PluginTask task, OutputPlugin.Control control, ExecutorService executorService,
+                            List<OutputPluginDelegate> delegates) {
         this.task = task;
         this.control = control;
-        this.latch = new CountDownLatch(task.getOutputConfigs().size());
-        this.taskSources = new ConcurrentHashMap<>(task.getOutputConfigs().size());
-        this.executorService = Executors.newSingleThreadExecutor(
-                new ThreadFactoryBuilder().setNameFormat(THREAD_NAME_FORMAT).build()
-        );
+        this.delegates = delegates;
+        this.latch = new CountDownLatch(delegates.size());
+        this.taskSources = new ConcurrentHashMap<>(delegates.size());
+        this.arrivedTags = ConcurrentHashMap.newKeySet();
+        this.detachedTags = ConcurrentHashMap.newKeySet();
+        this.transactions = new ConcurrentHashMap<>(delegates.size());
+        this.transactionThreads = new ConcurrentHashMap<>(delegates.size());
         this.result = executorService.submit(new RunControl());
     }
 
+    MultiOutputPlugin.PluginTask getTask() {
+        return task;
+    }
+
+    void track(String tag, Future<?> transaction) {
+        transactions.put(tag, transaction);
+    }
+
+    // Called by the transaction of the tag on its own thread
+    void started(String tag) {
+        transactionThreads.put(tag, Thread.currentThread());
+    }
+
     void cancel() {
         result.cancel(true);
     }
 
     void addTaskSource(String tag, TaskSource taskSource) {
         taskSources.putIfAbsent(tag, taskSource);
-        latch.countDown();
+        arrive(tag);
     }
 
-    List<TaskReport> waitAndGetResult() throws ExecutionException, InterruptedException {
+    // An optional output failed. The run goes on without it unless too few outputs are left.
+    void detach(String tag) {
+        detachedTags.add(tag);
+        if (remainingOutputs() < task.getMinSuccess()) {
+            cancel();
+        }
+        arrive(tag);
+    }
+
+    Set<String> getDetachedTags() {
+        return Collections.unmodifiableSet(detachedTags);
+    }
+
+    // 'min_success' counts 'outputs', so a detached group of outputs sharing a formatter takes all of its members
+    private int remainingOutputs() {
+        return task.getOutputConfigs().size() - detachedTags.stream().mapToInt(TeeFileOutputPlugin::memberCountOf).sum();
+    }
+
+    private void arrive(String tag) {
+        // A tag may fail after it has passed its task source, so count each tag only once
+        if (arrivedTags.add(tag)) {
+            latch.countDown();
+        }
+    }
+
+    // Task reports of the run, or empty if it has not completed successfully
+    List<TaskReport> getTaskReportsIfCompleted() {
+        if (!result.isDone() || result.isCancelled()) {
+            return Collections.emptyList();
+        }
         try {
             return result.get();
-        } finally {
-            executorService.shutdown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        } catch (ExecutionException e) {
+            return Collections.emptyList();
         }
     }
 
+    List<TaskReport> waitAndGetResult() throws ExecutionException, InterruptedException {
+        return result.get();
+    }
+
     private class RunControl implements Callable<List<TaskReport>> {
         @Override
         public List<TaskReport> call() throws Exception {
-            latch.await();
+            final Optional<Long> timeout = task.getBarrierTimeoutSeconds();
+            if (!timeout.isPresent()) {
+                latch.await();
+            } else if (!latch.await(timeout.get(), TimeUnit.SECONDS)) {
+                stopMissingTransactions(timeout.get());
+            }
+            // Outputs without a task source are not opened by the tasks
+            for (String tag : detachedTags) {
+                taskSources.remove(tag);
+            }
             task.setTaskSources(taskSources);
             return control.run(task.dump());
         }
+
+        /**
+         * Applies the failure policy to the outputs whose transaction has not passed its task source in time:
+         * fails the run if any of them is required, detaches them otherwise.
+         */
+        private void stopMissingTransactions(long timeoutSeconds) {
+            final List<OutputPluginDelegate> missing = delegates.stream()
+                    .filter(delegate -> !arrivedTags.contains(delegate.getTag()))
+                    .collect(Collectors.toList());
+            for (OutputPluginDelegate delegate : missing) {
+                final Thread thread = transactionThreads.get(delegate.getTag());
+                LOGGER.error("Transaction for {} has not reached the run within {} seconds. It is interrupted.\n{}",
+                        delegate.getTag(), timeoutSeconds, thread != null ? Watchdog.stackTrace(thread) : "(not started)");
+            }
+            final List<String> missingTags = missing.stream().map(OutputPluginDelegate::getTag).collect(Collectors.toList());
+            final boolean requiredMissing = missing.stream().anyMatch(OutputPluginDelegate::isRequired);
+            if (!requiredMissing) {
+                detachedTags.addAll(missingTags);
+            }
+            // The transactions fail with CancellationException even if they ignore the interrupt
+            for (String tag : missingTags) {
+                final Future<?> transaction = transactions.get(tag);
+                if (transaction != null) {
+                    transaction.cancel(true);
+                }
+            }
+            if (requiredMissing || remainingOutputs() < task.getMinSuccess()) {
+                throw new RuntimeException(String.format("Transactions for [%s] did not reach the run within %d seconds.",
+                        String.join(", ", missingTags), timeoutSeconds));
+            }
+        }
     }
 }
@@ -0,0 +1,141 @@
+package org.embulk.output.multi;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bloom filter of 64 bit key hashes in a direct buffer, so that large filters stay off the heap.
+ * Bits are set with compare-and-set, so a filter can be shared by the tasks running in the JVM. The buffer is
+ * freed as soon as the last user releases the filter rather than when the garbage collector gets to it.
+ */
+class BloomFilter {
+    // A direct buffer is indexed by int
+    static final long MAX_BITS = (long) (Integer.MAX_VALUE & ~7) * 8;
+
+    private static final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final Map<String, BloomFilter> SHARED = new HashMap<>();
+    // Unsafe#invokeCleaner bound to the instance, or null if the JVM does not offer it
+    private static final MethodHandle INVOKE_CLEANER = invokeCleaner();
+
+    private final String key;
+    private final ByteBuffer buffer;
+    private final long bits;
+    private final int hashes;
+    private int references;
+    private volatile boolean freed;
+
+    private BloomFilter(String key, long expectedKeys, double fpp) {
+        this.key = key;
+        this.bits = bits(expectedKeys, fpp);
+        this.hashes = Math.max(1, (int) Math.round((double) bits / expectedKeys * Math.log(2)));
+        this.buffer = ByteBuffer.allocateDirect((int) (bits / 8));
+    }
+
+    /**
+     * Number of bits for the expected keys and false positive probability, rounded up to whole words.
+     */
+    static long bits(long expectedKeys, double fpp) {
+        final double bits = -expectedKeys * Math.log(fpp) / (Math.log(2) * Math.log(2));
+        return Math.max(64, ((long) Math.ceil(bits) + 63) & ~63L);
+    }
+
+    // A filter used by one task only; release() frees it
+    static BloomFilter create(long expectedKeys, double fpp) {
+        return new BloomFilter(null, expectedKeys, fpp);
+    }
+
+    /**
+     * Returns the filter shared by the key, creating it on the first call. Each call must be paired with {@link #release()}.
+     */
+    static BloomFilter acquire(String key, long expectedKeys, double fpp) {
+        synchronized (SHARED) {
+            final BloomFilter filter = SHARED.computeIfAbsent(key, k -> new BloomFilter(k, expectedKeys, fpp));
+            filter.references++;
+            return filter;
+        }
+    }
+
+    void release() {
+        if (key != null) {
+            synchronized (SHARED) {
+                if (--references > 0) {
+                    return;
+                }
+                SHARED.remove(key);
+            }
+        }
+        free();
+    }
+
+    private synchronized void free() {
+        if (freed) {
+            return;
+        }
+        freed = true;
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invokeExact(buffer);
+        } catch (Throwable e) {
+            // The buffer is freed when it is collected instead
+        }
+    }
+
+    /**
+     * Adds the hash and returns true if it may have been added before.
+     */
+    boolean put(long hash) {
+        if (freed) {
+            throw new IllegalStateException("Bloom filter is already released.");
+        }
+        // Kirsch-Mitzenmacher: the probes are derived from two halves of one hash
+        final long h1 = hash;
+        final long h2 = RowKeyHash.mix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+        boolean seen = true;
+        long combined = h1;
+        for (int i = 0; i < hashes; i++) {
+            final long bit = Long.remainderUnsigned(combined, bits);
+            if (!setBit(bit)) {
+                seen = false;
+            }
+            combined += h2;
+        }
+        return seen;
+    }
+
+    // Returns true if the bit was already set
+    private boolean setBit(long bit) {
+        final int index = (int) ((bit >>> 6) << 3);
+        final long mask = 1L << (bit & 63);
+        while (true) {
+            final long word = (long) WORDS.getOpaque(buffer, index);
+            if ((word & mask) != 0) {
+                return true;
+            }
+            if (WORDS.compareAndSet(buffer, index, word, word | mask)) {
+                return false;
+            }
+        }
+    }
+
+    private static MethodHandle invokeCleaner() {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigException;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+final class ByteSize {
+    private static final Pattern PATTERN = Pattern.compile("^\\s*(\\d+)\\s*([KMGT]?)I?B?\\s*$");
+
+    private ByteSize() {
+    }
+
+    /**
+     * Parses sizes such as {@code 1048576}, {@code 512KB} or {@code 64MB}. Units are powers of 1024.
+     */
+    static long parse(String name, String value) {
+        final Matcher matcher = PATTERN.matcher(value.toUpperCase(Locale.ENGLISH));
+        if (!matcher.matches()) {
+            throw new ConfigException(String.format("'%s' must be a byte size like '64MB' but got '%s'.", name, value));
+        }
+        final long number;
+        try {
+            number = Long.parseLong(matcher.group(1));
+        } catch (NumberFormatException e) {
+            throw new ConfigException(String.format("'%s' is too large: '%s'.", name, value), e);
+        }
+        final int shift;
+        switch (matcher.group(2)) {
+            case "K":
+                shift = 10;
+                break;
+            case "M":
+                shift = 20;
+                break;
+            case "G":
+                shift = 30;
+                break;
+            case "T":
+                shift = 40;
+                break;
+            default:
+                shift = 0;
+        }
+        if (number > (Long.MAX_VALUE >> shift)) {
+            throw new ConfigException(String.format("'%s' is too large: '%s'.", name, value));
+        }
+        return number << shift;
+    }
+}
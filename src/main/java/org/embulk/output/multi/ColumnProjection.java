@@ -0,0 +1,92 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Column;
+import org.embulk.spi.Schema;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class ColumnProjection {
+    private final Schema schema;
+    private final List<Column> sourceColumns;
+    private final boolean identity;
+
+    private ColumnProjection(Schema schema, List<Column> sourceColumns, boolean identity) {
+        this.schema = schema;
+        this.sourceColumns = Collections.unmodifiableList(sourceColumns);
+        this.identity = identity;
+    }
+
+    static ColumnProjection of(MultiOutputPlugin.OutputTask task, Schema inputSchema) {
+        if (task.getColumns().isPresent() && task.getExcludeColumns().isPresent()) {
+            throw new ConfigException("'columns' and 'exclude_columns' can not be specified at the same time.");
+        }
+        final Map<String, Column> columnsByName = new LinkedHashMap<>();
+        for (Column column : inputSchema.getColumns()) {
+            columnsByName.put(column.getName(), column);
+        }
+
+        final List<Column> sourceColumns = new ArrayList<>();
+        if (task.getColumns().isPresent()) {
+            final Set<String> seen = new HashSet<>();
+            for (String name : task.getColumns().get()) {
+                final Column column = columnsByName.get(name);
+                if (column == null) {
+                    throw new ConfigException(String.format("Column '%s' in 'columns' is not found.", name));
+                }
+                if (!seen.add(name)) {
+                    throw new ConfigException(String.format("Column '%s' in 'columns' is duplicated.", name));
+                }
+                sourceColumns.add(column);
+            }
+        } else if (task.getExcludeColumns().isPresent()) {
+            final Set<String> excluded = new HashSet<>(task.getExcludeColumns().get());
+            for (String name : excluded) {
+                if (!columnsByName.containsKey(name)) {
+                    throw new ConfigException(String.format("Column '%s' in 'exclude_columns' is not found.", name));
+                }
+            }
+            for (Column column : inputSchema.getColumns()) {
+                if (!excluded.contains(column.getName())) {
+                    sourceColumns.add(column);
+                }
+            }
+        } else {
+            return identity(inputSchema);
+        }
+        if (sourceColumns.isEmpty()) {
+            throw new ConfigException("At least one column must be left after applying 'columns' or 'exclude_columns'.");
+        }
+
+        if (sourceColumns.equals(inputSchema.getColumns())) {
+            return identity(inputSchema);
+        }
+        final Schema.Builder builder = Schema.builder();
+        for (Column column : sourceColumns) {
+            builder.add(column.getName(), column.getType());
+        }
+        return new ColumnProjection(builder.build(), sourceColumns, false);
+    }
+
+    static ColumnProjection identity(Schema schema) {
+        return new ColumnProjection(schema, schema.getColumns(), true);
+    }
+
+    Schema getSchema() {
+        return schema;
+    }
+
+    List<Column> getSourceColumns() {
+        return sourceColumns;
+    }
+
+    boolean isIdentity() {
+        return identity;
+    }
+}
@@ -0,0 +1,90 @@
+package org.embulk.output.multi;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Commit state of each output on each task, kept in {@code <resume_state_path>/<job id>/<tag>/<task index>.json}.
+ * An output that has committed a task stores its task report there, so that a resumed attempt of the task can
+ * return the report without feeding the output again.
+ */
+class CommitLedger {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommitLedger.class);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final Path directory;
+
+    private CommitLedger(Path directory) {
+        this.directory = directory;
+    }
+
+    static Optional<CommitLedger> of(MultiOutputPlugin.PluginTask task) {
+        return task.getResumeStatePath().map(path -> new CommitLedger(Paths.get(path).resolve(task.getJobId())));
+    }
+
+    Optional<TaskReport> find(String tag, int taskIndex) {
+        final Path path = entryPath(tag, taskIndex);
+        try {
+            @SuppressWarnings("unchecked")
+            final Map<String, Object> values = OBJECT_MAPPER.readValue(Files.readAllBytes(path), Map.class);
+            final TaskReport report = Exec.newTaskReport();
+            values.forEach(report::set);
+            return Optional.of(report);
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            // An unreadable entry only means that the output runs the task again
+            LOGGER.warn(String.format("Failed to read commit state %s.", path), e);
+            return Optional.empty();
+        }
+    }
+
+    void record(String tag, int taskIndex, TaskReport report) {
+        final Path path = entryPath(tag, taskIndex);
+        try {
+            Files.createDirectories(path.getParent());
+            final Path temporary = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+            Files.write(temporary, report.toJson().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void delete() {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.warn(String.format("Failed to delete commit state %s.", directory), e);
+        }
+    }
+
+    private Path entryPath(String tag, int taskIndex) {
+        return directory.resolve(tag).resolve(taskIndex + ".json");
+    }
+}
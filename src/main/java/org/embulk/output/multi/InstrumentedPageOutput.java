@@ -0,0 +1,60 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Page;
+import org.embulk.spi.TransactionalPageOutput;
+
+class InstrumentedPageOutput implements TransactionalPageOutput {
+    private final TransactionalPageOutput output;
+    private final OutputMetrics metrics;
+
+    InstrumentedPageOutput(TransactionalPageOutput output, OutputMetrics metrics) {
+        this.output = output;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void add(Page page) {
+        // Measured before the call because the output may release the page
+        final Buffer buffer = page.buffer();
+        final int rows = OutputMetrics.recordCount(buffer);
+        final int bytes = buffer.limit();
+        final long start = System.nanoTime();
+        try {
+            output.add(page);
+        } finally {
+            metrics.recordAdd(rows, bytes, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void finish() {
+        final long start = System.nanoTime();
+        try {
+            output.finish();
+        } finally {
+            metrics.recordFinish(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void close() {
+        output.close();
+    }
+
+    @Override
+    public void abort() {
+        output.abort();
+    }
+
+    @Override
+    public TaskReport commit() {
+        final long start = System.nanoTime();
+        try {
+            return output.commit();
+        } finally {
+            metrics.recordCommit(System.nanoTime() - start);
+        }
+    }
+}
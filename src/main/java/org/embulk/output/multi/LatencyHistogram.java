@@ -0,0 +1,77 @@
+package org.embulk.output.multi;
+
+import java.util.Arrays;
+
+/**
+ * Histogram with power-of-two buckets. Bucket {@code i} counts values in {@code [2^(i-1), 2^i)}; bucket 0 counts zeros.
+ * Not thread safe.
+ */
+class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final long[] counts;
+    private long max;
+
+    LatencyHistogram() {
+        this(new long[BUCKETS], 0);
+    }
+
+    private LatencyHistogram(long[] counts, long max) {
+        this.counts = counts;
+        this.max = max;
+    }
+
+    static LatencyHistogram of(long[] counts, long max) {
+        return new LatencyHistogram(Arrays.copyOf(counts, BUCKETS), max);
+    }
+
+    void record(long value) {
+        final long v = Math.max(value, 0);
+        counts[Math.min(64 - Long.numberOfLeadingZeros(v), BUCKETS - 1)]++;
+        if (v > max) {
+            max = v;
+        }
+    }
+
+    void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        max = Math.max(max, other.max);
+    }
+
+    long getCount() {
+        long count = 0;
+        for (long c : counts) {
+            count += c;
+        }
+        return count;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the upper bound of the bucket containing the given percentile, capped by the observed maximum.
+     */
+    long getPercentile(double percentile) {
+        final long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return i == 0 ? 0 : Math.min((1L << i) - 1, max);
+            }
+        }
+        return max;
+    }
+
+    long[] getCounts() {
+        return Arrays.copyOf(counts, BUCKETS);
+    }
+}
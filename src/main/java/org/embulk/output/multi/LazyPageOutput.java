@@ -0,0 +1,61 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Page;
+import org.embulk.spi.TransactionalPageOutput;
+
+import java.util.function.Supplier;
+
+/**
+ * Opens the output on its first page, for the {@code lazy_open} option. A task that sends no page to the output never
+ * opens it and commits an empty task report.
+ */
+class LazyPageOutput implements TransactionalPageOutput {
+    private final Supplier<TransactionalPageOutput> opener;
+    // Opened by whichever thread feeds the output, which hands off to the task thread before it finishes
+    private volatile TransactionalPageOutput output;
+
+    LazyPageOutput(Supplier<TransactionalPageOutput> opener) {
+        this.opener = opener;
+    }
+
+    @Override
+    public void add(Page page) {
+        if (output == null) {
+            try {
+                output = opener.get();
+            } catch (RuntimeException e) {
+                page.release();
+                throw e;
+            }
+        }
+        output.add(page);
+    }
+
+    @Override
+    public void finish() {
+        if (output != null) {
+            output.finish();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (output != null) {
+            output.close();
+        }
+    }
+
+    @Override
+    public void abort() {
+        if (output != null) {
+            output.abort();
+        }
+    }
+
+    @Override
+    public TaskReport commit() {
+        return output != null ? output.commit() : Exec.newTaskReport();
+    }
+}
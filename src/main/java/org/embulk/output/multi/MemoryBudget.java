@@ -0,0 +1,91 @@
+package org.embulk.output.multi;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bytes of input pages held by the outputs of all tasks of a job in the JVM, until every output has released them.
+ * A task reserves a page's bytes before it hands the page out and waits in arrival order while the budget is used up.
+ * Credit is counted in kilobytes so that budgets beyond 2GB fit a semaphore; a page larger than the whole budget takes
+ * all of it.
+ */
+class MemoryBudget {
+    private static final int UNIT_BYTES = 1024;
+    private static final Map<String, MemoryBudget> BUDGETS = new HashMap<>();
+
+    private final String key;
+    private final int capacityUnits;
+    private final Semaphore credit;
+    private final AtomicLong inflightBytes = new AtomicLong();
+    private final AtomicLong inflightPages = new AtomicLong();
+    private int references;
+
+    private MemoryBudget(String key, long maxBytes) {
+        this.key = key;
+        this.capacityUnits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / UNIT_BYTES));
+        this.credit = new Semaphore(capacityUnits, true);
+    }
+
+    /**
+     * Returns the budget of the key, creating it on the first call. Each call must be paired with {@link #release()}.
+     */
+    static MemoryBudget acquire(String key, long maxBytes) {
+        synchronized (BUDGETS) {
+            final MemoryBudget budget = BUDGETS.computeIfAbsent(key, k -> new MemoryBudget(k, maxBytes));
+            budget.references++;
+            return budget;
+        }
+    }
+
+    void release() {
+        synchronized (BUDGETS) {
+            if (--references == 0) {
+                BUDGETS.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Takes credit for a page, waiting until it is available. Returns the time waited in nanoseconds.
+     */
+    long reserve(long bytes) {
+        final int units = units(bytes);
+        long waitNanos = 0;
+        try {
+            // Unlike tryAcquire(int), the timed variant does not overtake the callers already waiting
+            if (!credit.tryAcquire(units, 0, TimeUnit.NANOSECONDS)) {
+                final long start = System.nanoTime();
+                credit.acquire(units);
+                waitNanos = System.nanoTime() - start;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        inflightBytes.addAndGet(bytes);
+        inflightPages.incrementAndGet();
+        return waitNanos;
+    }
+
+    // Gives back the credit of a page reserved with the same bytes
+    void free(long bytes) {
+        inflightBytes.addAndGet(-bytes);
+        inflightPages.decrementAndGet();
+        credit.release(units(bytes));
+    }
+
+    long getInflightBytes() {
+        return inflightBytes.get();
+    }
+
+    long getInflightPages() {
+        return inflightPages.get();
+    }
+
+    private int units(long bytes) {
+        return (int) Math.min(capacityUnits, Math.max(1, (bytes + UNIT_BYTES - 1) / UNIT_BYTES));
+    }
+}
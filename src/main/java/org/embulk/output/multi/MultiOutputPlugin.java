@@ -1,13 +1,18 @@
 package org.embulk.output.multi;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.embulk.config.ConfigDiff;
 import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
 import org.embulk.config.TaskSource;
 import org.embulk.plugin.DefaultPluginType;
 import org.embulk.spi.Exec;
 import org.embulk.spi.ExecSession;
 import org.embulk.spi.ExecSessionInternal;
+import org.embulk.spi.FileOutputPlugin;
+import org.embulk.spi.FormatterPlugin;
 import org.embulk.spi.OutputPlugin;
 import org.embulk.spi.Schema;
 import org.embulk.spi.TransactionalPageOutput;
@@ -21,12 +26,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 public class MultiOutputPlugin implements OutputPlugin {
     public interface PluginTask extends Task {
@@ -37,15 +50,223 @@ public class MultiOutputPlugin implements OutputPlugin {
         @ConfigDefault("null")
         Optional<Map<String, ConfigDiff>> getOutputConfigDiffs();
 
+        @Config("parallel")
+        @ConfigDefault("false")
+        boolean getParallel();
+
+        @Config("queue_size")
+        @ConfigDefault("16")
+        int getQueueSize();
+
+        @Config("spill_directory")
+        @ConfigDefault("null")
+        Optional<String> getSpillDirectory();
+
+        @Config("max_threads")
+        @ConfigDefault("null")
+        Optional<Integer> getMaxThreads();
+
+        @Config("use_virtual_threads")
+        @ConfigDefault("false")
+        boolean getUseVirtualThreads();
+
+        @Config("min_success")
+        @ConfigDefault("1")
+        int getMinSuccess();
+
+        @Config("resume_state_path")
+        @ConfigDefault("null")
+        Optional<String> getResumeStatePath();
+
+        String getJobId();
+        void setJobId(String jobId);
+
+        @Config("routing")
+        @ConfigDefault("null")
+        Optional<RoutingTask> getRouting();
+
+        @Config("barrier_timeout_seconds")
+        @ConfigDefault("null")
+        Optional<Long> getBarrierTimeoutSeconds();
+
+        @Config("add_timeout_seconds")
+        @ConfigDefault("null")
+        Optional<Long> getAddTimeoutSeconds();
+
+        @Config("commit_timeout_seconds")
+        @ConfigDefault("null")
+        Optional<Long> getCommitTimeoutSeconds();
+
+        @Config("max_inflight_bytes")
+        @ConfigDefault("null")
+        Optional<String> getMaxInflightBytes();
+
+        @Config("jfr_events")
+        @ConfigDefault("false")
+        boolean getJfrEvents();
+
+        @Config("share_formatter")
+        @ConfigDefault("false")
+        boolean getShareFormatter();
+
         Map<String, TaskSource> getTaskSources();
         void setTaskSources(Map<String, TaskSource> taskSources);
     }
 
+    public interface OutputTask extends Task {
+        @Config("where")
+        @ConfigDefault("null")
+        Optional<String> getWhere();
+
+        @Config("columns")
+        @ConfigDefault("null")
+        Optional<List<String>> getColumns();
+
+        @Config("exclude_columns")
+        @ConfigDefault("null")
+        Optional<List<String>> getExcludeColumns();
+
+        @Config("spill_threshold")
+        @ConfigDefault("null")
+        Optional<String> getSpillThreshold();
+
+        @Config("required")
+        @ConfigDefault("true")
+        boolean getRequired();
+
+        @Config("coalesce_bytes")
+        @ConfigDefault("null")
+        Optional<String> getCoalesceBytes();
+
+        @Config("coalesce_rows")
+        @ConfigDefault("null")
+        Optional<Long> getCoalesceRows();
+
+        @Config("sample")
+        @ConfigDefault("null")
+        Optional<SampleTask> getSample();
+
+        @Config("max_rows_per_second")
+        @ConfigDefault("null")
+        Optional<Long> getMaxRowsPerSecond();
+
+        @Config("max_bytes_per_second")
+        @ConfigDefault("null")
+        Optional<String> getMaxBytesPerSecond();
+
+        @Config("dedupe")
+        @ConfigDefault("null")
+        Optional<DedupeTask> getDedupe();
+
+        @Config("aggregate")
+        @ConfigDefault("null")
+        Optional<AggregateTask> getAggregate();
+
+        @Config("lazy_open")
+        @ConfigDefault("false")
+        boolean getLazyOpen();
+
+        @Config("writers")
+        @ConfigDefault("null")
+        Optional<Integer> getWriters();
+
+        @Config("partition_by")
+        @ConfigDefault("null")
+        Optional<PartitionTask> getPartitionBy();
+    }
+
+    public interface RoutingTask extends Task {
+        @Config("mode")
+        @ConfigDefault("\"broadcast\"")
+        String getMode();
+
+        @Config("keys")
+        @ConfigDefault("[]")
+        List<String> getKeys();
+    }
+
+    public interface DedupeTask extends Task {
+        @Config("keys")
+        List<String> getKeys();
+
+        @Config("expected_rows")
+        @ConfigDefault("1000000")
+        long getExpectedRows();
+
+        @Config("fpp")
+        @ConfigDefault("0.001")
+        double getFpp();
+
+        @Config("scope")
+        @ConfigDefault("\"task\"")
+        String getScope();
+    }
+
+    public interface AggregateTask extends Task {
+        @Config("group_by")
+        @ConfigDefault("[]")
+        List<String> getGroupBy();
+
+        @Config("metrics")
+        @ConfigDefault("[\"count\"]")
+        List<String> getMetrics();
+    }
+
+    public interface PartitionTask extends Task {
+        @Config("column")
+        String getColumn();
+
+        @Config("format")
+        @ConfigDefault("\"%Y-%m-%d\"")
+        String getFormat();
+
+        @Config("time_zone")
+        @ConfigDefault("\"UTC\"")
+        String getTimeZone();
+
+        @Config("max_open")
+        @ConfigDefault("16")
+        int getMaxOpen();
+
+        @Config("max_partitions")
+        @ConfigDefault("256")
+        int getMaxPartitions();
+    }
+
+    public interface SampleTask extends Task {
+        @Config("rate")
+        @ConfigDefault("null")
+        Optional<Double> getRate();
+
+        @Config("seed")
+        @ConfigDefault("0")
+        long getSeed();
+
+        @Config("every_nth")
+        @ConfigDefault("null")
+        Optional<Long> getEveryNth();
+    }
+
     private static final Logger LOGGER = LoggerFactory.getLogger(MultiOutputPlugin.class);
     private static final String CONFIG_NAME_OUTPUT_CONFIG_DIFFS = "output_config_diffs";
     static final String CONFIG_NAME_OUTPUT_TASK_REPORTS = "output_task_reports";
+    private static final String CONFIG_NAME_OUTPUT_STATS = "output_stats";
+    static final String CONFIG_NAME_MEMORY_BUDGET = "memory_budget";
+    // The budget is counted in kilobytes
+    private static final long MIN_INFLIGHT_BYTES = 1024;
+    private static final String CONFIG_NAME_DETACHED_OUTPUTS = "detached_outputs";
+    // A coalesced page is a single byte array
+    private static final long MAX_COALESCE_BYTES = 1L << 30;
+    // Options of each 'outputs' entry that are consumed by this plugin and not passed to the output itself
+    static final List<String> OUTPUT_OPTION_NAMES = Collections.unmodifiableList(Arrays.asList(
+            "where", "columns", "exclude_columns", "spill_threshold", "required", "coalesce_bytes", "coalesce_rows",
+            "sample", "max_rows_per_second", "max_bytes_per_second", "dedupe", "aggregate",
+            "lazy_open", "writers", "partition_by"));
     
     private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+    // Plugins and tasks resolved by the first #open of a task source, reused by the other tasks of the same session.
+    // Weak keys are compared by identity, so each task source instance gets its own entry.
+    private static final Cache<TaskSource, OpenedTask> OPENED_TASKS = CacheBuilder.newBuilder().weakKeys().build();
 
     @Override
     public ConfigDiff transaction(ConfigSource config, Schema schema, int taskCount, OutputPlugin.Control control) {
@@ -54,96 +275,395 @@ public class MultiOutputPlugin implements OutputPlugin {
         if (task.getOutputConfigs().isEmpty()) {
             throw new ConfigException("'outputs' must have more than or equals to 1 element.");
         }
+        if (task.getQueueSize() < 1) {
+            throw new ConfigException("'queue_size' must be greater than or equals to 1.");
+        }
+        if (task.getMaxThreads().isPresent() && task.getMaxThreads().get() < 1) {
+            // Only page workers run on the pool, and they never wait for each other
+            throw new ConfigException("'max_threads' must be greater than or equals to 1.");
+        }
+        if (task.getMinSuccess() < 1 || task.getMinSuccess() > task.getOutputConfigs().size()) {
+            throw new ConfigException("'min_success' must be between 1 and the number of 'outputs'.");
+        }
+        for (Map.Entry<String, Optional<Long>> timeout : timeoutOptions(task).entrySet()) {
+            if (timeout.getValue().isPresent() && timeout.getValue().get() < 1) {
+                throw new ConfigException(String.format("'%s' must be greater than or equals to 1.", timeout.getKey()));
+            }
+        }
+        if (task.getMaxInflightBytes().isPresent()
+                && ByteSize.parse("max_inflight_bytes", task.getMaxInflightBytes().get()) < MIN_INFLIGHT_BYTES) {
+            throw new ConfigException("'max_inflight_bytes' must be greater than or equals to 1KB.");
+        }
+        validateOutputTasks(task, schema);
+        task.getRouting().ifPresent(routing -> RowRouter.of(routing, schema));
+        // Identifies the commit state of this job's tasks, which is kept by a resumed attempt
+        task.setJobId(UUID.randomUUID().toString());
         final ExecSession session = Exec.session();
-        final AsyncRunControl runControl = AsyncRunControl.start(task, control);
-        return buildConfigDiff(mapWithPluginDelegate(task, session, delegate ->
-                delegate.transaction(schema, taskCount, runControl)
-        ));
+        try (SharedExecutor.Lease lease = acquireExecutor(task)) {
+            final List<OutputPluginDelegate> delegates = mapWithPluginDelegate(task, session, Function.identity());
+            final AsyncRunControl runControl = AsyncRunControl.start(task, control, lease.getBlockingExecutorService(), delegates);
+            return buildConfigDiff(delegates.stream()
+                    .map(delegate -> delegate.transaction(schema, taskCount, runControl, lease.getBlockingExecutorService(), task.getJfrEvents()))
+                    .collect(Collectors.toList()), runControl, task.getMinSuccess());
+        }
     }
 
     @Override
     public ConfigDiff resume(TaskSource taskSource, Schema schema, int taskCount, OutputPlugin.Control control) {
+        // Tasks opened before the resume must not see plugins or config diffs of the previous attempt
+        OPENED_TASKS.invalidateAll();
         final TaskMapper taskMapper = CONFIG_MAPPER_FACTORY.createTaskMapper();
         final PluginTask task = taskMapper.map(taskSource, PluginTask.class);
         final ExecSession session = Exec.session();
-        final AsyncRunControl runControl = AsyncRunControl.start(task, control);
-        return buildConfigDiff(mapWithPluginDelegate(task, session, delegate ->
-                delegate.resume(schema, taskCount, runControl)
-        ));
+        try (SharedExecutor.Lease lease = acquireExecutor(task)) {
+            final List<OutputPluginDelegate> delegates = mapWithPluginDelegate(task, session, Function.identity());
+            for (OutputPluginDelegate delegate : delegates) {
+                if (delegate.getOutputTask().getWriters().isPresent()) {
+                    // The writers of the previous attempt were aborted with it, together with the rows of its succeeded tasks
+                    throw new ConfigException(String.format("Output %s with 'writers' can not be resumed. Run the job again.", delegate.getTag()));
+                }
+                if (delegate.getOutputTask().getPartitionBy().isPresent()) {
+                    throw new ConfigException(String.format("Output %s with 'partition_by' can not be resumed. Run the job again.", delegate.getTag()));
+                }
+            }
+            final AsyncRunControl runControl = AsyncRunControl.start(task, control, lease.getBlockingExecutorService(), delegates);
+            return buildConfigDiff(delegates.stream()
+                    .map(delegate -> delegate.resume(schema, taskCount, runControl, lease.getBlockingExecutorService(), task.getJfrEvents()))
+                    .collect(Collectors.toList()), runControl, task.getMinSuccess());
+        }
     }
 
     @Override
-    public void cleanup(TaskSource taskSource, Schema schema, int taskCount, List<org.embulk.config.TaskReport> successTaskReports) {
+    public void cleanup(TaskSource taskSource, Schema schema, int taskCount, List<TaskReport> successTaskReports) {
         final TaskMapper taskMapper = CONFIG_MAPPER_FACTORY.createTaskMapper();
         final PluginTask task = taskMapper.map(taskSource, PluginTask.class);
         final ExecSession session = Exec.session();
         mapWithPluginDelegate(task, session, delegate -> {
-            delegate.cleanup(schema, taskCount, successTaskReports);
+            delegate.cleanup(schema, taskCount, successTaskReports, task.getJobId());
             return null;
         });
+        CommitLedger.of(task).ifPresent(CommitLedger::delete);
     }
 
     @Override
     public TransactionalPageOutput open(TaskSource taskSource, Schema schema, int taskIndex) {
-        final TaskMapper taskMapper = CONFIG_MAPPER_FACTORY.createTaskMapper();
-        final PluginTask task = taskMapper.map(taskSource, PluginTask.class);
-        final ExecSession session = Exec.session();
-        return MultiTransactionalPageOutput.open(schema, taskIndex, mapWithPluginDelegate(task, session, Function.identity()));
+        final OpenedTask opened = getOpenedTask(taskSource, Exec.session());
+        final SharedExecutor.Lease lease = acquireExecutor(opened.task);
+        try {
+            return MultiTransactionalPageOutput.open(opened.task, schema, taskIndex, opened.delegates, lease);
+        } catch (RuntimeException e) {
+            lease.close();
+            throw e;
+        }
+    }
+
+    private OpenedTask getOpenedTask(TaskSource taskSource, ExecSession session) {
+        final OpenedTask cached = OPENED_TASKS.getIfPresent(taskSource);
+        if (cached != null && cached.session == session) {
+            return cached;
+        }
+        synchronized (OPENED_TASKS) {
+            final OpenedTask current = OPENED_TASKS.getIfPresent(taskSource);
+            if (current != null && current.session == session) {
+                return current;
+            }
+            final TaskMapper taskMapper = CONFIG_MAPPER_FACTORY.createTaskMapper();
+            final PluginTask task = taskMapper.map(taskSource, PluginTask.class);
+            // Outputs detached during the transaction have no task source and are not opened
+            final List<OutputPluginDelegate> delegates = mapWithPluginDelegate(task, session, Function.identity()).stream()
+                    .filter(delegate -> task.getTaskSources().containsKey(delegate.getTag()))
+                    .collect(Collectors.toList());
+            final OpenedTask opened = new OpenedTask(session, task, delegates);
+            OPENED_TASKS.put(taskSource, opened);
+            return opened;
+        }
+    }
+
+    private static SharedExecutor.Lease acquireExecutor(PluginTask task) {
+        return SharedExecutor.acquire(maxThreads(task), task.getUseVirtualThreads());
     }
 
-    private static ConfigDiff buildConfigDiff(List<OutputPluginDelegate.Transaction> transactions) {
+    private static int maxThreads(PluginTask task) {
+        return task.getMaxThreads()
+                .orElse(task.getOutputConfigs().size() + Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    private static Map<String, Optional<Long>> timeoutOptions(PluginTask task) {
+        final Map<String, Optional<Long>> result = new LinkedHashMap<>();
+        result.put("barrier_timeout_seconds", task.getBarrierTimeoutSeconds());
+        result.put("add_timeout_seconds", task.getAddTimeoutSeconds());
+        result.put("commit_timeout_seconds", task.getCommitTimeoutSeconds());
+        return result;
+    }
+
+    private static void validateOutputTasks(PluginTask task, Schema schema) {
+        final ConfigMapper configMapper = CONFIG_MAPPER_FACTORY.createConfigMapper();
+        for (ConfigSource config : task.getOutputConfigs()) {
+            final OutputTask outputTask = configMapper.map(config, OutputTask.class);
+            outputTask.getWhere().ifPresent(where -> WhereClause.compile(where, schema));
+            ColumnProjection.of(outputTask, schema);
+            outputTask.getSpillThreshold().ifPresent(threshold -> ByteSize.parse("spill_threshold", threshold));
+            outputTask.getSample().ifPresent(RowSampler::validate);
+            outputTask.getDedupe().ifPresent(dedupe -> RowDeduplicator.validate(dedupe, schema));
+            if (outputTask.getAggregate().isPresent()) {
+                if (outputTask.getColumns().isPresent() || outputTask.getExcludeColumns().isPresent()
+                        || outputTask.getCoalesceBytes().isPresent() || outputTask.getCoalesceRows().isPresent()) {
+                    throw new ConfigException("'aggregate' can not be used with 'columns', 'exclude_columns', 'coalesce_bytes' or 'coalesce_rows'.");
+                }
+                RowAggregator.of(outputTask.getAggregate().get(), schema);
+            }
+            if (outputTask.getMaxRowsPerSecond().isPresent() && outputTask.getMaxRowsPerSecond().get() < 1) {
+                throw new ConfigException("'max_rows_per_second' must be greater than or equals to 1.");
+            }
+            if (outputTask.getMaxBytesPerSecond().isPresent()
+                    && ByteSize.parse("max_bytes_per_second", outputTask.getMaxBytesPerSecond().get()) < 1) {
+                throw new ConfigException("'max_bytes_per_second' must be greater than or equals to 1.");
+            }
+            if (outputTask.getCoalesceBytes().isPresent()
+                    && ByteSize.parse("coalesce_bytes", outputTask.getCoalesceBytes().get()) > MAX_COALESCE_BYTES) {
+                throw new ConfigException("'coalesce_bytes' must be less than or equals to 1GB.");
+            }
+            if (outputTask.getCoalesceRows().isPresent() && outputTask.getCoalesceRows().get() < 1) {
+                throw new ConfigException("'coalesce_rows' must be greater than or equals to 1.");
+            }
+            if (outputTask.getWriters().isPresent()) {
+                if (outputTask.getWriters().get() < 1) {
+                    throw new ConfigException("'writers' must be greater than or equals to 1.");
+                }
+                if (task.getResumeStatePath().isPresent()) {
+                    // Tasks do not commit the output themselves, so there is no commit of a task to record
+                    throw new ConfigException("'writers' can not be used with 'resume_state_path'.");
+                }
+            }
+            if (outputTask.getPartitionBy().isPresent()) {
+                if (outputTask.getWriters().isPresent() || task.getResumeStatePath().isPresent()) {
+                    throw new ConfigException("'partition_by' can not be used with 'writers' or 'resume_state_path'.");
+                }
+                if (!config.toJson().contains(PartitionedOutputPlugin.PLACEHOLDER)) {
+                    // Every partition would write to the same place otherwise
+                    throw new ConfigException(String.format("'partition_by' needs '%s' in the output's config.", PartitionedOutputPlugin.PLACEHOLDER));
+                }
+                final Schema outputSchema = outputTask.getAggregate().isPresent()
+                        ? RowAggregator.schemaOf(outputTask.getAggregate().get(), schema)
+                        : ColumnProjection.of(outputTask, schema).getSchema();
+                PartitionColumn.of(outputTask.getPartitionBy().get(), outputSchema);
+            }
+        }
+    }
+
+    private static ConfigDiff buildConfigDiff(List<OutputPluginDelegate.Transaction> transactions, AsyncRunControl runControl, int minSuccess) {
         final ConfigDiff configDiff = Exec.newConfigDiff();
         Map<String, ConfigDiff> configDiffs = new HashMap<>();
+        final Set<String> detachedTags = new TreeSet<>(runControl.getDetachedTags());
         for (OutputPluginDelegate.Transaction transaction: transactions) {
             try {
-                configDiffs.put(transaction.getTag(), transaction.getResult());
+                configDiffs.putAll(transaction.getResults());
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 throw new RuntimeException(e);
             } catch (ExecutionException e) {
-                throw new RuntimeException(e.getCause());
+                if (transaction.isRequired()) {
+                    throw new RuntimeException(e.getCause());
+                }
+                detachedTags.add(transaction.getTag());
+            } catch (CancellationException e) {
+                // Stopped at the barrier timeout
+                if (transaction.isRequired()) {
+                    throw new RuntimeException(String.format("Transaction for %s was canceled.", transaction.getTag()), e);
+                }
+                detachedTags.add(transaction.getTag());
             }
         }
+        if (configDiffs.size() < minSuccess) {
+            throw new RuntimeException(String.format("Only %d outputs succeeded while 'min_success' is %d. Detached outputs: %s",
+                    configDiffs.size(), minSuccess, detachedTags));
+        }
+        if (!detachedTags.isEmpty()) {
+            LOGGER.warn("Optional outputs {} failed and were detached.", detachedTags);
+        }
         configDiff.set(CONFIG_NAME_OUTPUT_CONFIG_DIFFS, configDiffs);
+        configDiff.set(CONFIG_NAME_DETACHED_OUTPUTS, new ArrayList<>(detachedTags));
+        final List<TaskReport> taskReports = runControl.getTaskReportsIfCompleted();
+        configDiff.set(CONFIG_NAME_OUTPUT_STATS, summarizeStats(transactions, taskReports));
+        summarizeMemoryBudget(taskReports).ifPresent(summary -> configDiff.set(CONFIG_NAME_MEMORY_BUDGET, summary));
         return configDiff;
+    }
+
+    private static Optional<Map<String, Object>> summarizeMemoryBudget(List<TaskReport> taskReports) {
+        long waitNanos = 0;
+        long maxInflightBytes = 0;
+        long maxInflightPages = 0;
+        boolean budgeted = false;
+        for (TaskReport taskReport : taskReports) {
+            if (!taskReport.has(CONFIG_NAME_MEMORY_BUDGET)) {
+                continue;
+            }
+            final TaskReport stats = taskReport.getNested(CONFIG_NAME_MEMORY_BUDGET);
+            budgeted = true;
+            waitNanos += stats.get(Long.class, "wait_nanos", 0L);
+            maxInflightBytes = Math.max(maxInflightBytes, stats.get(Long.class, "max_inflight_bytes", 0L));
+            maxInflightPages = Math.max(maxInflightPages, stats.get(Long.class, "max_inflight_pages", 0L));
+        }
+        if (!budgeted) {
+            return Optional.empty();
+        }
+        final Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("wait_seconds", waitNanos / 1e9);
+        summary.put("max_inflight_bytes", maxInflightBytes);
+        summary.put("max_inflight_pages", maxInflightPages);
+        LOGGER.info("Memory budget stats: {}", summary);
+        return Optional.of(summary);
+    }
+
+    private static Map<String, Map<String, Object>> summarizeStats(List<OutputPluginDelegate.Transaction> transactions, List<TaskReport> taskReports) {
+        final Map<String, Map<String, Object>> summaries = new LinkedHashMap<>();
+        for (OutputPluginDelegate.Transaction transaction : transactions) {
+            final OutputMetrics metrics = new OutputMetrics();
+            for (TaskReport taskReport : taskReports) {
+                final TaskReport stats = taskReport.get(TaskReports.class, CONFIG_NAME_OUTPUT_TASK_REPORTS).getStats(transaction.getTag());
+                if (stats != null) {
+                    metrics.merge(OutputMetrics.fromTaskReport(stats));
+                }
+            }
+            final Map<String, Object> summary = metrics.toSummary();
+            LOGGER.info("Output stats for {}: {}", transaction.getTag(), summary);
+            summaries.put(transaction.getTag(), summary);
+        }
+        return summaries;
     }    private <T> List<T> mapWithPluginDelegate(PluginTask task, ExecSession session, Function<OutputPluginDelegate, T> action) {
-        List<T> result = new ArrayList<>();
-        for (int i = 0; i < task.getOutputConfigs().size(); i++) {
+        final int size = task.getOutputConfigs().size();
+        final String[] tags = new String[size];
+        for (int i = 0; i < size; i++) {
             final ConfigSource config = task.getOutputConfigs().get(i);
             final String pluginTypeName = config.get(String.class, "type");
-            
-            // Embulk 0.10.43での正しいプラグインローディング方法
-            final OutputPlugin outputPlugin;
-            try {
-                // ExecSessionInternalを使用してプラグインを取得
-                final ExecSessionInternal sessionInternal = (ExecSessionInternal) session;
-                outputPlugin = sessionInternal.newPlugin(OutputPlugin.class, 
-                    DefaultPluginType.create(pluginTypeName));
-                LOGGER.debug("Successfully loaded output plugin: {}", pluginTypeName);
-            } catch (Exception e) {
-                LOGGER.error("Failed to load output plugin: " + pluginTypeName, e);
-                throw new RuntimeException("Plugin loading failed for: " + pluginTypeName, e);
-            }
-
-            final String tag = String.format("%s_%d", pluginTypeName, i);
+            tags[i] = String.format("%s_%d", pluginTypeName, i);
 
             // Merge ConfigDiff if exists
             if (task.getOutputConfigDiffs().isPresent()) {
-                final ConfigDiff configDiff = task.getOutputConfigDiffs().get().get(tag);
+                final ConfigDiff configDiff = task.getOutputConfigDiffs().get().get(tags[i]);
                 if (configDiff != null) {
                     config.merge(configDiff);
                 } else {
-                    LOGGER.debug("ConfigDiff for '{}' not found.", tag);
+                    LOGGER.debug("ConfigDiff for '{}' not found.", tags[i]);
                 }
             }
+        }
+        final Map<Integer, List<Integer>> formatterGroups = groupByFormatter(task);
+        final Map<Integer, TeeFileOutputPlugin> tees = new HashMap<>();
+        for (List<Integer> group : formatterGroups.values().stream().distinct().collect(Collectors.toList())) {
+            final List<String> memberTags = group.stream().map(member -> tags[member]).collect(Collectors.toList());
+            final Optional<TeeFileOutputPlugin> tee = newTeeFileOutputPlugin(task, session, group, memberTags);
+            if (tee.isPresent()) {
+                LOGGER.debug("Outputs {} share one formatter.", memberTags);
+                tees.put(group.get(0), tee.get());
+            } else {
+                // Not file outputs, so each member runs with its own formatter
+                group.forEach(formatterGroups::remove);
+            }
+        }
+
+        List<T> result = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            final List<Integer> group = formatterGroups.get(i);
+            final ConfigSource config = task.getOutputConfigs().get(i);
+            final String tag;
+            final OutputPlugin outputPlugin;
+            if (group == null) {
+                tag = tags[i];
+                outputPlugin = newOutputPlugin(session, config.get(String.class, "type"));
+            } else if (group.get(0) == i) {
+                outputPlugin = tees.get(i);
+                tag = TeeFileOutputPlugin.tagOf(group.stream().map(member -> tags[member]).collect(Collectors.toList()));
+            } else {
+                // Run by the first member of the group
+                continue;
+            }
+
             // Set TaskSource if exists
             TaskSource taskSource = null;
             if (task.getTaskSources() != null) {
                 taskSource = task.getTaskSources().get(tag);
             }
 
-            result.add(action.apply(new OutputPluginDelegate(tag, outputPlugin, config, taskSource)));
+            final OutputTask outputTask = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, OutputTask.class);
+            final OutputPlugin delegatePlugin = outputTask.getPartitionBy()
+                    .<OutputPlugin>map(partitionBy -> new PartitionedOutputPlugin(outputPlugin, partitionBy,
+                            maxThreads(task), task.getUseVirtualThreads(), task.getQueueSize()))
+                    .orElse(outputPlugin);
+            result.add(action.apply(new OutputPluginDelegate(tag, i, delegatePlugin, config, outputTask, taskSource)));
         }
         return result;
     }
+
+    private static OutputPlugin newOutputPlugin(ExecSession session, String pluginTypeName) {
+        // Embulk 0.10.43での正しいプラグインローディング方法
+        try {
+            // ExecSessionInternalを使用してプラグインを取得
+            final ExecSessionInternal sessionInternal = (ExecSessionInternal) session;
+            final OutputPlugin outputPlugin = sessionInternal.newPlugin(OutputPlugin.class,
+                DefaultPluginType.create(pluginTypeName));
+            LOGGER.debug("Successfully loaded output plugin: {}", pluginTypeName);
+            return outputPlugin;
+        } catch (Exception e) {
+            LOGGER.error("Failed to load output plugin: " + pluginTypeName, e);
+            throw new RuntimeException("Plugin loading failed for: " + pluginTypeName, e);
+        }
+    }
+
+    /**
+     * Groups the outputs which have the same formatter and nothing else applied by this plugin, by the first member's position.
+     */
+    private static Map<Integer, List<Integer>> groupByFormatter(PluginTask task) {
+        final Map<Integer, List<Integer>> result = new HashMap<>();
+        if (!task.getShareFormatter() || task.getRouting().map(routing -> !RowRouter.MODE_BROADCAST.equals(routing.getMode())).orElse(false)) {
+            return result;
+        }
+        final Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < task.getOutputConfigs().size(); i++) {
+            final ConfigSource config = task.getOutputConfigs().get(i);
+            if (!config.has("formatter")
+                    || !config.get(List.class, "encoders", Collections.emptyList()).isEmpty()
+                    || OUTPUT_OPTION_NAMES.stream().anyMatch(config::has)) {
+                continue;
+            }
+            groups.computeIfAbsent(config.getNested("formatter").toJson(), key -> new ArrayList<>()).add(i);
+        }
+        for (List<Integer> group : groups.values()) {
+            if (group.size() > 1) {
+                group.forEach(i -> result.put(i, group));
+            }
+        }
+        return result;
+    }
+
+    private static Optional<TeeFileOutputPlugin> newTeeFileOutputPlugin(PluginTask task, ExecSession session, List<Integer> group, List<String> memberTags) {
+        final ExecSessionInternal sessionInternal = (ExecSessionInternal) session;
+        final List<FileOutputPlugin> plugins = new ArrayList<>();
+        final List<ConfigSource> configs = new ArrayList<>();
+        for (int i : group) {
+            final ConfigSource config = task.getOutputConfigs().get(i);
+            try {
+                plugins.add(sessionInternal.newPlugin(FileOutputPlugin.class, DefaultPluginType.create(config.get(String.class, "type"))));
+            } catch (Exception e) {
+                LOGGER.debug("Output {} is not a file output.", memberTags, e);
+                return Optional.empty();
+            }
+            configs.add(config);
+        }
+        final String formatterTypeName = configs.get(0).getNested("formatter").get(String.class, "type");
+        final FormatterPlugin formatter = sessionInternal.newPlugin(FormatterPlugin.class, DefaultPluginType.create(formatterTypeName));
+        return Optional.of(new TeeFileOutputPlugin(memberTags, plugins, configs, formatter));
+    }
+
+    private static class OpenedTask {
+        private final ExecSession session;
+        private final PluginTask task;
+        private final List<OutputPluginDelegate> delegates;
+
+        private OpenedTask(ExecSession session, PluginTask task, List<OutputPluginDelegate> delegates) {
+            this.session = session;
+            this.task = task;
+            this.delegates = Collections.unmodifiableList(delegates);
+        }
+    }
 }
@@ -2,80 +2,393 @@ package org.embulk.output.multi;
 
 import org.embulk.config.TaskReport;
 import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
 import org.embulk.spi.Exec;
 import org.embulk.spi.Page;
+import org.embulk.spi.PageReader;
 import org.embulk.spi.Schema;
 import org.embulk.spi.TransactionalPageOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class MultiTransactionalPageOutput implements TransactionalPageOutput {
     private static final Logger LOGGER = LoggerFactory.getLogger(MultiTransactionalPageOutput.class);
+    // Page size of re-packed outputs that coalesce by rows only
+    private static final long ROWS_ONLY_COALESCE_PAGE_SIZE = 4 * 1024 * 1024;
+    // Pages held in memory for a throttled output without 'spill_threshold' before the rest are spilled
+    static final long THROTTLED_SPILL_THRESHOLD = 64L * 1024 * 1024;
     private final int taskIndex;
+    private final int minSuccess;
     private final List<Delegate> delegates;
+    private final List<Delegate> pageDelegates;
+    private final List<Delegate> rowDelegates;
+    // Optional outputs that failed on this task and no longer receive pages
+    private final List<String> failedTags;
+    private final PageReader reader;
+    // With hash routing, the delegate of each position in 'outputs', or null if it takes no rows on this task
+    private final RowRouter router;
+    private final Delegate[] routes;
+    private final CommitLedger ledger;
+    private final SharedExecutor.Lease executorLease;
+    // Credit for the pages held by the outputs, shared by the tasks of the job; null without 'max_inflight_bytes'
+    private final MemoryBudget budget;
+    private long budgetWaitNanos;
+    private long maxInflightBytes;
+    private long maxInflightPages;
 
-    static MultiTransactionalPageOutput open(Schema schema, int taskIndex, List<OutputPluginDelegate> plugins) {
-        return new MultiTransactionalPageOutput(
-                taskIndex,
-                plugins.stream()
-                        .map(plugin -> new Delegate(plugin, plugin.open(schema, taskIndex)))
-                        .collect(Collectors.toList())
-        );
+    static MultiTransactionalPageOutput open(MultiOutputPlugin.PluginTask task, Schema schema, int taskIndex,
+                                             List<OutputPluginDelegate> plugins, SharedExecutor.Lease executorLease) {
+        final CommitLedger ledger = CommitLedger.of(task).orElse(null);
+        final RowRouter router = task.getRouting().map(routing -> RowRouter.of(routing, schema)).orElse(null);
+        final Delegate[] routes = router != null ? new Delegate[task.getOutputConfigs().size()] : null;
+        final List<Delegate> delegates = new ArrayList<>();
+        final List<String> failedTags = new ArrayList<>();
+        try {
+            for (OutputPluginDelegate plugin : plugins) {
+                // Outputs which committed this task on a previous attempt are not opened again
+                final Optional<TaskReport> committedReport = ledger != null ? ledger.find(plugin.getTag(), taskIndex) : Optional.empty();
+                if (committedReport.isPresent()) {
+                    LOGGER.info("Output {} has already committed index {}. It is skipped.", plugin.getTag(), taskIndex);
+                    delegates.add(Delegate.committed(plugin, committedReport.get()));
+                    continue;
+                }
+                try {
+                    final Delegate delegate = Delegate.open(task, plugin, schema, taskIndex, executorLease, router != null);
+                    delegates.add(delegate);
+                    if (routes != null) {
+                        routes[plugin.getIndex()] = delegate;
+                    }
+                } catch (RuntimeException e) {
+                    if (plugin.isRequired()) {
+                        throw e;
+                    }
+                    LOGGER.warn(String.format("Optional output %s failed to open on index %d. It is detached.", plugin.getTag(), taskIndex), e);
+                    failedTags.add(plugin.getTag());
+                }
+            }
+            final MemoryBudget budget = task.getMaxInflightBytes()
+                    .map(bytes -> MemoryBudget.acquire(task.getJobId(), ByteSize.parse("max_inflight_bytes", bytes)))
+                    .orElse(null);
+            try {
+                return new MultiTransactionalPageOutput(schema, taskIndex, task.getMinSuccess(), delegates, failedTags,
+                        router, routes, ledger, executorLease, budget);
+            } catch (RuntimeException e) {
+                if (budget != null) {
+                    budget.release();
+                }
+                throw e;
+            }
+        } catch (RuntimeException | Error e) {
+            // The outputs opened so far hold workers, spill files, filters and shared buckets
+            for (Delegate delegate : delegates) {
+                closeOnFailure(delegate, taskIndex);
+            }
+            throw e;
+        }
     }
 
-    private MultiTransactionalPageOutput(int taskIndex, List<Delegate> delegates) {
+    private MultiTransactionalPageOutput(Schema schema, int taskIndex, int minSuccess, List<Delegate> delegates, List<String> failedTags,
+                                         RowRouter router, Delegate[] routes, CommitLedger ledger, SharedExecutor.Lease executorLease,
+                                         MemoryBudget budget) {
         this.taskIndex = taskIndex;
+        this.budget = budget;
+        this.router = router;
+        this.routes = routes;
+        this.ledger = ledger;
+        this.minSuccess = minSuccess;
+        this.executorLease = executorLease;
         this.delegates = delegates;
+        this.pageDelegates = delegates.stream().filter(delegate -> delegate.receivesPages() && !delegate.readsRows()).collect(Collectors.toList());
+        this.rowDelegates = delegates.stream().filter(Delegate::readsRows).collect(Collectors.toList());
+        this.failedTags = failedTags;
+        checkMinSuccess();
+        this.reader = rowDelegates.isEmpty() ? null : Exec.getPageReader(schema);
     }
 
     @Override
     public void add(Page page) {
-        applyToAllPlugins(delegate -> delegate.add(copyPage(page)));
-        page.release();
+        // The task thread holds one reference itself so that the page outlives the row dispatch below.
+        final SharedPage sharedPage = budget != null
+                ? SharedPage.wrap(page, pageDelegates.size() + 1, reserve(page))
+                : SharedPage.wrap(page, pageDelegates.size() + 1);
+        final Map<Delegate, Exception> failures = new LinkedHashMap<>();
+        try {
+            if (reader != null) {
+                dispatchRows(sharedPage.view(), failures);
+            }
+            applyToPlugins(pageDelegates, delegate -> delegate.add(sharedPage), failures);
+        } finally {
+            sharedPage.release();
+        }
+        handleFailures(failures, true);
+    }
+
+    // Waits for credit for the page and returns what gives it back
+    private Runnable reserve(Page page) {
+        final long bytes = page.buffer().limit();
+        try {
+            budgetWaitNanos += budget.reserve(bytes);
+        } catch (RuntimeException e) {
+            page.release();
+            throw e;
+        }
+        maxInflightBytes = Math.max(maxInflightBytes, budget.getInflightBytes());
+        maxInflightPages = Math.max(maxInflightPages, budget.getInflightPages());
+        return () -> budget.free(bytes);
+    }
+
+    private void dispatchRows(Page page, Map<Delegate, Exception> failures) {
+        if (router != null) {
+            routeRows(page, failures);
+            return;
+        }
+        final boolean[] failed = new boolean[rowDelegates.size()];
+        reader.setPage(page);
+        while (reader.nextRecord()) {
+            for (int i = 0; i < failed.length; i++) {
+                if (failed[i]) {
+                    continue;
+                }
+                final Delegate delegate = rowDelegates.get(i);
+                try {
+                    delegate.addRow(reader);
+                } catch (Exception e) {
+                    failed[i] = true;
+                    failures.put(delegate, e);
+                }
+            }
+        }
+    }
+
+    private void routeRows(Page page, Map<Delegate, Exception> failures) {
+        reader.setPage(page);
+        while (reader.nextRecord()) {
+            // Rows of outputs that were detached or have already committed this task are dropped
+            final Delegate delegate = routes[router.route(reader, routes.length)];
+            if (delegate == null || failures.containsKey(delegate)) {
+                continue;
+            }
+            try {
+                delegate.addRow(reader);
+            } catch (Exception e) {
+                failures.put(delegate, e);
+            }
+        }
     }
 
     @Override
     public void finish() {
-        applyToAllPlugins(Delegate::finish);
+        applyToAllPluginsConcurrently(Delegate::finish, true);
     }
 
     @Override
     public void close() {
-        applyToAllPlugins(Delegate::close);
+        try {
+            applyToAllPluginsConcurrently(Delegate::close, false);
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+            if (budget != null) {
+                budget.release();
+            }
+            executorLease.close();
+        }
     }
 
     @Override
     public void abort() {
-        applyToAllPlugins(Delegate::abort);
+        applyToAllPluginsConcurrently(Delegate::abort, false);
     }
 
     @Override
     public TaskReport commit() {
-        final Map<String, TaskReport> reports = new HashMap<>();
-        applyToAllPlugins(delegate -> reports.put(delegate.getTag(), delegate.commit()));
+        final Map<String, TaskReport> reports = new ConcurrentHashMap<>();
+        final Map<String, TaskReport> stats = new ConcurrentHashMap<>();
+        applyToAllPluginsConcurrently(delegate -> {
+            final TaskReport taskReport = delegate.commit();
+            reports.put(delegate.getTag(), taskReport);
+            stats.put(delegate.getTag(), delegate.getStats());
+            if (ledger != null && !delegate.isRestored()) {
+                recordCommit(delegate, taskReport);
+            }
+        }, true);
         final TaskReport report = Exec.newTaskReport();
-        report.set(MultiOutputPlugin.CONFIG_NAME_OUTPUT_TASK_REPORTS, new TaskReports(reports));
+        report.set(MultiOutputPlugin.CONFIG_NAME_OUTPUT_TASK_REPORTS, new TaskReports(reports, stats, failedTags));
+        if (budget != null) {
+            final TaskReport budgetStats = Exec.newTaskReport();
+            budgetStats.set("wait_nanos", budgetWaitNanos);
+            budgetStats.set("max_inflight_bytes", maxInflightBytes);
+            budgetStats.set("max_inflight_pages", maxInflightPages);
+            report.set(MultiOutputPlugin.CONFIG_NAME_MEMORY_BUDGET, budgetStats);
+        }
         return report;
     }
 
-    private void applyToAllPlugins(Consumer<Delegate> command) {
-        final List<OutputPluginDelegate> errorPlugins = new ArrayList<>();
-        for (Delegate delegate : delegates) {
+    private void recordCommit(Delegate delegate, TaskReport taskReport) {
+        try {
+            ledger.record(delegate.getTag(), taskIndex, taskReport);
+        } catch (RuntimeException e) {
+            // The output has committed anyway; it would only be fed again if the task is resumed
+            LOGGER.warn(String.format("Failed to record the commit of %s on index %d.", delegate.getTag(), taskIndex), e);
+        }
+    }
+
+    /**
+     * Runs a lifecycle call of every delegate at the same time, so that the task ends after the slowest output
+     * instead of after the sum of them. The task thread takes the first delegate itself. The calls wait for the page
+     * workers of their outputs, so they run on the blocking executor rather than taking the workers' threads.
+     */
+    private void applyToAllPluginsConcurrently(Consumer<Delegate> command, boolean detachOptional) {
+        final Map<Delegate, Exception> failures = new LinkedHashMap<>();
+        if (delegates.size() < 2) {
+            applyToPlugins(delegates, command, failures);
+            handleFailures(failures, detachOptional);
+            return;
+        }
+        final Exception[] errors = new Exception[delegates.size()];
+        final List<Future<?>> futures = new ArrayList<>(delegates.size() - 1);
+        for (int i = 1; i < delegates.size(); i++) {
+            final int index = i;
+            futures.add(executorLease.getBlockingExecutorService().submit(() -> {
+                try {
+                    command.accept(delegates.get(index));
+                } catch (Exception e) {
+                    errors[index] = e;
+                }
+            }));
+        }
+        try {
+            command.accept(delegates.get(0));
+        } catch (Exception e) {
+            errors[0] = e;
+        }
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // Every delegate must have finished its call before the result is reported
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        for (int i = 0; i < errors.length; i++) {
+            if (errors[i] != null) {
+                failures.put(delegates.get(i), errors[i]);
+            }
+        }
+        handleFailures(failures, detachOptional);
+    }
+
+    private void applyToPlugins(List<Delegate> targets, Consumer<Delegate> command, Map<Delegate, Exception> failures) {
+        for (Delegate delegate : targets) {
             try {
                 command.accept(delegate);
             } catch (Exception e) {
-                LOGGER.warn(String.format("Output for %s on index %d failed.", delegate.plugin.getTag(), taskIndex), e);
+                failures.put(delegate, e);
+            }
+        }
+    }
+
+    /**
+     * Fails the task for required outputs. Optional outputs are detached instead: their output is aborted and they
+     * receive nothing more on this task, unless the task is ending anyway. Only a detach can break 'min_success', so
+     * abort and close of a task that already failed on it do not fail again.
+     */
+    private void handleFailures(Map<Delegate, Exception> failures, boolean detachOptional) {
+        final List<OutputPluginDelegate> errorPlugins = new ArrayList<>();
+        boolean detached = false;
+        for (Map.Entry<Delegate, Exception> failure : failures.entrySet()) {
+            final Delegate delegate = failure.getKey();
+            logFailure(delegate, failure.getValue());
+            if (delegate.plugin.isRequired()) {
                 errorPlugins.add(delegate.plugin);
+            } else if (detachOptional) {
+                detach(delegate);
+                detached = true;
             }
         }
+        throwIfFailed(errorPlugins);
+        if (detached) {
+            checkMinSuccess();
+        }
+    }
 
+    private void detach(Delegate delegate) {
+        LOGGER.warn("Optional output {} is detached on index {}.", delegate.getTag(), taskIndex);
+        delegates.remove(delegate);
+        pageDelegates.remove(delegate);
+        rowDelegates.remove(delegate);
+        if (routes != null) {
+            routes[delegate.plugin.getIndex()] = null;
+        }
+        failedTags.add(delegate.getTag());
+        try {
+            delegate.abort();
+        } catch (Exception e) {
+            LOGGER.warn(String.format("Failed to abort detached output %s on index %d.", delegate.getTag(), taskIndex), e);
+        } finally {
+            try {
+                delegate.close();
+            } catch (Exception e) {
+                LOGGER.warn(String.format("Failed to close detached output %s on index %d.", delegate.getTag(), taskIndex), e);
+            }
+        }
+    }
+
+    private static void closeOnFailure(Delegate delegate, int taskIndex) {
+        try {
+            delegate.abort();
+        } catch (Exception e) {
+            LOGGER.warn(String.format("Failed to abort output %s on index %d.", delegate.getTag(), taskIndex), e);
+        } finally {
+            try {
+                delegate.close();
+            } catch (Exception e) {
+                LOGGER.warn(String.format("Failed to close output %s on index %d.", delegate.getTag(), taskIndex), e);
+            }
+        }
+    }
+
+    private void checkMinSuccess() {
+        // A delegate of outputs sharing a formatter counts as its members
+        final int outputs = delegates.stream().mapToInt(delegate -> TeeFileOutputPlugin.memberCountOf(delegate.getTag())).sum();
+        if (outputs < minSuccess) {
+            throw new RuntimeException(String.format(
+                    "Only %d outputs are left on index %d while 'min_success' is %d. Failed outputs: [%s]",
+                    outputs, taskIndex, minSuccess, String.join(", ", failedTags)));
+        }
+    }
+
+    private void logFailure(Delegate delegate, Exception e) {
+        LOGGER.warn(String.format("Output for %s on index %d failed.", delegate.plugin.getTag(), taskIndex), e);
+    }
+
+    private void throwIfFailed(List<OutputPluginDelegate> errorPlugins) {
         if (!errorPlugins.isEmpty()) {
             throw new RuntimeException(
                     String.format("Following plugins failed to output [%s] on index %d",
@@ -85,24 +398,213 @@ public class MultiTransactionalPageOutput implements TransactionalPageOutput {
         }
     }
 
-    private static Page copyPage(Page original) {
-        final Buffer originalBuffer = original.buffer();
-        final Buffer copiedBuffer = Buffer.wrap(originalBuffer.array(), originalBuffer.offset(), originalBuffer.capacity());
-        copiedBuffer.limit(originalBuffer.limit());
-
-        final Page copiedPage = Page.wrap(copiedBuffer);
-        copiedPage.setStringReferences(new ArrayList<>(original.getStringReferences()));
-        copiedPage.setValueReferences(new ArrayList<>(original.getValueReferences()));
-        return copiedPage;
-    }
-
     static class Delegate implements TransactionalPageOutput {
         private final OutputPluginDelegate plugin;
         private final TransactionalPageOutput output;
+        private final AsyncPageOutput asyncOutput;
+        private final RowFilter filter;
+        // Also part of the filter; closed with the delegate to give back a shared Bloom filter
+        private final RowDeduplicator deduplicator;
+        private final PageRepacker repacker;
+        // Takes the rows instead of the repacker with 'aggregate'
+        private final RowAggregator aggregator;
+        private final OutputMetrics metrics;
+        private final boolean restored;
+        private volatile boolean committed;
 
-        private Delegate(OutputPluginDelegate plugin, TransactionalPageOutput output) {
+        private Delegate(OutputPluginDelegate plugin, TransactionalPageOutput output, AsyncPageOutput asyncOutput,
+                         ColumnProjection projection, RowFilter filter, RowDeduplicator deduplicator, RowAggregator aggregator,
+                         OutputMetrics metrics, long coalesceBytes, long coalesceRows, boolean copyRows) {
+            this.deduplicator = deduplicator;
+            this.aggregator = aggregator;
             this.plugin = plugin;
-            this.output = output;
+            this.restored = false;
+            this.committed = false;
+            this.metrics = metrics;
+            this.output = asyncOutput != null ? asyncOutput : output;
+            this.asyncOutput = asyncOutput;
+            this.filter = filter;
+            final boolean coalesce = coalesceBytes != Long.MAX_VALUE || coalesceRows != Long.MAX_VALUE;
+            if (aggregator != null) {
+                this.repacker = null;
+            } else if (filter != null || !projection.isIdentity() || copyRows || coalesce) {
+                // Rows are copied through PageReader and PageBuilder, into larger pages to coalesce them
+                final BufferAllocator allocator = coalesce
+                        ? new CoalescingBufferAllocator(coalesceBytes != Long.MAX_VALUE ? coalesceBytes : ROWS_ONLY_COALESCE_PAGE_SIZE)
+                        : Exec.getBufferAllocator();
+                this.repacker = new PageRepacker(projection, allocator, coalesceRows, this.output::add);
+            } else {
+                this.repacker = null;
+            }
+        }
+
+        // Stands for an output which committed the task on a previous attempt
+        private Delegate(OutputPluginDelegate plugin, TaskReport report) {
+            this.plugin = plugin;
+            this.restored = true;
+            this.committed = true;
+            this.metrics = new OutputMetrics();
+            this.output = new CommittedPageOutput(report);
+            this.asyncOutput = null;
+            this.filter = null;
+            this.deduplicator = null;
+            this.repacker = null;
+            this.aggregator = null;
+        }
+
+        static Delegate open(MultiOutputPlugin.PluginTask task, OutputPluginDelegate plugin, Schema schema, int taskIndex,
+                             SharedExecutor.Lease lease, boolean routed) {
+            final Executor executor = lease.getExecutorService();
+            final RowFilter where = plugin.getOutputTask().getWhere()
+                    .map(clause -> WhereClause.compile(clause, schema))
+                    .orElse(null);
+            final RowFilter sample = plugin.getOutputTask().getSample()
+                    .map(sampleTask -> RowSampler.of(sampleTask, taskIndex))
+                    .orElse(null);
+            final ColumnProjection projection = plugin.getProjection(schema);
+            final Optional<Long> spillThreshold = plugin.getOutputTask().getSpillThreshold()
+                    .map(threshold -> ByteSize.parse("spill_threshold", threshold));
+            final OutputMetrics metrics = new OutputMetrics();
+            final MultiOutputPlugin.OutputTask outputTask = plugin.getOutputTask();
+            final boolean throttled = outputTask.getMaxRowsPerSecond().isPresent() || outputTask.getMaxBytesPerSecond().isPresent();
+            final Supplier<TransactionalPageOutput> opener;
+            if (outputTask.getWriters().isPresent()) {
+                final WriterPool writerPool = WriterPool.get(WriterPool.keyOf(task.getJobId(), plugin.getTag()));
+                // A worker of this output waits for the writer's queue, so the writers' workers run on the blocking executor
+                opener = () -> writerPool.join(taskIndex, writerIndex -> plugin.open(schema, writerIndex, task.getJfrEvents()),
+                        lease.getBlockingExecutorService(), task.getQueueSize());
+            } else {
+                opener = () -> plugin.open(schema, taskIndex, task.getJfrEvents());
+            }
+            final long coalesceBytes = plugin.getOutputTask().getCoalesceBytes()
+                    .map(bytes -> ByteSize.parse("coalesce_bytes", bytes))
+                    .orElse(Long.MAX_VALUE);
+            final long coalesceRows = plugin.getOutputTask().getCoalesceRows().orElse(Long.MAX_VALUE);
+            final RowAggregator aggregator = plugin.getOutputTask().getAggregate()
+                    .map(aggregate -> RowAggregator.of(aggregate, schema))
+                    .orElse(null);
+            final RowDeduplicator deduplicator = plugin.getOutputTask().getDedupe()
+                    .map(dedupe -> RowDeduplicator.open(dedupe, schema, task.getJobId() + "/" + plugin.getTag()))
+                    .orElse(null);
+            // Rows matching the where clause are deduplicated, then sampled
+            RowFilter filter = where;
+            for (RowFilter next : new RowFilter[] {deduplicator, sample}) {
+                if (next != null) {
+                    filter = filter != null ? filter.and(next) : next;
+                }
+            }
+            // Whatever is acquired below is given back if a later step fails; the throttled output owns the bucket
+            TokenBucket bucket = null;
+            ThrottledPageOutput throttledOutput = null;
+            TransactionalPageOutput output = null;
+            AsyncPageOutput asyncOutput = null;
+            try {
+                if (throttled) {
+                    // All tasks of the job in this JVM share the limit of the output
+                    bucket = TokenBucket.acquire(
+                            task.getJobId() + "/" + plugin.getTag(),
+                            outputTask.getMaxRowsPerSecond().orElse(0L),
+                            outputTask.getMaxBytesPerSecond().map(bytes -> ByteSize.parse("max_bytes_per_second", bytes)).orElse(0L));
+                }
+                output = outputTask.getLazyOpen() ? new LazyPageOutput(opener) : opener.get();
+                if (task.getAddTimeoutSeconds().isPresent() || task.getCommitTimeoutSeconds().isPresent()) {
+                    output = new WatchedPageOutput(output, plugin.getTag(), taskIndex,
+                            task.getAddTimeoutSeconds().orElse(0L), task.getCommitTimeoutSeconds().orElse(0L));
+                }
+                output = new InstrumentedPageOutput(output, metrics);
+                if (bucket != null) {
+                    throttledOutput = new ThrottledPageOutput(output, bucket, metrics);
+                    output = throttledOutput;
+                    bucket = null;
+                }
+                asyncOutput = asyncOutputOf(output, executor, task.getQueueSize(), task.getParallel(), throttledOutput,
+                        task.getAddTimeoutSeconds().orElse(0L), spillThreshold, () -> {
+                            final Path spillDirectory = task.getSpillDirectory().map(Paths::get)
+                                    .orElseGet(() -> Paths.get(System.getProperty("java.io.tmpdir")));
+                            final String prefix = String.format("embulk-output-multi-%s-%d-%s", plugin.getTag(), taskIndex, UUID.randomUUID());
+                            return new PageSpillFile(spillDirectory, prefix);
+                        });
+                // A writer holds pages of a task after the task has moved on, so it is given copied rows
+                return new Delegate(plugin, output, asyncOutput, projection, filter, deduplicator, aggregator, metrics,
+                        coalesceBytes, coalesceRows, routed || outputTask.getWriters().isPresent());
+            } catch (RuntimeException | Error e) {
+                try {
+                    final TransactionalPageOutput opened = asyncOutput != null ? asyncOutput : output;
+                    if (opened != null) {
+                        try {
+                            opened.abort();
+                        } catch (RuntimeException suppressed) {
+                            e.addSuppressed(suppressed);
+                        } finally {
+                            try {
+                                opened.close();
+                            } catch (RuntimeException suppressed) {
+                                e.addSuppressed(suppressed);
+                            }
+                        }
+                    }
+                } finally {
+                    if (bucket != null) {
+                        bucket.release();
+                    }
+                    if (deduplicator != null) {
+                        deduplicator.close();
+                    }
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Returns the worker of an output, or null if the output is called on the task's thread. A throttled output
+         * is paced by its worker and falls behind by design, so it spills beyond {@link #THROTTLED_SPILL_THRESHOLD} unless 'spill_threshold' is
+         * set: a bounded queue would fill up and hold back add() of the other outputs. With an add timeout the output
+         * always gets a worker, so that it can be abandoned when a call ignores the interrupt of the watchdog.
+         */
+        static AsyncPageOutput asyncOutputOf(TransactionalPageOutput output, Executor executor, int queueSize, boolean parallel,
+                                             AsyncPageOutput.Pacer pacer, long addTimeoutSeconds, Optional<Long> spillThreshold,
+                                             Supplier<PageSpillFile> spillFile) {
+            if (spillThreshold.isPresent() || pacer != null) {
+                return new AsyncPageOutput(output, executor, queueSize, spillFile.get(), spillThreshold.orElse(THROTTLED_SPILL_THRESHOLD),
+                        addTimeoutSeconds, pacer);
+            } else if (parallel || addTimeoutSeconds > 0) {
+                return new AsyncPageOutput(output, executor, queueSize, null, Long.MAX_VALUE, addTimeoutSeconds);
+            }
+            return null;
+        }
+
+        static Delegate committed(OutputPluginDelegate plugin, TaskReport report) {
+            return new Delegate(plugin, report);
+        }
+
+        TaskReport getStats() {
+            if (asyncOutput != null) {
+                metrics.recordSpill(asyncOutput.getSpilledPages(), asyncOutput.getSpilledBytes());
+            }
+            return metrics.toTaskReport(Exec.newTaskReport());
+        }
+
+        boolean readsRows() {
+            return repacker != null || aggregator != null;
+        }
+
+        boolean receivesPages() {
+            return !restored;
+        }
+
+        boolean isRestored() {
+            return restored;
+        }
+
+        void addRow(PageReader reader) {
+            if (filter != null && !filter.test(reader)) {
+                return;
+            }
+            if (aggregator != null) {
+                aggregator.add(reader);
+            } else {
+                repacker.addRow(reader);
+            }
         }
 
         @Override
@@ -110,28 +612,112 @@ public class MultiTransactionalPageOutput implements TransactionalPageOutput {
             output.add(page);
         }
 
+        void add(SharedPage sharedPage) {
+            if (asyncOutput != null) {
+                asyncOutput.add(sharedPage.view(), sharedPage::release);
+                return;
+            }
+            try {
+                output.add(sharedPage.view());
+            } finally {
+                sharedPage.release();
+            }
+        }
+
         @Override
         public void finish() {
+            if (aggregator != null) {
+                aggregator.emit(Exec.getBufferAllocator(), output::add);
+            }
+            if (repacker != null) {
+                repacker.finish();
+            }
             output.finish();
         }
 
         @Override
         public void close() {
-            output.close();
+            try {
+                if (repacker != null) {
+                    repacker.close();
+                }
+            } finally {
+                try {
+                    output.close();
+                } finally {
+                    if (deduplicator != null) {
+                        deduplicator.close();
+                    }
+                }
+            }
         }
 
         @Override
         public void abort() {
-            output.abort();
+            // Another output may fail after this one committed; its output must not be rolled back then
+            if (!committed) {
+                output.abort();
+            }
         }
 
         @Override
         public TaskReport commit() {
-            return output.commit();
+            final TaskReport report = output.commit();
+            committed = true;
+            return report;
         }
 
         String getTag() {
             return plugin.getTag();
         }
     }
+
+    private static class CoalescingBufferAllocator implements BufferAllocator {
+        private final BufferAllocator allocator = Exec.getBufferAllocator();
+        private final int pageSize;
+
+        private CoalescingBufferAllocator(long pageSize) {
+            this.pageSize = (int) pageSize;
+        }
+
+        @Override
+        public Buffer allocate() {
+            return allocator.allocate(pageSize);
+        }
+
+        @Override
+        public Buffer allocate(int minimumCapacity) {
+            return allocator.allocate(Math.max(minimumCapacity, pageSize));
+        }
+    }
+
+    private static class CommittedPageOutput implements TransactionalPageOutput {
+        private final TaskReport report;
+
+        private CommittedPageOutput(TaskReport report) {
+            this.report = report;
+        }
+
+        @Override
+        public void add(Page page) {
+            page.release();
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public TaskReport commit() {
+            return report;
+        }
+    }
 }
@@ -0,0 +1,73 @@
+package org.embulk.output.multi;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder events of the calls into outputs, emitted with 'jfr_events: true'. They are recorded by any
+ * running recording, e.g. one started by -XX:StartFlightRecording, and cost a check of a flag otherwise.
+ */
+final class OutputEvents {
+    private OutputEvents() {
+    }
+
+    @Category({"Embulk", "Multi Output"})
+    abstract static class OutputEvent extends Event {
+        @Label("Tag")
+        String tag;
+
+        @Label("Task Index")
+        int taskIndex;
+    }
+
+    @Name("org.embulk.output.multi.Add")
+    @Label("Output Add")
+    @Description("A page added to an output")
+    static class AddEvent extends OutputEvent {
+        @Label("Rows")
+        int rows;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("org.embulk.output.multi.Finish")
+    @Label("Output Finish")
+    static class FinishEvent extends OutputEvent {
+    }
+
+    @Name("org.embulk.output.multi.Commit")
+    @Label("Output Commit")
+    static class CommitEvent extends OutputEvent {
+    }
+
+    @Name("org.embulk.output.multi.Abort")
+    @Label("Output Abort")
+    static class AbortEvent extends OutputEvent {
+    }
+
+    @Name("org.embulk.output.multi.Open")
+    @Label("Output Open")
+    static class OpenEvent extends OutputEvent {
+    }
+
+    @Name("org.embulk.output.multi.Transaction")
+    @Label("Output Transaction")
+    @Description("The transaction or resume of an output, which spans the run of all tasks")
+    @Category({"Embulk", "Multi Output"})
+    static class TransactionEvent extends Event {
+        @Label("Tag")
+        String tag;
+
+        @Label("Resumed")
+        boolean resumed;
+
+        @Label("Task Count")
+        int taskCount;
+    }
+}
@@ -0,0 +1,137 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Buffer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Throughput and latency of one output, measured around the calls into the output itself.
+ * Updated by one thread at a time; the owner publishes it through the worker hand-off before reading it.
+ */
+class OutputMetrics {
+    private long tasks;
+    private long pages;
+    private long rows;
+    private long bytes;
+    private long addNanos;
+    private long finishNanos;
+    private long commitNanos;
+    private long spilledPages;
+    private long spilledBytes;
+    private long throttleNanos;
+    private final LatencyHistogram addLatency;
+
+    OutputMetrics() {
+        this(0, new LatencyHistogram());
+    }
+
+    private OutputMetrics(long tasks, LatencyHistogram addLatency) {
+        this.tasks = tasks;
+        this.addLatency = addLatency;
+    }
+
+    void recordAdd(int pageRows, int pageBytes, long nanos) {
+        pages++;
+        rows += pageRows;
+        bytes += pageBytes;
+        addNanos += nanos;
+        addLatency.record(nanos);
+    }
+
+    void recordFinish(long nanos) {
+        finishNanos += nanos;
+    }
+
+    void recordCommit(long nanos) {
+        commitNanos += nanos;
+    }
+
+    void recordThrottle(long nanos) {
+        throttleNanos += nanos;
+    }
+
+    void recordSpill(long pages, long bytes) {
+        spilledPages = pages;
+        spilledBytes = bytes;
+    }
+
+    TaskReport toTaskReport(TaskReport report) {
+        report.set("pages", pages);
+        report.set("rows", rows);
+        report.set("bytes", bytes);
+        report.set("add_nanos", addNanos);
+        report.set("finish_nanos", finishNanos);
+        report.set("commit_nanos", commitNanos);
+        report.set("add_latency_max_nanos", addLatency.getMax());
+        report.set("add_latency_histogram", addLatency.getCounts());
+        report.set("spilled_pages", spilledPages);
+        report.set("spilled_bytes", spilledBytes);
+        report.set("throttle_wait_nanos", throttleNanos);
+        return report;
+    }
+
+    static OutputMetrics fromTaskReport(TaskReport report) {
+        final OutputMetrics metrics = new OutputMetrics(1, LatencyHistogram.of(
+                report.get(long[].class, "add_latency_histogram", new long[0]),
+                report.get(Long.class, "add_latency_max_nanos", 0L)
+        ));
+        metrics.pages = report.get(Long.class, "pages", 0L);
+        metrics.rows = report.get(Long.class, "rows", 0L);
+        metrics.bytes = report.get(Long.class, "bytes", 0L);
+        metrics.addNanos = report.get(Long.class, "add_nanos", 0L);
+        metrics.finishNanos = report.get(Long.class, "finish_nanos", 0L);
+        metrics.commitNanos = report.get(Long.class, "commit_nanos", 0L);
+        metrics.spilledPages = report.get(Long.class, "spilled_pages", 0L);
+        metrics.spilledBytes = report.get(Long.class, "spilled_bytes", 0L);
+        metrics.throttleNanos = report.get(Long.class, "throttle_wait_nanos", 0L);
+        return metrics;
+    }
+
+    void merge(OutputMetrics other) {
+        tasks += other.tasks;
+        pages += other.pages;
+        rows += other.rows;
+        bytes += other.bytes;
+        addNanos += other.addNanos;
+        finishNanos += other.finishNanos;
+        commitNanos += other.commitNanos;
+        spilledPages += other.spilledPages;
+        spilledBytes += other.spilledBytes;
+        throttleNanos += other.throttleNanos;
+        addLatency.merge(other.addLatency);
+    }
+
+    Map<String, Object> toSummary() {
+        final Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("tasks", tasks);
+        summary.put("pages", pages);
+        summary.put("rows", rows);
+        summary.put("bytes", bytes);
+        summary.put("add_seconds", addNanos / 1e9);
+        summary.put("finish_seconds", finishNanos / 1e9);
+        summary.put("commit_seconds", commitNanos / 1e9);
+        summary.put("rows_per_add_second", addNanos > 0 ? rows * 1e9 / addNanos : 0.0);
+        summary.put("add_latency_p50_nanos", addLatency.getPercentile(50));
+        summary.put("add_latency_p99_nanos", addLatency.getPercentile(99));
+        summary.put("add_latency_max_nanos", addLatency.getMax());
+        summary.put("spilled_pages", spilledPages);
+        summary.put("spilled_bytes", spilledBytes);
+        summary.put("throttle_wait_seconds", throttleNanos / 1e9);
+        return summary;
+    }
+
+    // The first four bytes of a page hold its record count in little endian.
+    static int recordCount(Buffer buffer) {
+        if (buffer.limit() < 4) {
+            return 0;
+        }
+        final byte[] array = buffer.array();
+        final int offset = buffer.offset();
+        return (array[offset] & 0xff)
+                | (array[offset + 1] & 0xff) << 8
+                | (array[offset + 2] & 0xff) << 16
+                | (array[offset + 3] & 0xff) << 24;
+    }
+}
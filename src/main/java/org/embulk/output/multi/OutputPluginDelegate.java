@@ -1,6 +1,5 @@
 package org.embulk.output.multi;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.embulk.config.ConfigDiff;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskReport;
@@ -11,102 +10,231 @@ import org.embulk.spi.TransactionalPageOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 class OutputPluginDelegate {
     private static final Logger LOGGER = LoggerFactory.getLogger(OutputPluginDelegate.class);
-    private static final String THREAD_NAME_FORMAT = "multi-output-plugin-%s-%%d";
     private final String tag;
+    private final int index;
     private final OutputPlugin plugin;
     private final ConfigSource config;
+    private final MultiOutputPlugin.OutputTask outputTask;
     private final TaskSource taskSource;
-    private final ExecutorService executorService;
+    // Delegates are reused by every #open of a task source, which all pass the same schema
+    private volatile Map.Entry<Schema, ColumnProjection> projection;
+    private volatile Map.Entry<Schema, Schema> outputSchema;
 
     OutputPluginDelegate(
             String tag,
+            int index,
             OutputPlugin plugin,
             ConfigSource config,
+            MultiOutputPlugin.OutputTask outputTask,
             TaskSource taskSource
     ) {
         this.tag = tag;
+        this.index = index;
         this.plugin = plugin;
-        this.config = config;
+        this.config = withoutOutputOptions(config);
+        this.outputTask = outputTask;
         this.taskSource = taskSource;
-        this.executorService = Executors.newSingleThreadExecutor(
-                new ThreadFactoryBuilder().setNameFormat(String.format(THREAD_NAME_FORMAT, tag)).build()
-        );
     }
 
-    Transaction transaction(Schema schema, int taskCount, AsyncRunControl runControl) {
-        return new Transaction(executorService.submit(() -> {
+    Transaction transaction(Schema schema, int taskCount, AsyncRunControl runControl, ExecutorService executorService, boolean recordEvents) {
+        final int outputTaskCount = WriterPool.writerCount(outputTask, taskCount);
+        final Future<ConfigDiff> future = executorService.submit(() -> {
+            runControl.started(getTag());
             try {
                 LOGGER.debug("Run #transaction for {}", getTag());
-                return plugin.transaction(config, schema, taskCount, new Control(runControl));
+                return record(recordEvents, false, outputTaskCount,
+                        () -> plugin.transaction(config, getOutputSchema(schema), outputTaskCount, new Control(runControl, outputTaskCount)));
             } catch (CancellationException e) {
                 LOGGER.error("Canceled #transaction for {} by other plugin's error", getTag());
                 throw e;
             } catch (Exception e) {
-                LOGGER.error("Transaction for {} failed.", getTag(), e);
-                runControl.cancel();
+                if (isRequired()) {
+                    LOGGER.error("Transaction for {} failed.", getTag(), e);
+                    runControl.cancel();
+                } else {
+                    LOGGER.warn("Transaction for optional output {} failed. It is detached.", getTag(), e);
+                    runControl.detach(getTag());
+                }
                 throw e;
-            } finally {
-                executorService.shutdown();
             }
-        }));
+        });
+        runControl.track(getTag(), future);
+        return new Transaction(future);
     }
 
-    Transaction resume(Schema schema, int taskCount, AsyncRunControl runControl) {
-        return new Transaction(executorService.submit(() -> {
+    Transaction resume(Schema schema, int taskCount, AsyncRunControl runControl, ExecutorService executorService, boolean recordEvents) {
+        final Future<ConfigDiff> future = executorService.submit(() -> {
+            runControl.started(getTag());
             try {
                 LOGGER.debug("Run #resume for {}", getTag());
-                return plugin.resume(taskSource, schema, taskCount, new Control(runControl));
+                return record(recordEvents, true, taskCount, () -> plugin.resume(taskSource, getOutputSchema(schema), taskCount, new Control(runControl, taskCount)));
             } catch (CancellationException e) {
                 LOGGER.error("Canceled #resume for {} by other plugin's error", getTag());
                 throw e;
             } catch (Exception e) {
-                LOGGER.error("Resume for {} failed.", getTag(), e);
-                runControl.cancel();
+                if (isRequired()) {
+                    LOGGER.error("Resume for {} failed.", getTag(), e);
+                    runControl.cancel();
+                } else {
+                    LOGGER.warn("Resume for optional output {} failed. It is detached.", getTag(), e);
+                    runControl.detach(getTag());
+                }
                 throw e;
-            } finally {
-                executorService.shutdown();
             }
-        }));
+        });
+        runControl.track(getTag(), future);
+        return new Transaction(future);
     }
 
-    void cleanup(Schema schema, int taskCount, List<TaskReport> successTaskReports) {
+    void cleanup(Schema schema, int taskCount, List<TaskReport> successTaskReports, String jobId) {
         LOGGER.debug("Run #cleanup for {}", getTag());
+        if (outputTask.getWriters().isPresent()) {
+            // The output ran one task per writer, which reported to the transaction instead of the tasks of the job
+            final Optional<List<TaskReport>> writerReports = WriterPool.takeReports(WriterPool.keyOf(jobId, tag));
+            if (!writerReports.isPresent()) {
+                LOGGER.info("Skip #cleanup for {} since its writers were not committed in this JVM.", getTag());
+                return;
+            }
+            plugin.cleanup(taskSource, getOutputSchema(schema), writerReports.get().size(), writerReports.get());
+            return;
+        }
         List<TaskReport> successReportsForPlugin = new ArrayList<>();
         for (TaskReport successTaskReport : successTaskReports) {
-            final TaskReport report = successTaskReport.get(TaskReports.class, MultiOutputPlugin.CONFIG_NAME_OUTPUT_TASK_REPORTS).get(tag);
-            successReportsForPlugin.add(report);
+            final TaskReports reports = successTaskReport.get(TaskReports.class, MultiOutputPlugin.CONFIG_NAME_OUTPUT_TASK_REPORTS);
+            if (reports.isFailed(tag) || reports.get(tag) == null) {
+                LOGGER.info("Skip #cleanup for {} since it was detached.", getTag());
+                return;
+            }
+            successReportsForPlugin.add(reports.get(tag));
         }
-        plugin.cleanup(taskSource, schema, taskCount, successReportsForPlugin);
+        plugin.cleanup(taskSource, getOutputSchema(schema), taskCount, successReportsForPlugin);
     }
 
-    TransactionalPageOutput open(Schema schema, int taskIndex) {
+    TransactionalPageOutput open(Schema schema, int taskIndex, boolean recordEvents) {
         LOGGER.debug("Run #open for {}", getTag());
-        return plugin.open(taskSource, schema, taskIndex);
+        if (!recordEvents) {
+            return plugin.open(taskSource, getOutputSchema(schema), taskIndex);
+        }
+        final OutputEvents.OpenEvent event = new OutputEvents.OpenEvent();
+        event.begin();
+        final TransactionalPageOutput output = plugin.open(taskSource, getOutputSchema(schema), taskIndex);
+        event.end();
+        if (event.shouldCommit()) {
+            event.tag = tag;
+            event.taskIndex = taskIndex;
+            event.commit();
+        }
+        return new RecordedPageOutput(output, tag, taskIndex);
     }
 
     String getTag() {
         return tag;
     }
 
+    // Position of the output in 'outputs'
+    int getIndex() {
+        return index;
+    }
+
+    boolean isRequired() {
+        return outputTask.getRequired();
+    }
+
+    MultiOutputPlugin.OutputTask getOutputTask() {
+        return outputTask;
+    }
+
+    ColumnProjection getProjection(Schema inputSchema) {
+        final Map.Entry<Schema, ColumnProjection> cached = projection;
+        if (cached != null && cached.getKey().equals(inputSchema)) {
+            return cached.getValue();
+        }
+        final ColumnProjection result = ColumnProjection.of(outputTask, inputSchema);
+        projection = new AbstractMap.SimpleImmutableEntry<>(inputSchema, result);
+        return result;
+    }
+
+    // Schema the output is given: the aggregated rows with 'aggregate', the projected columns otherwise
+    Schema getOutputSchema(Schema inputSchema) {
+        if (!outputTask.getAggregate().isPresent()) {
+            return getProjection(inputSchema).getSchema();
+        }
+        final Map.Entry<Schema, Schema> cached = outputSchema;
+        if (cached != null && cached.getKey().equals(inputSchema)) {
+            return cached.getValue();
+        }
+        final Schema result = RowAggregator.schemaOf(outputTask.getAggregate().get(), inputSchema);
+        outputSchema = new AbstractMap.SimpleImmutableEntry<>(inputSchema, result);
+        return result;
+    }
+
+    private ConfigDiff record(boolean recordEvents, boolean resumed, int taskCount, Callable<ConfigDiff> transaction) throws Exception {
+        if (!recordEvents) {
+            return transaction.call();
+        }
+        final OutputEvents.TransactionEvent event = new OutputEvents.TransactionEvent();
+        event.begin();
+        try {
+            return transaction.call();
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.tag = tag;
+                event.resumed = resumed;
+                event.taskCount = taskCount;
+                event.commit();
+            }
+        }
+    }
+
+    private static ConfigSource withoutOutputOptions(ConfigSource config) {
+        final ConfigSource result = config.deepCopy();
+        for (String name : MultiOutputPlugin.OUTPUT_OPTION_NAMES) {
+            result.remove(name);
+        }
+        return result;
+    }
+
     private class Control implements OutputPlugin.Control {
         private final AsyncRunControl runControl;
+        private final int taskCount;
 
-        Control(AsyncRunControl runControl) {
+        Control(AsyncRunControl runControl, int taskCount) {
             this.runControl = runControl;
+            this.taskCount = taskCount;
         }
 
         @Override
         public List<TaskReport> run(TaskSource taskSource) {
+            if (!outputTask.getWriters().isPresent()) {
+                return runTasks(taskSource);
+            }
+            // The writers must be there before the tasks, which start once every output has arrived here
+            final WriterPool writerPool = WriterPool.create(WriterPool.keyOf(runControl.getTask().getJobId(), tag), taskCount);
+            try {
+                runTasks(taskSource);
+            } catch (RuntimeException e) {
+                writerPool.abort();
+                throw e;
+            }
+            return writerPool.commit();
+        }
+
+        private List<TaskReport> runTasks(TaskSource taskSource) {
             runControl.addTaskSource(tag, taskSource);
             List<TaskReport> reports;
             try {
@@ -120,8 +248,12 @@ class OutputPluginDelegate {
 
             final List<TaskReport> result = new ArrayList<>();
             for (TaskReport taskReport : reports) {
-                final TaskReport report = taskReport.get(TaskReports.class, MultiOutputPlugin.CONFIG_NAME_OUTPUT_TASK_REPORTS).get(tag);
-                result.add(report);
+                final TaskReports taskReports = taskReport.get(TaskReports.class, MultiOutputPlugin.CONFIG_NAME_OUTPUT_TASK_REPORTS);
+                if (taskReports.isFailed(tag)) {
+                    // Fails the transaction of the output so that its partial result is not committed
+                    throw new RuntimeException(String.format("Output %s failed on some tasks and was detached.", tag));
+                }
+                result.add(taskReports.get(tag));
             }
             return result;
         }
@@ -138,8 +270,20 @@ class OutputPluginDelegate {
             return OutputPluginDelegate.this.getTag();
         }
 
+        boolean isRequired() {
+            return OutputPluginDelegate.this.isRequired();
+        }
+
         ConfigDiff getResult() throws ExecutionException, InterruptedException {
             return future.get();
         }
+
+        // Config diffs by the tag of each output in 'outputs', which differs from this transaction's for a shared formatter
+        Map<String, ConfigDiff> getResults() throws ExecutionException, InterruptedException {
+            if (plugin instanceof TeeFileOutputPlugin) {
+                return ((TeeFileOutputPlugin) plugin).getMemberConfigDiffs(getResult());
+            }
+            return Collections.singletonMap(getTag(), getResult());
+        }
     }
 }
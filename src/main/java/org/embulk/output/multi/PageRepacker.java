@@ -0,0 +1,131 @@
+package org.embulk.output.multi;
+
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Column;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+
+import java.util.function.Consumer;
+
+class PageRepacker {
+    private final PageBuilder pageBuilder;
+    private final ColumnCopier[] copiers;
+    private final long maxRows;
+    // Rows in the page being built; PageBuilder also flushes by itself when the buffer is full
+    private long rows;
+
+    PageRepacker(ColumnProjection projection, Consumer<Page> output) {
+        this(projection, Exec.getBufferAllocator(), Long.MAX_VALUE, output);
+    }
+
+    /**
+     * Builds pages from buffers of the given allocator and flushes them at {@code maxRows} records at the latest.
+     */
+    PageRepacker(ColumnProjection projection, BufferAllocator allocator, long maxRows, Consumer<Page> output) {
+        final Schema schema = projection.getSchema();
+        this.maxRows = maxRows;
+        this.pageBuilder = Exec.getPageBuilder(allocator, schema, new PageOutput() {
+            @Override
+            public void add(Page page) {
+                rows -= OutputMetrics.recordCount(page.buffer());
+                output.accept(page);
+            }
+
+            @Override
+            public void finish() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        this.copiers = new ColumnCopier[schema.getColumnCount()];
+        for (int i = 0; i < copiers.length; i++) {
+            copiers[i] = copier(projection.getSourceColumns().get(i), schema.getColumn(i));
+        }
+    }
+
+    void addRow(PageReader reader) {
+        for (ColumnCopier copier : copiers) {
+            copier.copy(reader, pageBuilder);
+        }
+        rows++;
+        pageBuilder.addRecord();
+        if (rows >= maxRows) {
+            pageBuilder.flush();
+        }
+    }
+
+    void finish() {
+        pageBuilder.finish();
+    }
+
+    void close() {
+        pageBuilder.close();
+    }
+
+    private static ColumnCopier copier(Column source, Column target) {
+        final Type type = source.getType();
+        if (Types.BOOLEAN.equals(type)) {
+            return (reader, builder) -> {
+                if (reader.isNull(source)) {
+                    builder.setNull(target);
+                } else {
+                    builder.setBoolean(target, reader.getBoolean(source));
+                }
+            };
+        } else if (Types.LONG.equals(type)) {
+            return (reader, builder) -> {
+                if (reader.isNull(source)) {
+                    builder.setNull(target);
+                } else {
+                    builder.setLong(target, reader.getLong(source));
+                }
+            };
+        } else if (Types.DOUBLE.equals(type)) {
+            return (reader, builder) -> {
+                if (reader.isNull(source)) {
+                    builder.setNull(target);
+                } else {
+                    builder.setDouble(target, reader.getDouble(source));
+                }
+            };
+        } else if (Types.STRING.equals(type)) {
+            return (reader, builder) -> {
+                if (reader.isNull(source)) {
+                    builder.setNull(target);
+                } else {
+                    builder.setString(target, reader.getString(source));
+                }
+            };
+        } else if (Types.TIMESTAMP.equals(type)) {
+            return (reader, builder) -> {
+                if (reader.isNull(source)) {
+                    builder.setNull(target);
+                } else {
+                    builder.setTimestamp(target, reader.getTimestampInstant(source));
+                }
+            };
+        } else if (Types.JSON.equals(type)) {
+            return (reader, builder) -> {
+                if (reader.isNull(source)) {
+                    builder.setNull(target);
+                } else {
+                    builder.setJson(target, reader.getJson(source));
+                }
+            };
+        }
+        throw new IllegalArgumentException("Unsupported column type: " + type);
+    }
+
+    @FunctionalInterface
+    private interface ColumnCopier {
+        void copy(PageReader reader, PageBuilder builder);
+    }
+}
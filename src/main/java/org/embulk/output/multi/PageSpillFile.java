@@ -0,0 +1,239 @@
+package org.embulk.output.multi;
+
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Page;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.ImmutableValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Append-only spill area made of segment files. Pages are written by the task thread and read back in the
+ * same order by the output's worker; a segment file is closed and deleted as soon as all of its pages have
+ * been read. Segments are accessed with positional reads and writes rather than mapped, because a mapping
+ * is only released by the garbage collector and would keep the memory and the deleted file until then.
+ */
+class PageSpillFile implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PageSpillFile.class);
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final Path directory;
+    private final String prefix;
+    private final int segmentSize;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private Segment writing;
+    private int nextSegmentId;
+    private long spilledPages;
+    private long spilledBytes;
+    private boolean closed;
+
+    PageSpillFile(Path directory, String prefix) {
+        this(directory, prefix, DEFAULT_SEGMENT_SIZE);
+    }
+
+    PageSpillFile(Path directory, String prefix, int segmentSize) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+    }
+
+    synchronized Entry write(Page page) {
+        if (closed) {
+            throw new IllegalStateException("Spill file is already closed.");
+        }
+        final byte[] record = encode(page);
+        if (writing == null || writing.size + record.length > Math.max(segmentSize, record.length)) {
+            if (writing != null) {
+                writing.sealed = true;
+                removeIfDrained(writing);
+            }
+            writing = newSegment();
+            segments.addLast(writing);
+        }
+        final long position = writing.size;
+        writing.write(record);
+        writing.written++;
+        spilledPages++;
+        spilledBytes += record.length;
+        return new Entry(writing, position, record.length);
+    }
+
+    Page read(Entry entry) {
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Spill file is already closed.");
+            }
+        }
+        final Page page = decode(entry.segment.read(entry.position, entry.length));
+        synchronized (this) {
+            entry.segment.read++;
+            removeIfDrained(entry.segment);
+        }
+        return page;
+    }
+
+    private void removeIfDrained(Segment segment) {
+        if (segment.sealed && segment.read == segment.written) {
+            segment.delete();
+            segments.remove(segment);
+        }
+    }
+
+    synchronized long getSpilledPages() {
+        return spilledPages;
+    }
+
+    synchronized long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        writing = null;
+        while (!segments.isEmpty()) {
+            segments.pollFirst().delete();
+        }
+    }
+
+    private Segment newSegment() {
+        final Path path = directory.resolve(String.format("%s-%d.spill", prefix, nextSegmentId++));
+        try {
+            Files.createDirectories(directory);
+            final FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            LOGGER.debug("Spilling pages to {}", path);
+            return new Segment(path, channel);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] encode(Page page) {
+        final Buffer buffer = page.buffer();
+        try (MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            packer.packBinaryHeader(buffer.limit());
+            packer.writePayload(buffer.array(), buffer.offset(), buffer.limit());
+            final List<String> strings = page.getStringReferences();
+            packer.packArrayHeader(strings.size());
+            for (String string : strings) {
+                packer.packString(string);
+            }
+            final List<ImmutableValue> values = page.getValueReferences();
+            packer.packArrayHeader(values.size());
+            for (ImmutableValue value : values) {
+                packer.packValue(value);
+            }
+            return packer.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Page decode(byte[] bytes) {
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(bytes)) {
+            final byte[] data = new byte[unpacker.unpackBinaryHeader()];
+            unpacker.readPayload(data);
+            final int stringCount = unpacker.unpackArrayHeader();
+            final List<String> strings = new ArrayList<>(stringCount);
+            for (int i = 0; i < stringCount; i++) {
+                strings.add(unpacker.unpackString());
+            }
+            final int valueCount = unpacker.unpackArrayHeader();
+            final List<ImmutableValue> values = new ArrayList<>(valueCount);
+            for (int i = 0; i < valueCount; i++) {
+                values.add(unpacker.unpackValue());
+            }
+
+            final Buffer buffer = Buffer.wrap(data, 0, data.length);
+            buffer.limit(data.length);
+            final Page page = Page.wrap(buffer);
+            page.setStringReferences(strings);
+            page.setValueReferences(values);
+            return page;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        private long size;
+        private int written;
+        private int read;
+        private boolean sealed;
+        private boolean deleted;
+
+        private Segment(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+
+        private void write(byte[] record) {
+            final ByteBuffer buffer = ByteBuffer.wrap(record);
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, size + buffer.position());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            size += record.length;
+        }
+
+        // Positional reads do not move the channel's position, so they can run while the task thread writes
+        private byte[] read(long position, int length) {
+            final ByteBuffer buffer = ByteBuffer.allocate(length);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException(String.format("Spill file %s ends before its page.", path));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return buffer.array();
+        }
+
+        private void delete() {
+            if (deleted) {
+                return;
+            }
+            deleted = true;
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOGGER.warn(String.format("Failed to delete spill file %s.", path), e);
+            }
+        }
+    }
+
+    static class Entry {
+        private final Segment segment;
+        private final long position;
+        private final int length;
+
+        private Entry(Segment segment, long position, int length) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+    }
+}
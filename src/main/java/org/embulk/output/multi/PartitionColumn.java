@@ -0,0 +1,100 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.embulk.util.timestamp.TimestampFormatter;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Column of {@code partition_by}, read as the text that replaces {@code ${partition}} in the output's config.
+ * Timestamps are formatted with {@code format} in {@code time_zone}; null values belong to the partition "null".
+ * Values are sanitized, since they end up in paths, table names and queries of the output.
+ */
+class PartitionColumn {
+    static final String NULL_PARTITION = "null";
+
+    private final Column column;
+    private final TimestampFormatter formatter;
+
+    private PartitionColumn(Column column, TimestampFormatter formatter) {
+        this.column = column;
+        this.formatter = formatter;
+    }
+
+    /**
+     * Resolves the column in the schema given to the output, i.e. after 'columns' or 'aggregate'.
+     */
+    static PartitionColumn of(MultiOutputPlugin.PartitionTask task, Schema schema) {
+        final Column column = schema.getColumns().stream()
+                .filter(c -> c.getName().equals(task.getColumn()))
+                .findFirst()
+                .orElseThrow(() -> new ConfigException(String.format("Column '%s' of 'partition_by' is not found.", task.getColumn())));
+        if (Types.JSON.equals(column.getType())) {
+            throw new ConfigException(String.format("Column '%s' of 'partition_by' must not be json.", task.getColumn()));
+        }
+        if (task.getMaxOpen() < 1) {
+            throw new ConfigException("'max_open' of 'partition_by' must be greater than or equals to 1.");
+        }
+        if (task.getMaxPartitions() < task.getMaxOpen()) {
+            // A task can not buffer more partitions than the job has
+            throw new ConfigException("'max_partitions' of 'partition_by' must be greater than or equals to 'max_open'.");
+        }
+        TimestampFormatter formatter = null;
+        if (Types.TIMESTAMP.equals(column.getType())) {
+            try {
+                formatter = TimestampFormatter.builder(task.getFormat(), true)
+                        .setDefaultZoneFromString(task.getTimeZone())
+                        .build();
+            } catch (RuntimeException e) {
+                throw new ConfigException(String.format("Invalid 'format' or 'time_zone' of 'partition_by': %s", e.getMessage()), e);
+            }
+        }
+        return new PartitionColumn(column, formatter);
+    }
+
+    String valueOf(PageReader reader) {
+        if (reader.isNull(column)) {
+            return NULL_PARTITION;
+        }
+        if (Types.STRING.equals(column.getType())) {
+            return sanitize(reader.getString(column));
+        } else if (Types.LONG.equals(column.getType())) {
+            return String.valueOf(reader.getLong(column));
+        } else if (Types.DOUBLE.equals(column.getType())) {
+            return sanitize(String.valueOf(reader.getDouble(column)));
+        } else if (Types.BOOLEAN.equals(column.getType())) {
+            return String.valueOf(reader.getBoolean(column));
+        }
+        return sanitize(formatter.format(reader.getTimestampInstant(column)));
+    }
+
+    /**
+     * Percent-encodes the UTF-8 bytes of the value other than {@code [A-Za-z0-9_.-]}, so that a value can not add
+     * a directory, quote or the like to the config. Values that are empty or name a directory by themselves, i.e.
+     * {@code .} and {@code ..}, are rejected. The value "null" is written as {@code %6Eull}, so that it does not share
+     * the partition of null values.
+     */
+    static String sanitize(String value) {
+        if (value.isEmpty() || value.equals(".") || value.equals("..")) {
+            throw new DataException(String.format("'%s' can not be the value of a partition of 'partition_by'.", value));
+        }
+        if (value.equals(NULL_PARTITION)) {
+            return "%6E" + NULL_PARTITION.substring(1);
+        }
+        final StringBuilder result = new StringBuilder(value.length());
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            final int c = b & 0xff;
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '.' || c == '-') {
+                result.append((char) c);
+            } else {
+                result.append(String.format("%%%02X", c));
+            }
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,452 @@
+package org.embulk.output.multi;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Exec;
+import org.embulk.spi.OutputPlugin;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalPageOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * An output whose rows are split by the value of a column. Each value is written by its own transaction of the output,
+ * with {@code ${partition}} in the output's config replaced by the value. The transaction of a partition is started by
+ * the first task that meets its value and runs until the tasks of this plugin have finished, so every task must run
+ * in the JVM of the transaction. A partition has one writer, opened by its first task and fed by every task through
+ * its bounded queue like the writers of {@link WriterPool}; a task buffers rows for at most {@code max_open}
+ * partitions and flushes the least recently used one to its writer to buffer another. A job has at most
+ * {@code max_partitions} partitions, each of which holds a thread for its transaction until the job commits.
+ */
+class PartitionedOutputPlugin implements OutputPlugin {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PartitionedOutputPlugin.class);
+    static final String PLACEHOLDER = "${partition}";
+    // Config diffs by partition
+    private static final String CONFIG_NAME_PARTITIONS = "partitions";
+    private static final String CONFIG_NAME_KEY = "partitions_key";
+    // Tasks of the transaction of a partition, i.e. its writer
+    private static final int WRITER_COUNT = 1;
+    private static final Map<String, Partitions> PARTITIONS = new HashMap<>();
+
+    private final OutputPlugin plugin;
+    private final MultiOutputPlugin.PartitionTask partitionTask;
+    private final int maxThreads;
+    private final boolean virtualThreads;
+    private final int queueSize;
+
+    /**
+     * @param maxThreads bound of the page workers of the shared executor
+     */
+    PartitionedOutputPlugin(OutputPlugin plugin, MultiOutputPlugin.PartitionTask partitionTask,
+                            int maxThreads, boolean virtualThreads, int queueSize) {
+        this.plugin = plugin;
+        this.partitionTask = partitionTask;
+        this.maxThreads = maxThreads;
+        this.virtualThreads = virtualThreads;
+        this.queueSize = queueSize;
+    }
+
+    @Override
+    public ConfigDiff transaction(ConfigSource config, Schema schema, int taskCount, OutputPlugin.Control control) {
+        final Partitions partitions = new Partitions(config, schema);
+        try {
+            final TaskSource taskSource = Exec.newTaskSource();
+            taskSource.set(CONFIG_NAME_KEY, partitions.key);
+            control.run(taskSource);
+        } catch (RuntimeException e) {
+            partitions.abort(e);
+            throw e;
+        }
+        final ConfigDiff configDiff = Exec.newConfigDiff();
+        configDiff.set(CONFIG_NAME_PARTITIONS, partitions.commit());
+        return configDiff;
+    }
+
+    @Override
+    public ConfigDiff resume(TaskSource taskSource, Schema schema, int taskCount, OutputPlugin.Control control) {
+        // The transactions of the partitions ended with the previous attempt
+        throw new ConfigException("'partition_by' can not be resumed. Run the job again.");
+    }
+
+    @Override
+    public void cleanup(TaskSource taskSource, Schema schema, int taskCount, List<TaskReport> successTaskReports) {
+        final Partitions partitions;
+        synchronized (PARTITIONS) {
+            partitions = PARTITIONS.remove(taskSource.get(String.class, CONFIG_NAME_KEY));
+        }
+        if (partitions == null) {
+            LOGGER.info("Skip #cleanup of the partitions since they were not committed in this JVM.");
+            return;
+        }
+        partitions.cleanup();
+    }
+
+    @Override
+    public TransactionalPageOutput open(TaskSource taskSource, Schema schema, int taskIndex) {
+        return new PartitionedPageOutput(taskSource, schema, taskIndex, PartitionColumn.of(partitionTask, schema));
+    }
+
+    /**
+     * Returns an output of a task that feeds the writer of the partition of the value, starting the transaction of
+     * the partition on the first call. A task joins again each time it buffers rows of the partition again, which
+     * takes no task index of the partition.
+     */
+    TransactionalPageOutput join(TaskSource taskSource, String value, int taskIndex) {
+        final Partitions partitions;
+        synchronized (PARTITIONS) {
+            partitions = PARTITIONS.get(taskSource.get(String.class, CONFIG_NAME_KEY));
+        }
+        if (partitions == null) {
+            throw new IllegalStateException("Partitions are not found in this JVM. 'partition_by' needs every task to run in the JVM of the transaction.");
+        }
+        return partitions.get(value).join(taskIndex);
+    }
+
+    // Replaces the placeholder in every string of the config
+    private static JsonNode substitute(JsonNode node, String value) {
+        if (node.isTextual()) {
+            return TextNode.valueOf(node.textValue().replace(PLACEHOLDER, value));
+        } else if (node.isObject()) {
+            final ObjectNode result = JsonNodeFactory.instance.objectNode();
+            final Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                final Map.Entry<String, JsonNode> field = fields.next();
+                result.set(field.getKey(), substitute(field.getValue(), value));
+            }
+            return result;
+        } else if (node.isArray()) {
+            final ArrayNode result = JsonNodeFactory.instance.arrayNode();
+            for (JsonNode element : node) {
+                result.add(substitute(element, value));
+            }
+            return result;
+        }
+        return node;
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Transactions of the partitions of one transaction of this plugin, kept in the JVM until its cleanup.
+     */
+    private class Partitions {
+        private final String key = UUID.randomUUID().toString();
+        private final ConfigSource template;
+        // Config diffs of the previous run by partition, merged into the config of each partition
+        private final ConfigSource previousConfigDiffs;
+        private final Schema schema;
+        private final Map<String, Partition> partitions = new LinkedHashMap<>();
+        // Each transaction holds a thread of the unbounded executor until the tasks have finished
+        private final SharedExecutor.Lease lease = SharedExecutor.acquire(maxThreads, virtualThreads);
+
+        Partitions(ConfigSource config, Schema schema) {
+            this.template = config.deepCopy();
+            this.template.remove(CONFIG_NAME_PARTITIONS);
+            this.previousConfigDiffs = config.has(CONFIG_NAME_PARTITIONS) ? config.getNested(CONFIG_NAME_PARTITIONS) : null;
+            this.schema = schema;
+            synchronized (PARTITIONS) {
+                PARTITIONS.put(key, this);
+            }
+        }
+
+        /**
+         * Returns the partition of the value, starting its transaction on the first call.
+         */
+        synchronized Partition get(String value) {
+            Partition partition = partitions.get(value);
+            if (partition == null) {
+                if (partitions.size() >= partitionTask.getMaxPartitions()) {
+                    throw new ConfigException(String.format(
+                            "Column '%s' has more than %d values. Raise 'max_partitions' of 'partition_by'.",
+                            partitionTask.getColumn(), partitionTask.getMaxPartitions()));
+                }
+                LOGGER.debug("Start the transaction of partition {}.", value);
+                partition = new Partition(value);
+                partition.start(configOf(value));
+                partitions.put(value, partition);
+            }
+            return partition;
+        }
+
+        /**
+         * Commits the writer of each partition after all tasks have succeeded and returns the config diffs of their
+         * transactions.
+         */
+        synchronized ConfigDiff commit() {
+            try {
+                for (Partition partition : partitions.values()) {
+                    partition.commit();
+                }
+                final ConfigDiff configDiffs = Exec.newConfigDiff();
+                RuntimeException error = null;
+                for (Partition partition : partitions.values()) {
+                    try {
+                        configDiffs.setNested(partition.value, await(partition.transaction));
+                    } catch (RuntimeException e) {
+                        LOGGER.error(String.format("Transaction of partition %s failed.", partition.value), e);
+                        error = error != null ? error : e;
+                    }
+                }
+                if (error != null) {
+                    forget();
+                    throw error;
+                }
+                return configDiffs;
+            } finally {
+                lease.close();
+            }
+        }
+
+        /**
+         * Aborts the writers and fails the transaction of every partition after the tasks have failed.
+         */
+        synchronized void abort(Throwable cause) {
+            forget();
+            try {
+                for (Partition partition : partitions.values()) {
+                    partition.abort(cause);
+                }
+                for (Partition partition : partitions.values()) {
+                    try {
+                        await(partition.transaction);
+                    } catch (RuntimeException e) {
+                        LOGGER.debug("Transaction of partition {} was rolled back.", partition.value, e);
+                    }
+                }
+            } finally {
+                lease.close();
+            }
+        }
+
+        synchronized void cleanup() {
+            for (Partition partition : partitions.values()) {
+                plugin.cleanup(await(partition.taskSource), schema, WRITER_COUNT, partition.reports);
+            }
+        }
+
+        private void forget() {
+            synchronized (PARTITIONS) {
+                PARTITIONS.remove(key, this);
+            }
+        }
+
+        private ConfigSource configOf(String value) {
+            final ConfigSource config = template.deepCopy();
+            for (String name : new ArrayList<>(config.getAttributeNames())) {
+                config.set(name, substitute(config.get(JsonNode.class, name), value));
+            }
+            if (previousConfigDiffs != null && previousConfigDiffs.has(value)) {
+                config.merge(previousConfigDiffs.getNested(value));
+            }
+            return config;
+        }
+
+        private class Partition {
+            private final String value;
+            private final String writersKey;
+            private final WriterPool writers;
+            private final CompletableFuture<TaskSource> taskSource = new CompletableFuture<>();
+            private final CompletableFuture<List<TaskReport>> result = new CompletableFuture<>();
+            // Reports of the committed writers, kept for the cleanup
+            private List<TaskReport> reports;
+            private Future<ConfigDiff> transaction;
+
+            private Partition(String value) {
+                this.value = value;
+                this.writersKey = WriterPool.keyOf(key, value);
+                this.writers = WriterPool.create(writersKey, WRITER_COUNT);
+            }
+
+            private void start(ConfigSource config) {
+                transaction = lease.getBlockingExecutorService().submit(() -> {
+                    try {
+                        final ConfigDiff configDiff = plugin.transaction(config, schema, WRITER_COUNT, partitionTaskSource -> {
+                            taskSource.complete(partitionTaskSource);
+                            return await(result);
+                        });
+                        taskSource.completeExceptionally(new IllegalStateException(
+                                String.format("Transaction of partition %s ended without running its tasks.", value)));
+                        return configDiff;
+                    } catch (RuntimeException | Error e) {
+                        // Fails the tasks waiting to open the partition
+                        taskSource.completeExceptionally(e);
+                        throw e;
+                    }
+                });
+            }
+
+            private TransactionalPageOutput join(int taskIndex) {
+                // A worker of the task's output may wait for the writer's queue, so the writer does not run on the workers
+                return writers.join(taskIndex, writerIndex -> plugin.open(await(taskSource), schema, writerIndex),
+                        lease.getBlockingExecutorService(), queueSize);
+            }
+
+            private void commit() {
+                try {
+                    reports = writers.commit();
+                    result.complete(reports);
+                } catch (RuntimeException e) {
+                    // The writers are aborted, and the transaction fails with the error
+                    result.completeExceptionally(e);
+                } finally {
+                    WriterPool.takeReports(writersKey);
+                }
+            }
+
+            private void abort(Throwable cause) {
+                try {
+                    writers.abort();
+                } finally {
+                    result.completeExceptionally(cause);
+                }
+            }
+        }
+    }
+
+    private class PartitionedPageOutput implements TransactionalPageOutput {
+        private final TaskSource taskSource;
+        private final int taskIndex;
+        private final ColumnProjection projection;
+        private final PartitionColumn partitionColumn;
+        private final PageReader reader;
+        // In access order, so that the least recently used partition comes first
+        private final LinkedHashMap<String, PartitionBuffer> opened = new LinkedHashMap<>(16, 0.75f, true);
+        // Partitions this task has written to
+        private final Set<String> written = new TreeSet<>();
+
+        private PartitionedPageOutput(TaskSource taskSource, Schema schema, int taskIndex, PartitionColumn partitionColumn) {
+            this.taskSource = taskSource;
+            this.taskIndex = taskIndex;
+            this.projection = ColumnProjection.identity(schema);
+            this.partitionColumn = partitionColumn;
+            this.reader = Exec.getPageReader(schema);
+        }
+
+        @Override
+        public void add(Page page) {
+            reader.setPage(page);
+            while (reader.nextRecord()) {
+                final String value = partitionColumn.valueOf(reader);
+                PartitionBuffer buffer = opened.get(value);
+                if (buffer == null) {
+                    if (opened.size() >= partitionTask.getMaxOpen()) {
+                        evict(opened.keySet().iterator().next());
+                    }
+                    buffer = new PartitionBuffer(join(taskSource, value, taskIndex), projection);
+                    opened.put(value, buffer);
+                    written.add(value);
+                }
+                buffer.repacker.addRow(reader);
+            }
+        }
+
+        private void evict(String value) {
+            LOGGER.debug("Rows of partition {} are flushed to buffer another.", value);
+            final PartitionBuffer buffer = opened.remove(value);
+            try {
+                buffer.repacker.finish();
+                buffer.output.finish();
+            } finally {
+                buffer.close();
+            }
+        }
+
+        @Override
+        public void finish() {
+            for (PartitionBuffer buffer : opened.values()) {
+                buffer.repacker.finish();
+                buffer.output.finish();
+            }
+        }
+
+        @Override
+        public void close() {
+            RuntimeException error = null;
+            for (PartitionBuffer buffer : opened.values()) {
+                try {
+                    buffer.close();
+                } catch (RuntimeException e) {
+                    error = error != null ? error : e;
+                }
+            }
+            opened.clear();
+            reader.close();
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        @Override
+        public void abort() {
+            // The writers are aborted by the transaction
+        }
+
+        @Override
+        public TaskReport commit() {
+            for (PartitionBuffer buffer : opened.values()) {
+                buffer.output.commit();
+            }
+            final TaskReport report = Exec.newTaskReport();
+            report.set(CONFIG_NAME_PARTITIONS, written);
+            return report;
+        }
+    }
+
+    /**
+     * Rows of a partition buffered by a task, flushed to the writer of the partition.
+     */
+    private static class PartitionBuffer {
+        private final TransactionalPageOutput output;
+        private final PageRepacker repacker;
+
+        private PartitionBuffer(TransactionalPageOutput output, ColumnProjection projection) {
+            this.output = output;
+            this.repacker = new PageRepacker(projection, output::add);
+        }
+
+        private void close() {
+            try {
+                repacker.close();
+            } finally {
+                output.close();
+            }
+        }
+    }
+}
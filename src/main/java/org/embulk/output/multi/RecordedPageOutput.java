@@ -0,0 +1,87 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Page;
+import org.embulk.spi.TransactionalPageOutput;
+
+/**
+ * Emits a Flight Recorder event for each call into the output, on whichever thread feeds it.
+ */
+class RecordedPageOutput implements TransactionalPageOutput {
+    private final TransactionalPageOutput output;
+    private final String tag;
+    private final int taskIndex;
+
+    RecordedPageOutput(TransactionalPageOutput output, String tag, int taskIndex) {
+        this.output = output;
+        this.tag = tag;
+        this.taskIndex = taskIndex;
+    }
+
+    @Override
+    public void add(Page page) {
+        final OutputEvents.AddEvent event = new OutputEvents.AddEvent();
+        if (!event.isEnabled()) {
+            output.add(page);
+            return;
+        }
+        // Measured before the call because the output may release the page
+        final Buffer buffer = page.buffer();
+        event.rows = OutputMetrics.recordCount(buffer);
+        event.bytes = buffer.limit();
+        event.begin();
+        try {
+            output.add(page);
+        } finally {
+            commit(event);
+        }
+    }
+
+    @Override
+    public void finish() {
+        final OutputEvents.FinishEvent event = new OutputEvents.FinishEvent();
+        event.begin();
+        try {
+            output.finish();
+        } finally {
+            commit(event);
+        }
+    }
+
+    @Override
+    public void close() {
+        output.close();
+    }
+
+    @Override
+    public void abort() {
+        final OutputEvents.AbortEvent event = new OutputEvents.AbortEvent();
+        event.begin();
+        try {
+            output.abort();
+        } finally {
+            commit(event);
+        }
+    }
+
+    @Override
+    public TaskReport commit() {
+        final OutputEvents.CommitEvent event = new OutputEvents.CommitEvent();
+        event.begin();
+        try {
+            return output.commit();
+        } finally {
+            commit(event);
+        }
+    }
+
+    private void commit(OutputEvents.OutputEvent event) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.tag = tag;
+            event.taskIndex = taskIndex;
+            event.commit();
+        }
+    }
+}
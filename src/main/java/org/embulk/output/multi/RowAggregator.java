@@ -0,0 +1,718 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigException;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Column;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rollup of the rows of one task for the {@code aggregate} option of an output. Groups are found in an open-addressing
+ * table by the hash of the {@code group_by} columns; their keys and metrics are kept in primitive arrays indexed by
+ * group, so adding a row allocates nothing but for timestamp columns. One row per group is emitted on finish.
+ */
+class RowAggregator {
+    private static final Pattern METRIC = Pattern.compile("\\s*(count|sum|min|max|avg)\\s*(?:\\(\\s*(.+?)\\s*\\))?\\s*");
+    private static final int INITIAL_GROUPS = 64;
+
+    private final Schema schema;
+    // Null without 'group_by': all rows fall into one group
+    private final RowKeyHash keyHash;
+    private final Key[] keys;
+    private final Metric[] metrics;
+    // Group index + 1 of each slot, 0 for an empty slot
+    private int[] table;
+    private long[] hashes;
+    private int groups;
+
+    private RowAggregator(Schema schema, RowKeyHash keyHash, Key[] keys, Metric[] metrics) {
+        this.schema = schema;
+        this.keyHash = keyHash;
+        this.keys = keys;
+        this.metrics = metrics;
+        this.table = new int[INITIAL_GROUPS * 2];
+        this.hashes = new long[0];
+        grow(INITIAL_GROUPS);
+    }
+
+    static RowAggregator of(MultiOutputPlugin.AggregateTask aggregate, Schema inputSchema) {
+        final List<String> groupBy = aggregate.getGroupBy();
+        final Schema.Builder builder = Schema.builder();
+        final Set<String> names = new HashSet<>();
+        final Key[] keys = new Key[groupBy.size()];
+        for (int i = 0; i < keys.length; i++) {
+            final Column source = findColumn(inputSchema, groupBy.get(i), "group_by");
+            keys[i] = key(source);
+            addColumn(builder, names, source.getName(), source.getType());
+        }
+        if (aggregate.getMetrics().isEmpty()) {
+            throw new ConfigException("'metrics' of 'aggregate' must have at least one metric.");
+        }
+        final Metric[] metrics = new Metric[aggregate.getMetrics().size()];
+        for (int i = 0; i < metrics.length; i++) {
+            metrics[i] = metric(aggregate.getMetrics().get(i), inputSchema);
+            addColumn(builder, names, metrics[i].name, metrics[i].type);
+        }
+        final RowKeyHash keyHash = groupBy.isEmpty() ? null : RowKeyHash.of(groupBy, inputSchema, "aggregate");
+        return new RowAggregator(builder.build(), keyHash, keys, metrics);
+    }
+
+    // Schema of the aggregated rows, which the output is given instead of the input schema
+    static Schema schemaOf(MultiOutputPlugin.AggregateTask aggregate, Schema inputSchema) {
+        return of(aggregate, inputSchema).getSchema();
+    }
+
+    Schema getSchema() {
+        return schema;
+    }
+
+    int getGroups() {
+        return groups;
+    }
+
+    /**
+     * Number of rows {@link #emit} sends. Without 'group_by' there is always one row, like an SQL aggregate without
+     * GROUP BY: a task without rows emits count 0 and null for the other metrics.
+     */
+    int getRows() {
+        return keyHash == null ? Math.max(groups, 1) : groups;
+    }
+
+    void add(PageReader reader) {
+        final int group = findOrAddGroup(reader);
+        for (Metric metric : metrics) {
+            metric.update(group, reader);
+        }
+    }
+
+    /**
+     * Sends one row per group to the output, built in pages of the allocator.
+     */
+    void emit(BufferAllocator allocator, Consumer<Page> output) {
+        try (PageBuilder builder = Exec.getPageBuilder(allocator, schema, new PageOutput() {
+            @Override
+            public void add(Page page) {
+                output.accept(page);
+            }
+
+            @Override
+            public void finish() {
+            }
+
+            @Override
+            public void close() {
+            }
+        })) {
+            // The arrays of the groups are allocated beforehand, so the row without a group reads their initial values
+            final int rows = getRows();
+            for (int group = 0; group < rows; group++) {
+                int index = 0;
+                for (Key key : keys) {
+                    key.emit(group, builder, schema.getColumn(index++));
+                }
+                for (Metric metric : metrics) {
+                    metric.emit(group, builder, schema.getColumn(index++));
+                }
+                builder.addRecord();
+            }
+            builder.finish();
+        }
+    }
+
+    private int findOrAddGroup(PageReader reader) {
+        final long hash = keyHash != null ? keyHash.hash(reader) : 0;
+        final int mask = table.length - 1;
+        int slot = (int) hash & mask;
+        while (table[slot] != 0) {
+            final int group = table[slot] - 1;
+            if (hashes[group] == hash && keysMatch(group, reader)) {
+                return group;
+            }
+            slot = (slot + 1) & mask;
+        }
+        final int group = groups++;
+        if (group == hashes.length) {
+            grow(hashes.length * 2);
+        }
+        hashes[group] = hash;
+        for (Key key : keys) {
+            key.store(group, reader);
+        }
+        table[slot] = group + 1;
+        if (groups * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return group;
+    }
+
+    private boolean keysMatch(int group, PageReader reader) {
+        for (Key key : keys) {
+            if (!key.matches(group, reader)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grow(int capacity) {
+        hashes = Arrays.copyOf(hashes, capacity);
+        for (Key key : keys) {
+            key.grow(capacity);
+        }
+        for (Metric metric : metrics) {
+            metric.grow(capacity);
+        }
+    }
+
+    private void rehash(int tableSize) {
+        final int[] rehashed = new int[tableSize];
+        final int mask = tableSize - 1;
+        for (int group = 0; group < groups; group++) {
+            int slot = (int) hashes[group] & mask;
+            while (rehashed[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            rehashed[slot] = group + 1;
+        }
+        table = rehashed;
+    }
+
+    private static Column findColumn(Schema schema, String name, String optionName) {
+        return schema.getColumns().stream()
+                .filter(column -> column.getName().equals(name))
+                .findFirst()
+                .orElseThrow(() -> new ConfigException(String.format("Column '%s' in '%s' of 'aggregate' is not found.", name, optionName)));
+    }
+
+    private static void addColumn(Schema.Builder builder, Set<String> names, String name, Type type) {
+        if (!names.add(name)) {
+            throw new ConfigException(String.format("Column '%s' appears more than once in the result of 'aggregate'.", name));
+        }
+        builder.add(name, type);
+    }
+
+    private static Key key(Column source) {
+        final Type type = source.getType();
+        if (Types.BOOLEAN.equals(type)) {
+            return new BooleanKey(source);
+        } else if (Types.LONG.equals(type)) {
+            return new LongKey(source);
+        } else if (Types.DOUBLE.equals(type)) {
+            return new DoubleKey(source);
+        } else if (Types.STRING.equals(type)) {
+            return new StringKey(source);
+        } else if (Types.TIMESTAMP.equals(type)) {
+            return new TimestampKey(source);
+        }
+        throw new ConfigException(String.format("Column '%s' of type %s can not be in 'group_by' of 'aggregate'.", source.getName(), type));
+    }
+
+    private static Metric metric(String expression, Schema inputSchema) {
+        final Matcher matcher = METRIC.matcher(expression);
+        if (!matcher.matches()) {
+            throw new ConfigException(String.format(
+                    "Metric '%s' of 'aggregate' must be one of count, count(column), sum(column), min(column), max(column) and avg(column).",
+                    expression));
+        }
+        final String function = matcher.group(1);
+        if (matcher.group(2) == null) {
+            if (!"count".equals(function)) {
+                throw new ConfigException(String.format("Metric '%s' of 'aggregate' needs a column.", expression));
+            }
+            return new CountMetric("count", null);
+        }
+        final Column source = findColumn(inputSchema, matcher.group(2), "metrics");
+        final String name = function + "_" + source.getName();
+        final Type type = source.getType();
+        final boolean numeric = Types.LONG.equals(type) || Types.DOUBLE.equals(type);
+        switch (function) {
+            case "count":
+                return new CountMetric(name, source);
+            case "sum":
+                if (Types.LONG.equals(type)) {
+                    return new LongSumMetric(name, source);
+                } else if (Types.DOUBLE.equals(type)) {
+                    return new DoubleSumMetric(name, source);
+                }
+                break;
+            case "min":
+            case "max":
+                final boolean max = "max".equals(function);
+                if (Types.LONG.equals(type)) {
+                    return new LongExtremeMetric(name, source, max);
+                } else if (Types.DOUBLE.equals(type)) {
+                    return new DoubleExtremeMetric(name, source, max);
+                } else if (Types.TIMESTAMP.equals(type)) {
+                    return new TimestampExtremeMetric(name, source, max);
+                }
+                break;
+            case "avg":
+                if (numeric) {
+                    return new AvgMetric(name, source);
+                }
+                break;
+            default:
+                break;
+        }
+        throw new ConfigException(String.format("Metric '%s' of 'aggregate' does not support column '%s' of type %s.",
+                expression, source.getName(), type));
+    }
+
+    /**
+     * A group_by column. Null is a key of its own.
+     */
+    private abstract static class Key {
+        final Column source;
+        private boolean[] nulls = new boolean[0];
+
+        Key(Column source) {
+            this.source = source;
+        }
+
+        boolean matches(int group, PageReader reader) {
+            final boolean isNull = reader.isNull(source);
+            if (isNull || nulls[group]) {
+                return isNull && nulls[group];
+            }
+            return valueMatches(group, reader);
+        }
+
+        void store(int group, PageReader reader) {
+            nulls[group] = reader.isNull(source);
+            if (!nulls[group]) {
+                storeValue(group, reader);
+            }
+        }
+
+        void grow(int capacity) {
+            nulls = Arrays.copyOf(nulls, capacity);
+            growValues(capacity);
+        }
+
+        void emit(int group, PageBuilder builder, Column target) {
+            if (nulls[group]) {
+                builder.setNull(target);
+            } else {
+                emitValue(group, builder, target);
+            }
+        }
+
+        abstract boolean valueMatches(int group, PageReader reader);
+
+        abstract void storeValue(int group, PageReader reader);
+
+        abstract void growValues(int capacity);
+
+        abstract void emitValue(int group, PageBuilder builder, Column target);
+    }
+
+    private static class BooleanKey extends Key {
+        private boolean[] values = new boolean[0];
+
+        BooleanKey(Column source) {
+            super(source);
+        }
+
+        @Override
+        boolean valueMatches(int group, PageReader reader) {
+            return values[group] == reader.getBoolean(source);
+        }
+
+        @Override
+        void storeValue(int group, PageReader reader) {
+            values[group] = reader.getBoolean(source);
+        }
+
+        @Override
+        void growValues(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        void emitValue(int group, PageBuilder builder, Column target) {
+            builder.setBoolean(target, values[group]);
+        }
+    }
+
+    private static class LongKey extends Key {
+        private long[] values = new long[0];
+
+        LongKey(Column source) {
+            super(source);
+        }
+
+        @Override
+        boolean valueMatches(int group, PageReader reader) {
+            return values[group] == reader.getLong(source);
+        }
+
+        @Override
+        void storeValue(int group, PageReader reader) {
+            values[group] = reader.getLong(source);
+        }
+
+        @Override
+        void growValues(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        void emitValue(int group, PageBuilder builder, Column target) {
+            builder.setLong(target, values[group]);
+        }
+    }
+
+    private static class DoubleKey extends Key {
+        // Compared by bits, as the key hash does
+        private long[] bits = new long[0];
+
+        DoubleKey(Column source) {
+            super(source);
+        }
+
+        @Override
+        boolean valueMatches(int group, PageReader reader) {
+            return bits[group] == Double.doubleToLongBits(reader.getDouble(source));
+        }
+
+        @Override
+        void storeValue(int group, PageReader reader) {
+            bits[group] = Double.doubleToLongBits(reader.getDouble(source));
+        }
+
+        @Override
+        void growValues(int capacity) {
+            bits = Arrays.copyOf(bits, capacity);
+        }
+
+        @Override
+        void emitValue(int group, PageBuilder builder, Column target) {
+            builder.setDouble(target, Double.longBitsToDouble(bits[group]));
+        }
+    }
+
+    private static class StringKey extends Key {
+        private String[] values = new String[0];
+
+        StringKey(Column source) {
+            super(source);
+        }
+
+        @Override
+        boolean valueMatches(int group, PageReader reader) {
+            return values[group].equals(reader.getString(source));
+        }
+
+        @Override
+        void storeValue(int group, PageReader reader) {
+            values[group] = reader.getString(source);
+        }
+
+        @Override
+        void growValues(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        void emitValue(int group, PageBuilder builder, Column target) {
+            builder.setString(target, values[group]);
+        }
+    }
+
+    private static class TimestampKey extends Key {
+        private long[] seconds = new long[0];
+        private int[] nanos = new int[0];
+
+        TimestampKey(Column source) {
+            super(source);
+        }
+
+        @Override
+        boolean valueMatches(int group, PageReader reader) {
+            final Instant value = reader.getTimestampInstant(source);
+            return seconds[group] == value.getEpochSecond() && nanos[group] == value.getNano();
+        }
+
+        @Override
+        void storeValue(int group, PageReader reader) {
+            final Instant value = reader.getTimestampInstant(source);
+            seconds[group] = value.getEpochSecond();
+            nanos[group] = value.getNano();
+        }
+
+        @Override
+        void growValues(int capacity) {
+            seconds = Arrays.copyOf(seconds, capacity);
+            nanos = Arrays.copyOf(nanos, capacity);
+        }
+
+        @Override
+        void emitValue(int group, PageBuilder builder, Column target) {
+            builder.setTimestamp(target, Instant.ofEpochSecond(seconds[group], nanos[group]));
+        }
+    }
+
+    /**
+     * A metric column. Null values of the source are skipped; a metric without any value in a group is null.
+     */
+    private abstract static class Metric {
+        final String name;
+        final Type type;
+
+        Metric(String name, Type type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        abstract void update(int group, PageReader reader);
+
+        abstract void grow(int capacity);
+
+        abstract void emit(int group, PageBuilder builder, Column target);
+    }
+
+    private static class CountMetric extends Metric {
+        // Null to count every row
+        private final Column source;
+        private long[] counts = new long[0];
+
+        CountMetric(String name, Column source) {
+            super(name, Types.LONG);
+            this.source = source;
+        }
+
+        @Override
+        void update(int group, PageReader reader) {
+            if (source == null || !reader.isNull(source)) {
+                counts[group]++;
+            }
+        }
+
+        @Override
+        void grow(int capacity) {
+            counts = Arrays.copyOf(counts, capacity);
+        }
+
+        @Override
+        void emit(int group, PageBuilder builder, Column target) {
+            builder.setLong(target, counts[group]);
+        }
+    }
+
+    private abstract static class SourceMetric extends Metric {
+        final Column source;
+        boolean[] seen = new boolean[0];
+
+        SourceMetric(String name, Type type, Column source) {
+            super(name, type);
+            this.source = source;
+        }
+
+        @Override
+        void update(int group, PageReader reader) {
+            if (!reader.isNull(source)) {
+                updateValue(group, reader, seen[group]);
+                seen[group] = true;
+            }
+        }
+
+        @Override
+        void grow(int capacity) {
+            seen = Arrays.copyOf(seen, capacity);
+            growValues(capacity);
+        }
+
+        @Override
+        void emit(int group, PageBuilder builder, Column target) {
+            if (seen[group]) {
+                emitValue(group, builder, target);
+            } else {
+                builder.setNull(target);
+            }
+        }
+
+        abstract void updateValue(int group, PageReader reader, boolean seenBefore);
+
+        abstract void growValues(int capacity);
+
+        abstract void emitValue(int group, PageBuilder builder, Column target);
+    }
+
+    private static class LongSumMetric extends SourceMetric {
+        private long[] sums = new long[0];
+
+        LongSumMetric(String name, Column source) {
+            super(name, Types.LONG, source);
+        }
+
+        @Override
+        void updateValue(int group, PageReader reader, boolean seenBefore) {
+            sums[group] += reader.getLong(source);
+        }
+
+        @Override
+        void growValues(int capacity) {
+            sums = Arrays.copyOf(sums, capacity);
+        }
+
+        @Override
+        void emitValue(int group, PageBuilder builder, Column target) {
+            builder.setLong(target, sums[group]);
+        }
+    }
+
+    private static class DoubleSumMetric extends SourceMetric {
+        private double[] sums = new double[0];
+
+        DoubleSumMetric(String name, Column source) {
+            super(name, Types.DOUBLE, source);
+        }
+
+        @Override
+        void updateValue(int group, PageReader reader, boolean seenBefore) {
+            sums[group] += reader.getDouble(source);
+        }
+
+        @Override
+        void growValues(int capacity) {
+            sums = Arrays.copyOf(sums, capacity);
+        }
+
+        @Override
+        void emitValue(int group, PageBuilder builder, Column target) {
+            builder.setDouble(target, sums[group]);
+        }
+    }
+
+    private static class LongExtremeMetric extends SourceMetric {
+        private final boolean max;
+        private long[] values = new long[0];
+
+        LongExtremeMetric(String name, Column source, boolean max) {
+            super(name, Types.LONG, source);
+            this.max = max;
+        }
+
+        @Override
+        void updateValue(int group, PageReader reader, boolean seenBefore) {
+            final long value = reader.getLong(source);
+            if (!seenBefore || (max ? value > values[group] : value < values[group])) {
+                values[group] = value;
+            }
+        }
+
+        @Override
+        void growValues(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        void emitValue(int group, PageBuilder builder, Column target) {
+            builder.setLong(target, values[group]);
+        }
+    }
+
+    private static class DoubleExtremeMetric extends SourceMetric {
+        private final boolean max;
+        private double[] values = new double[0];
+
+        DoubleExtremeMetric(String name, Column source, boolean max) {
+            super(name, Types.DOUBLE, source);
+            this.max = max;
+        }
+
+        @Override
+        void updateValue(int group, PageReader reader, boolean seenBefore) {
+            final double value = reader.getDouble(source);
+            if (!seenBefore || (max ? value > values[group] : value < values[group])) {
+                values[group] = value;
+            }
+        }
+
+        @Override
+        void growValues(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        void emitValue(int group, PageBuilder builder, Column target) {
+            builder.setDouble(target, values[group]);
+        }
+    }
+
+    private static class TimestampExtremeMetric extends SourceMetric {
+        private final boolean max;
+        private long[] seconds = new long[0];
+        private int[] nanos = new int[0];
+
+        TimestampExtremeMetric(String name, Column source, boolean max) {
+            super(name, Types.TIMESTAMP, source);
+            this.max = max;
+        }
+
+        @Override
+        void updateValue(int group, PageReader reader, boolean seenBefore) {
+            final Instant value = reader.getTimestampInstant(source);
+            final int order = seenBefore ? Long.compare(value.getEpochSecond(), seconds[group]) : 0;
+            final int compared = order != 0 ? order : Integer.compare(value.getNano(), nanos[group]);
+            if (!seenBefore || (max ? compared > 0 : compared < 0)) {
+                seconds[group] = value.getEpochSecond();
+                nanos[group] = value.getNano();
+            }
+        }
+
+        @Override
+        void growValues(int capacity) {
+            seconds = Arrays.copyOf(seconds, capacity);
+            nanos = Arrays.copyOf(nanos, capacity);
+        }
+
+        @Override
+        void emitValue(int group, PageBuilder builder, Column target) {
+            builder.setTimestamp(target, Instant.ofEpochSecond(seconds[group], nanos[group]));
+        }
+    }
+
+    private static class AvgMetric extends SourceMetric {
+        private final boolean longSource;
+        private double[] sums = new double[0];
+        private long[] counts = new long[0];
+
+        AvgMetric(String name, Column source) {
+            super(name, Types.DOUBLE, source);
+            this.longSource = Types.LONG.equals(source.getType());
+        }
+
+        @Override
+        void updateValue(int group, PageReader reader, boolean seenBefore) {
+            sums[group] += longSource ? reader.getLong(source) : reader.getDouble(source);
+            counts[group]++;
+        }
+
+        @Override
+        void growValues(int capacity) {
+            sums = Arrays.copyOf(sums, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+
+        @Override
+        void emitValue(int group, PageBuilder builder, Column target) {
+            builder.setDouble(target, sums[group] / counts[group]);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigException;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+
+/**
+ * Drops rows whose key has been seen before, for the {@code dedupe} option of an output. The keys are remembered
+ * in a Bloom filter, so a small share of new keys ({@code fpp}) is dropped as well.
+ */
+class RowDeduplicator implements RowFilter, AutoCloseable {
+    static final String SCOPE_TASK = "task";
+    static final String SCOPE_JOB = "job";
+
+    private final RowKeyHash keyHash;
+    private final BloomFilter filter;
+
+    private RowDeduplicator(RowKeyHash keyHash, BloomFilter filter) {
+        this.keyHash = keyHash;
+        this.filter = filter;
+    }
+
+    static void validate(MultiOutputPlugin.DedupeTask dedupe, Schema schema) {
+        RowKeyHash.of(dedupe.getKeys(), schema, "dedupe");
+        if (!SCOPE_TASK.equals(dedupe.getScope()) && !SCOPE_JOB.equals(dedupe.getScope())) {
+            throw new ConfigException(String.format("'scope' of 'dedupe' must be '%s' or '%s' but got '%s'.",
+                    SCOPE_TASK, SCOPE_JOB, dedupe.getScope()));
+        }
+        if (dedupe.getExpectedRows() < 1) {
+            throw new ConfigException("'expected_rows' of 'dedupe' must be greater than or equals to 1.");
+        }
+        if (!(dedupe.getFpp() > 0 && dedupe.getFpp() < 1)) {
+            throw new ConfigException("'fpp' of 'dedupe' must be greater than 0 and less than 1.");
+        }
+        if (BloomFilter.bits(dedupe.getExpectedRows(), dedupe.getFpp()) > BloomFilter.MAX_BITS) {
+            throw new ConfigException("'dedupe' needs a filter larger than 2GB. Lower 'expected_rows' or raise 'fpp'.");
+        }
+    }
+
+    /**
+     * With {@code scope: job}, the filter is shared by all tasks of the output in this JVM under the given key.
+     */
+    static RowDeduplicator open(MultiOutputPlugin.DedupeTask dedupe, Schema schema, String sharedKey) {
+        final RowKeyHash keyHash = RowKeyHash.of(dedupe.getKeys(), schema, "dedupe");
+        final BloomFilter filter = SCOPE_JOB.equals(dedupe.getScope())
+                ? BloomFilter.acquire(sharedKey, dedupe.getExpectedRows(), dedupe.getFpp())
+                : BloomFilter.create(dedupe.getExpectedRows(), dedupe.getFpp());
+        return new RowDeduplicator(keyHash, filter);
+    }
+
+    @Override
+    public boolean test(PageReader reader) {
+        return !filter.put(keyHash.hash(reader));
+    }
+
+    @Override
+    public void close() {
+        filter.release();
+    }
+}
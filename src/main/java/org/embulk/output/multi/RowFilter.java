@@ -0,0 +1,20 @@
+package org.embulk.output.multi;
+
+import org.embulk.spi.PageReader;
+
+@FunctionalInterface
+interface RowFilter {
+    boolean test(PageReader reader);
+
+    default RowFilter and(RowFilter other) {
+        return reader -> test(reader) && other.test(reader);
+    }
+
+    default RowFilter or(RowFilter other) {
+        return reader -> test(reader) || other.test(reader);
+    }
+
+    default RowFilter negate() {
+        return reader -> !test(reader);
+    }
+}
@@ -0,0 +1,98 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * 64 bit hash of the key columns of the current row. It only depends on the values, so it is the same on every run.
+ * Nothing is allocated per row except for timestamp and json keys.
+ */
+class RowKeyHash {
+    private static final long NULL_HASH = 0x6A09E667F3BCC909L;
+
+    private final KeyHasher[] hashers;
+
+    private RowKeyHash(KeyHasher[] hashers) {
+        this.hashers = hashers;
+    }
+
+    static RowKeyHash of(List<String> keys, Schema schema, String optionName) {
+        if (keys.isEmpty()) {
+            throw new ConfigException(String.format("'keys' of '%s' must have at least one column.", optionName));
+        }
+        final KeyHasher[] hashers = new KeyHasher[keys.size()];
+        for (int i = 0; i < hashers.length; i++) {
+            final String key = keys.get(i);
+            final Column column = schema.getColumns().stream()
+                    .filter(c -> c.getName().equals(key))
+                    .findFirst()
+                    .orElseThrow(() -> new ConfigException(String.format("Key column '%s' of '%s' is not found.", key, optionName)));
+            hashers[i] = hasher(column);
+        }
+        return new RowKeyHash(hashers);
+    }
+
+    long hash(PageReader reader) {
+        long hash = 0;
+        for (KeyHasher hasher : hashers) {
+            hash = hash * 31 + hasher.hash(reader);
+        }
+        return mix(hash);
+    }
+
+    private static KeyHasher hasher(Column column) {
+        final Type type = column.getType();
+        if (Types.BOOLEAN.equals(type)) {
+            return reader -> reader.isNull(column) ? NULL_HASH : mix(reader.getBoolean(column) ? 1 : 2);
+        } else if (Types.LONG.equals(type)) {
+            return reader -> reader.isNull(column) ? NULL_HASH : mix(reader.getLong(column));
+        } else if (Types.DOUBLE.equals(type)) {
+            return reader -> reader.isNull(column) ? NULL_HASH : mix(Double.doubleToLongBits(reader.getDouble(column)));
+        } else if (Types.STRING.equals(type)) {
+            return reader -> reader.isNull(column) ? NULL_HASH : hashString(reader.getString(column));
+        } else if (Types.TIMESTAMP.equals(type)) {
+            return reader -> {
+                if (reader.isNull(column)) {
+                    return NULL_HASH;
+                }
+                final Instant instant = reader.getTimestampInstant(column);
+                return mix(instant.getEpochSecond() * 1_000_000_007L + instant.getNano());
+            };
+        } else if (Types.JSON.equals(type)) {
+            return reader -> reader.isNull(column) ? NULL_HASH : hashString(reader.getJson(column).toJson());
+        }
+        throw new IllegalArgumentException("Unsupported column type: " + type);
+    }
+
+    // String#hashCode has only 32 bits, too few to tell hundreds of millions of keys apart
+    private static long hashString(String value) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001B3L;
+        }
+        return mix(hash ^ value.length());
+    }
+
+    // Finalizer of MurmurHash3, so that close keys are spread over all bits
+    static long mix(long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @FunctionalInterface
+    private interface KeyHasher {
+        long hash(PageReader reader);
+    }
+}
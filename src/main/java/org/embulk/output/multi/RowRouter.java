@@ -0,0 +1,42 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigException;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+
+/**
+ * Chooses one of the outputs for each row by a hash of its key columns, for {@code routing: {mode: hash}}.
+ * The hash only depends on the values, so a row goes to the same output on every run and in every task.
+ */
+class RowRouter {
+    static final String MODE_BROADCAST = "broadcast";
+    static final String MODE_HASH = "hash";
+
+    private final RowKeyHash keyHash;
+
+    private RowRouter(RowKeyHash keyHash) {
+        this.keyHash = keyHash;
+    }
+
+    /**
+     * Returns the router of the routing option, or null when rows are broadcast to all outputs.
+     */
+    static RowRouter of(MultiOutputPlugin.RoutingTask routing, Schema schema) {
+        switch (routing.getMode()) {
+            case MODE_BROADCAST:
+                return null;
+            case MODE_HASH:
+                return new RowRouter(RowKeyHash.of(routing.getKeys(), schema, "routing"));
+            default:
+                throw new ConfigException(String.format("'mode' of 'routing' must be '%s' or '%s' but got '%s'.",
+                        MODE_BROADCAST, MODE_HASH, routing.getMode()));
+        }
+    }
+
+    /**
+     * Index of the output, between 0 and {@code outputs - 1}, for the current row of the reader.
+     */
+    int route(PageReader reader, int outputs) {
+        return (int) Long.remainderUnsigned(keyHash.hash(reader), outputs);
+    }
+}
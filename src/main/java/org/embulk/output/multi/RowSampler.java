@@ -0,0 +1,52 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigException;
+import org.embulk.spi.PageReader;
+
+import java.util.SplittableRandom;
+
+/**
+ * Row filters for the {@code sample} option of an output. Both are deterministic for the same seed and task index.
+ */
+final class RowSampler {
+    private RowSampler() {
+    }
+
+    static void validate(MultiOutputPlugin.SampleTask sample) {
+        if (sample.getRate().isPresent() == sample.getEveryNth().isPresent()) {
+            throw new ConfigException("'sample' must have either 'rate' or 'every_nth'.");
+        }
+        if (sample.getRate().isPresent() && !(sample.getRate().get() > 0 && sample.getRate().get() <= 1)) {
+            throw new ConfigException("'rate' of 'sample' must be greater than 0 and less than or equals to 1.");
+        }
+        if (sample.getEveryNth().isPresent() && sample.getEveryNth().get() < 1) {
+            throw new ConfigException("'every_nth' of 'sample' must be greater than or equals to 1.");
+        }
+    }
+
+    static RowFilter of(MultiOutputPlugin.SampleTask sample, int taskIndex) {
+        if (sample.getEveryNth().isPresent()) {
+            return everyNth(sample.getEveryNth().get());
+        }
+        return rate(sample.getRate().get(), sample.getSeed(), taskIndex);
+    }
+
+    private static RowFilter rate(double rate, long seed, int taskIndex) {
+        // Each task draws its own stream, so that the selection does not depend on how tasks are scheduled
+        final SplittableRandom random = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + taskIndex);
+        // Compares 53 random bits against the rate scaled the same way, like nextDouble() < rate without the division
+        final long threshold = (long) (rate * (1L << 53));
+        return reader -> (random.nextLong() >>> 11) < threshold;
+    }
+
+    private static RowFilter everyNth(long n) {
+        final long[] count = new long[1];
+        return reader -> {
+            if (++count[0] == n) {
+                count[0] = 0;
+                return true;
+            }
+            return false;
+        };
+    }
+}
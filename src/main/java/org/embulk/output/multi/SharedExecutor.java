@@ -0,0 +1,134 @@
+package org.embulk.output.multi;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Threads shared by all jobs of this plugin in the JVM. Page workers run on a bounded executor and never wait for
+ * each other. Calls that wait for other work, e.g. transactions and the run control until the tasks have finished,
+ * run on a separate unbounded executor, so that they can not take all threads of the bounded one and starve the
+ * work they wait for. Users hold a {@link Lease}; the executors are created by the first lease and shut down when
+ * the last one is closed.
+ */
+final class SharedExecutor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedExecutor.class);
+    private static final String THREAD_NAME_PREFIX = "multi-output-";
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final Object LOCK = new Object();
+
+    private static ThreadPoolExecutor executor;
+    private static ExecutorService blockingExecutor;
+    private static boolean virtual;
+    private static int leases;
+
+    private SharedExecutor() {
+    }
+
+    static Lease acquire(int maxThreads, boolean virtualThreads) {
+        synchronized (LOCK) {
+            if (executor == null) {
+                final ThreadFactory threadFactory = threadFactory(virtualThreads, "%d");
+                virtual = virtualThreads && threadFactory != null;
+                executor = newExecutor(maxThreads, threadFactory != null ? threadFactory : threadFactory(false, "%d"));
+                blockingExecutor = Executors.newCachedThreadPool(threadFactory(false, "blocking-%d"));
+            } else {
+                if (virtualThreads && !virtual) {
+                    LOGGER.warn("'use_virtual_threads' is ignored: the threads of this plugin in the JVM have already been "
+                            + "created as platform threads by another job or output.");
+                }
+                if (executor.getMaximumPoolSize() < maxThreads) {
+                    // Page workers only wait for their outputs, so the largest bound asked for is enough for all leases
+                    executor.setMaximumPoolSize(maxThreads);
+                    executor.setCorePoolSize(maxThreads);
+                }
+            }
+            leases++;
+            return new Lease(executor, blockingExecutor);
+        }
+    }
+
+    private static void release() {
+        synchronized (LOCK) {
+            if (--leases == 0) {
+                executor.shutdown();
+                blockingExecutor.shutdown();
+                executor = null;
+                blockingExecutor = null;
+            }
+        }
+    }
+
+    // Returns null if virtual threads are asked for but not available
+    private static ThreadFactory threadFactory(boolean virtualThreads, String nameFormat) {
+        if (!virtualThreads) {
+            return new ThreadFactoryBuilder().setNameFormat(THREAD_NAME_PREFIX + nameFormat).setDaemon(true).build();
+        }
+        final ThreadFactory threadFactory = virtualThreadFactory();
+        if (threadFactory == null) {
+            LOGGER.warn("Virtual threads are not available on Java {}. Platform threads are used instead.",
+                    System.getProperty("java.version"));
+        }
+        return threadFactory;
+    }
+
+    private static ThreadPoolExecutor newExecutor(int maxThreads, ThreadFactory threadFactory) {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static ThreadFactory virtualThreadFactory() {
+        // Thread.ofVirtual() is only available on Java 21+, while this plugin is built for Java 11
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Object namedBuilder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, THREAD_NAME_PREFIX, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(namedBuilder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    static class Lease implements AutoCloseable {
+        private final ExecutorService executorService;
+        private final ExecutorService blockingExecutorService;
+        private boolean closed;
+
+        private Lease(ExecutorService executorService, ExecutorService blockingExecutorService) {
+            this.executorService = executorService;
+            this.blockingExecutorService = blockingExecutorService;
+        }
+
+        /**
+         * The bounded executor for page workers. Its tasks must not wait for other tasks of it.
+         */
+        ExecutorService getExecutorService() {
+            return executorService;
+        }
+
+        /**
+         * The unbounded executor for calls that wait for other work, such as transactions and lifecycle calls of outputs.
+         */
+        ExecutorService getBlockingExecutorService() {
+            return blockingExecutorService;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release();
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.embulk.output.multi;
+
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Page;
+import org.msgpack.value.ImmutableValue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class SharedPage {
+    private static final Runnable NO_OP = () -> {};
+
+    private final Page page;
+    private final List<String> stringReferences;
+    private final List<ImmutableValue> valueReferences;
+    private final AtomicInteger references;
+    private final Runnable onReleased;
+
+    private SharedPage(Page page, int references, Runnable onReleased) {
+        this.page = page;
+        this.stringReferences = Collections.unmodifiableList(page.getStringReferences());
+        this.valueReferences = Collections.unmodifiableList(page.getValueReferences());
+        this.references = new AtomicInteger(references);
+        this.onReleased = onReleased;
+    }
+
+    static SharedPage wrap(Page page, int references) {
+        return wrap(page, references, NO_OP);
+    }
+
+    // onReleased runs after the last reference has released the page
+    static SharedPage wrap(Page page, int references, Runnable onReleased) {
+        if (references < 1) {
+            try {
+                page.release();
+            } finally {
+                onReleased.run();
+            }
+            throw new IllegalArgumentException("references must be greater than or equals to 1.");
+        }
+        return new SharedPage(page, references, onReleased);
+    }
+
+    /**
+     * Returns a page over the shared data for one output. Outputs release the pages and buffers they receive, and
+     * neither is reference counted in Embulk, so one Page can not be handed to all of them: each view still costs
+     * a Buffer and a Page header, while the data and the reference lists are shared. The benchmark
+     * {@code sharedPageViews} measures this cost per output.
+     */
+    Page view() {
+        final Buffer buffer = page.buffer();
+        final Buffer viewBuffer = Buffer.wrap(buffer.array(), buffer.offset(), buffer.capacity());
+        viewBuffer.limit(buffer.limit());
+
+        final Page view = Page.wrap(viewBuffer);
+        view.setStringReferences(stringReferences);
+        view.setValueReferences(valueReferences);
+        return view;
+    }
+
+    void release() {
+        final int remaining = references.decrementAndGet();
+        if (remaining == 0) {
+            try {
+                page.release();
+            } finally {
+                onReleased.run();
+            }
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Shared page is released more than its reference count.");
+        }
+    }
+}
@@ -4,14 +4,26 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.embulk.config.TaskReport;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 class TaskReports {
     private final Map<String, TaskReport> reports;
+    private final Map<String, TaskReport> stats;
+    private final List<String> failed;
+
+    TaskReports(Map<String, TaskReport> reports) {
+        this(reports, Collections.emptyMap(), Collections.emptyList());
+    }
 
     @JsonCreator
-    TaskReports(@JsonProperty("reports") Map<String, TaskReport> reports) {
+    TaskReports(@JsonProperty("reports") Map<String, TaskReport> reports,
+                @JsonProperty("stats") Map<String, TaskReport> stats,
+                @JsonProperty("failed") List<String> failed) {
         this.reports = reports;
+        this.stats = stats != null ? stats : Collections.emptyMap();
+        this.failed = failed != null ? failed : Collections.emptyList();
     }
 
     @JsonProperty("reports")
@@ -19,7 +31,27 @@ class TaskReports {
         return reports;
     }
 
+    // Statistics collected by this plugin for each output. They are kept apart from the outputs' own reports.
+    @JsonProperty("stats")
+    Map<String, TaskReport> getStats() {
+        return stats;
+    }
+
+    // Optional outputs that were detached on the task
+    @JsonProperty("failed")
+    List<String> getFailed() {
+        return failed;
+    }
+
+    boolean isFailed(String tag) {
+        return failed.contains(tag);
+    }
+
     TaskReport get(String tag) {
         return reports.get(tag);
     }
+
+    TaskReport getStats(String tag) {
+        return stats.get(tag);
+    }
 }
@@ -0,0 +1,275 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Exec;
+import org.embulk.spi.FileOutput;
+import org.embulk.spi.FileOutputPlugin;
+import org.embulk.spi.FormatterPlugin;
+import org.embulk.spi.OutputPlugin;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalFileOutput;
+import org.embulk.spi.TransactionalPageOutput;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Several file outputs with the same formatter, run as one output. Each page is formatted once and the formatted
+ * buffers are copied to every file output. Config diffs and task reports are kept per member tag.
+ */
+class TeeFileOutputPlugin implements OutputPlugin {
+    private static final String CONFIG_NAME_MEMBERS = "members";
+    private static final String CONFIG_NAME_FORMATTER = "formatter";
+    private static final String CONFIG_NAME_FORMATTER_CONFIG = "formatter_config";
+
+    private final List<String> tags;
+    private final List<FileOutputPlugin> plugins;
+    private final List<ConfigSource> configs;
+    private final FormatterPlugin formatter;
+
+    TeeFileOutputPlugin(List<String> tags, List<FileOutputPlugin> plugins, List<ConfigSource> configs, FormatterPlugin formatter) {
+        this.tags = tags;
+        this.plugins = plugins;
+        this.configs = configs;
+        this.formatter = formatter;
+    }
+
+    static String tagOf(List<String> memberTags) {
+        return String.join("+", memberTags);
+    }
+
+    // Number of outputs behind a delegate's tag, one unless the tag joins the members of a group
+    static int memberCountOf(String tag) {
+        return tag.split("\\+").length;
+    }
+
+    /**
+     * Splits a config diff of this plugin into the diffs of its members.
+     */
+    Map<String, ConfigDiff> getMemberConfigDiffs(ConfigDiff configDiff) {
+        final Map<String, ConfigDiff> result = new LinkedHashMap<>();
+        final ConfigDiff members = configDiff.getNested(CONFIG_NAME_MEMBERS);
+        for (String tag : tags) {
+            result.put(tag, members.getNested(tag));
+        }
+        return result;
+    }
+
+    @Override
+    public ConfigDiff transaction(ConfigSource config, Schema schema, int taskCount, OutputPlugin.Control control) {
+        final ConfigSource formatterConfig = configs.get(0).getNested(CONFIG_NAME_FORMATTER);
+        return run(taskCount, new Nesting(schema, formatterConfig, control) {
+            @Override
+            ConfigDiff runMember(int index, FileOutputPlugin.Control memberControl) {
+                return plugins.get(index).transaction(configs.get(index), taskCount, memberControl);
+            }
+        });
+    }
+
+    @Override
+    public ConfigDiff resume(TaskSource taskSource, Schema schema, int taskCount, OutputPlugin.Control control) {
+        final TaskSource memberTaskSources = taskSource.getNested(CONFIG_NAME_MEMBERS);
+        final ConfigSource formatterConfig = taskSource.get(ConfigSource.class, CONFIG_NAME_FORMATTER_CONFIG);
+        return run(taskCount, new Nesting(schema, formatterConfig, control) {
+            @Override
+            ConfigDiff runMember(int index, FileOutputPlugin.Control memberControl) {
+                return plugins.get(index).resume(memberTaskSources.getNested(tags.get(index)), taskCount, memberControl);
+            }
+        });
+    }
+
+    @Override
+    public void cleanup(TaskSource taskSource, Schema schema, int taskCount, List<TaskReport> successTaskReports) {
+        final TaskSource memberTaskSources = taskSource.getNested(CONFIG_NAME_MEMBERS);
+        for (int i = 0; i < plugins.size(); i++) {
+            plugins.get(i).cleanup(memberTaskSources.getNested(tags.get(i)), taskCount, memberReports(tags.get(i), successTaskReports));
+        }
+    }
+
+    @Override
+    public TransactionalPageOutput open(TaskSource taskSource, Schema schema, int taskIndex) {
+        final TaskSource memberTaskSources = taskSource.getNested(CONFIG_NAME_MEMBERS);
+        final List<TransactionalFileOutput> outputs = new ArrayList<>(plugins.size());
+        try {
+            for (int i = 0; i < plugins.size(); i++) {
+                outputs.add(plugins.get(i).open(memberTaskSources.getNested(tags.get(i)), taskIndex));
+            }
+            final TeeFileOutput tee = new TeeFileOutput(outputs);
+            return new TeePageOutput(formatter.open(taskSource.getNested(CONFIG_NAME_FORMATTER), schema, tee), tee);
+        } catch (RuntimeException e) {
+            for (TransactionalFileOutput output : outputs) {
+                output.close();
+            }
+            throw e;
+        }
+    }
+
+    private ConfigDiff run(int taskCount, Nesting nesting) {
+        final ConfigDiff configDiff = Exec.newConfigDiff();
+        configDiff.set(CONFIG_NAME_MEMBERS, nesting.runFrom(0));
+        return configDiff;
+    }
+
+    private static List<TaskReport> memberReports(String tag, List<TaskReport> reports) {
+        final List<TaskReport> result = new ArrayList<>(reports.size());
+        for (TaskReport report : reports) {
+            result.add(report.getNested(CONFIG_NAME_MEMBERS).getNested(tag));
+        }
+        return result;
+    }
+
+    /**
+     * Runs the transactions of the members inside each other, then the formatter's, then the tasks.
+     */
+    private abstract class Nesting {
+        private final Schema schema;
+        private final ConfigSource formatterConfig;
+        private final OutputPlugin.Control control;
+        private final TaskSource memberTaskSources = Exec.newTaskSource();
+        private final Map<String, ConfigDiff> memberConfigDiffs = new LinkedHashMap<>();
+        private List<TaskReport> reports;
+
+        Nesting(Schema schema, ConfigSource formatterConfig, OutputPlugin.Control control) {
+            this.schema = schema;
+            this.formatterConfig = formatterConfig;
+            this.control = control;
+        }
+
+        abstract ConfigDiff runMember(int index, FileOutputPlugin.Control memberControl);
+
+        Map<String, ConfigDiff> runFrom(int index) {
+            final String tag = tags.get(index);
+            final ConfigDiff configDiff = runMember(index, memberTaskSource -> {
+                memberTaskSources.set(tag, memberTaskSource);
+                if (index + 1 < plugins.size()) {
+                    runFrom(index + 1);
+                } else {
+                    formatter.transaction(formatterConfig, schema, formatterTaskSource -> {
+                        final TaskSource taskSource = Exec.newTaskSource();
+                        taskSource.set(CONFIG_NAME_MEMBERS, memberTaskSources);
+                        taskSource.set(CONFIG_NAME_FORMATTER, formatterTaskSource);
+                        taskSource.set(CONFIG_NAME_FORMATTER_CONFIG, formatterConfig);
+                        reports = control.run(taskSource);
+                    });
+                }
+                return memberReports(tag, reports);
+            });
+            memberConfigDiffs.put(tag, configDiff);
+            return memberConfigDiffs;
+        }
+    }
+
+    private static class TeeFileOutput implements FileOutput {
+        private final List<TransactionalFileOutput> outputs;
+
+        private TeeFileOutput(List<TransactionalFileOutput> outputs) {
+            this.outputs = outputs;
+        }
+
+        @Override
+        public void nextFile() {
+            for (TransactionalFileOutput output : outputs) {
+                output.nextFile();
+            }
+        }
+
+        @Override
+        public void add(Buffer buffer) {
+            // Every output releases the buffer it gets, so all but the last get a copy of the formatted bytes
+            final int last = outputs.size() - 1;
+            for (int i = 0; i < last; i++) {
+                final byte[] bytes = Arrays.copyOfRange(buffer.array(), buffer.offset(), buffer.offset() + buffer.limit());
+                final Buffer copy = Buffer.wrap(bytes, 0, bytes.length);
+                copy.limit(bytes.length);
+                outputs.get(i).add(copy);
+            }
+            outputs.get(last).add(buffer);
+        }
+
+        @Override
+        public void finish() {
+            for (TransactionalFileOutput output : outputs) {
+                output.finish();
+            }
+        }
+
+        @Override
+        public void close() {
+            RuntimeException error = null;
+            for (TransactionalFileOutput output : outputs) {
+                try {
+                    output.close();
+                } catch (RuntimeException e) {
+                    error = error == null ? e : error;
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private void abort() {
+            for (TransactionalFileOutput output : outputs) {
+                output.abort();
+            }
+        }
+
+        private Map<String, TaskReport> commit(List<String> tags) {
+            final Map<String, TaskReport> reports = new LinkedHashMap<>();
+            for (int i = 0; i < outputs.size(); i++) {
+                reports.put(tags.get(i), outputs.get(i).commit());
+            }
+            return reports;
+        }
+    }
+
+    private class TeePageOutput implements TransactionalPageOutput {
+        private final PageOutput output;
+        private final TeeFileOutput tee;
+
+        private TeePageOutput(PageOutput output, TeeFileOutput tee) {
+            this.output = output;
+            this.tee = tee;
+        }
+
+        @Override
+        public void add(Page page) {
+            output.add(page);
+        }
+
+        @Override
+        public void finish() {
+            output.finish();
+        }
+
+        @Override
+        public void close() {
+            try {
+                output.close();
+            } finally {
+                tee.close();
+            }
+        }
+
+        @Override
+        public void abort() {
+            tee.abort();
+        }
+
+        @Override
+        public TaskReport commit() {
+            final TaskReport report = Exec.newTaskReport();
+            report.set(CONFIG_NAME_MEMBERS, tee.commit(tags));
+            return report;
+        }
+    }
+}
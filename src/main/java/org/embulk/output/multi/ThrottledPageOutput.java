@@ -0,0 +1,59 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Page;
+import org.embulk.spi.TransactionalPageOutput;
+
+/**
+ * Paces the output's worker by the output's token bucket. The worker puts a page aside until its tokens are due,
+ * so no thread sleeps and only this output waits.
+ */
+class ThrottledPageOutput implements TransactionalPageOutput, AsyncPageOutput.Pacer {
+    private final TransactionalPageOutput output;
+    private final TokenBucket bucket;
+    private final OutputMetrics metrics;
+
+    ThrottledPageOutput(TransactionalPageOutput output, TokenBucket bucket, OutputMetrics metrics) {
+        this.output = output;
+        this.bucket = bucket;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public long delayNanos(Page page) {
+        final Buffer buffer = page.buffer();
+        final long waitNanos = bucket.reserve(OutputMetrics.recordCount(buffer), buffer.limit());
+        metrics.recordThrottle(waitNanos);
+        return waitNanos;
+    }
+
+    @Override
+    public void add(Page page) {
+        output.add(page);
+    }
+
+    @Override
+    public void finish() {
+        output.finish();
+    }
+
+    @Override
+    public void close() {
+        try {
+            output.close();
+        } finally {
+            bucket.release();
+        }
+    }
+
+    @Override
+    public void abort() {
+        output.abort();
+    }
+
+    @Override
+    public TaskReport commit() {
+        return output.commit();
+    }
+}
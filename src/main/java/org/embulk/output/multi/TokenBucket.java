@@ -0,0 +1,77 @@
+package org.embulk.output.multi;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits rows and bytes per second of one output. A bucket is shared by all tasks of the output in the JVM and
+ * holds up to one second of each rate. A page larger than that is let through and paid back by the next ones.
+ */
+class TokenBucket {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final Map<String, TokenBucket> BUCKETS = new HashMap<>();
+
+    private final String key;
+    private final Dimension rows;
+    private final Dimension bytes;
+    private int references;
+
+    private TokenBucket(String key, long rowsPerSecond, long bytesPerSecond) {
+        this.key = key;
+        final long now = System.nanoTime();
+        this.rows = rowsPerSecond > 0 ? new Dimension(rowsPerSecond, now) : null;
+        this.bytes = bytesPerSecond > 0 ? new Dimension(bytesPerSecond, now) : null;
+    }
+
+    /**
+     * Returns the bucket of the key, creating it on the first call. Each call must be paired with {@link #release()}.
+     * A rate of 0 or less means no limit on that dimension.
+     */
+    static TokenBucket acquire(String key, long rowsPerSecond, long bytesPerSecond) {
+        synchronized (BUCKETS) {
+            final TokenBucket bucket = BUCKETS.computeIfAbsent(key, k -> new TokenBucket(k, rowsPerSecond, bytesPerSecond));
+            bucket.references++;
+            return bucket;
+        }
+    }
+
+    void release() {
+        synchronized (BUCKETS) {
+            if (--references == 0) {
+                BUCKETS.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Takes tokens for a page, which may go into debt. Returns the time in nanoseconds the page has to wait before it
+     * is written; the caller waits without holding a thread.
+     */
+    synchronized long reserve(long pageRows, long pageBytes) {
+        final long now = System.nanoTime();
+        return Math.max(
+                rows != null ? rows.reserve(pageRows, now) : 0,
+                bytes != null ? bytes.reserve(pageBytes, now) : 0);
+    }
+
+    private static class Dimension {
+        private final long perSecond;
+        private double tokens;
+        private long updatedAt;
+
+        private Dimension(long perSecond, long now) {
+            this.perSecond = perSecond;
+            this.tokens = perSecond;
+            this.updatedAt = now;
+        }
+
+        // Tokens may go negative; the debt is the time the caller, and the callers after it, have to wait
+        private long reserve(long amount, long now) {
+            tokens = Math.min(perSecond, tokens + (double) (now - updatedAt) * perSecond / NANOS_PER_SECOND);
+            updatedAt = now;
+            tokens -= amount;
+            return tokens >= 0 ? 0 : (long) (-tokens * NANOS_PER_SECOND / perSecond);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.embulk.output.multi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Bounds calls into outputs. A call running longer than its timeout is logged with the stack of its thread and
+ * interrupted, and fails with a timeout once it returns, so that the failure policy of the output applies.
+ */
+class Watchdog {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Watchdog.class);
+    // One daemon thread checks the deadlines of all calls in the JVM
+    private static final ScheduledThreadPoolExecutor TIMER = newTimer();
+
+    private Watchdog() {
+    }
+
+    /**
+     * Runs the call with the timeout. A timeout of zero or less means no timeout.
+     */
+    static <T> T call(String description, long timeoutSeconds, Supplier<T> call) {
+        if (timeoutSeconds <= 0) {
+            return call.get();
+        }
+        final Watch watch = new Watch(Thread.currentThread(), description, timeoutSeconds);
+        final T result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            if (watch.stop()) {
+                throw timeout(description, timeoutSeconds, e);
+            }
+            throw e;
+        }
+        if (watch.stop()) {
+            throw timeout(description, timeoutSeconds, null);
+        }
+        return result;
+    }
+
+    static void run(String description, long timeoutSeconds, Runnable call) {
+        call(description, timeoutSeconds, () -> {
+            call.run();
+            return null;
+        });
+    }
+
+    static String stackTrace(Thread thread) {
+        final StringBuilder builder = new StringBuilder(thread.toString());
+        for (StackTraceElement element : thread.getStackTrace()) {
+            builder.append("\n\tat ").append(element);
+        }
+        return builder.toString();
+    }
+
+    private static RuntimeException timeout(String description, long timeoutSeconds, Throwable cause) {
+        return new RuntimeException(String.format("%s timed out after %d seconds.", description, timeoutSeconds), cause);
+    }
+
+    private static ScheduledThreadPoolExecutor newTimer() {
+        final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "embulk-output-multi-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    private static class Watch {
+        private final Thread thread;
+        private final String description;
+        private final long timeoutSeconds;
+        private final ScheduledFuture<?> future;
+        private boolean expired;
+        private boolean stopped;
+
+        private Watch(Thread thread, String description, long timeoutSeconds) {
+            this.thread = thread;
+            this.description = description;
+            this.timeoutSeconds = timeoutSeconds;
+            this.future = TIMER.schedule(this::expire, timeoutSeconds, TimeUnit.SECONDS);
+        }
+
+        private synchronized void expire() {
+            if (stopped) {
+                // The timer fired while the call was returning
+                return;
+            }
+            expired = true;
+            LOGGER.error("{} has not returned within {} seconds. It is interrupted.\n{}", description, timeoutSeconds, stackTrace(thread));
+            thread.interrupt();
+        }
+
+        // Returns true if the call has timed out
+        private synchronized boolean stop() {
+            stopped = true;
+            future.cancel(false);
+            if (expired) {
+                // The interrupt was meant for the call only
+                Thread.interrupted();
+            }
+            return expired;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Page;
+import org.embulk.spi.TransactionalPageOutput;
+
+/**
+ * Puts the calls of the output under the watchdog, on whichever thread feeds it.
+ */
+class WatchedPageOutput implements TransactionalPageOutput {
+    private final TransactionalPageOutput output;
+    private final String addDescription;
+    private final String finishDescription;
+    private final String commitDescription;
+    private final long addTimeoutSeconds;
+    private final long commitTimeoutSeconds;
+
+    WatchedPageOutput(TransactionalPageOutput output, String tag, int taskIndex, long addTimeoutSeconds, long commitTimeoutSeconds) {
+        this.output = output;
+        this.addDescription = describe("add", tag, taskIndex);
+        this.finishDescription = describe("finish", tag, taskIndex);
+        this.commitDescription = describe("commit", tag, taskIndex);
+        this.addTimeoutSeconds = addTimeoutSeconds;
+        this.commitTimeoutSeconds = commitTimeoutSeconds;
+    }
+
+    @Override
+    public void add(Page page) {
+        Watchdog.run(addDescription, addTimeoutSeconds, () -> output.add(page));
+    }
+
+    @Override
+    public void finish() {
+        Watchdog.run(finishDescription, commitTimeoutSeconds, output::finish);
+    }
+
+    @Override
+    public void close() {
+        output.close();
+    }
+
+    @Override
+    public void abort() {
+        output.abort();
+    }
+
+    @Override
+    public TaskReport commit() {
+        return Watchdog.call(commitDescription, commitTimeoutSeconds, output::commit);
+    }
+
+    private static String describe(String method, String tag, int taskIndex) {
+        return String.format("#%s of %s on index %d", method, tag, taskIndex);
+    }
+}
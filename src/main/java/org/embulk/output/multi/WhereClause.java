@@ -0,0 +1,350 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Column;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compiles a {@code where} expression such as {@code status == 'active' and user_id > 1000}
+ * into a {@link RowFilter} bound to the columns of a {@link Schema}.
+ *
+ * <p>Supported syntax: comparisons ({@code == = != <> < <= > >=}) between a column and a literal,
+ * {@code is null} / {@code is not null}, {@code and}, {@code or}, {@code not} and parentheses.
+ * Comparisons against a null column value are false, as in SQL.
+ */
+class WhereClause {
+    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final String expression;
+    private final Schema schema;
+    private final List<Token> tokens;
+    private int position;
+
+    private WhereClause(String expression, Schema schema) {
+        this.expression = expression;
+        this.schema = schema;
+        this.tokens = tokenize(expression);
+        this.position = 0;
+    }
+
+    static RowFilter compile(String expression, Schema schema) {
+        final WhereClause clause = new WhereClause(expression, schema);
+        final RowFilter filter = clause.parseOr();
+        if (clause.peek().kind != TokenKind.END) {
+            throw clause.error("Unexpected '" + clause.peek().text + "'");
+        }
+        return filter;
+    }
+
+    private RowFilter parseOr() {
+        RowFilter filter = parseAnd();
+        while (acceptKeyword("or")) {
+            filter = filter.or(parseAnd());
+        }
+        return filter;
+    }
+
+    private RowFilter parseAnd() {
+        RowFilter filter = parseNot();
+        while (acceptKeyword("and")) {
+            filter = filter.and(parseNot());
+        }
+        return filter;
+    }
+
+    private RowFilter parseNot() {
+        if (acceptKeyword("not")) {
+            return parseNot().negate();
+        }
+        return parsePrimary();
+    }
+
+    private RowFilter parsePrimary() {
+        final Token token = next();
+        if (token.kind == TokenKind.LEFT_PAREN) {
+            final RowFilter filter = parseOr();
+            if (next().kind != TokenKind.RIGHT_PAREN) {
+                throw error("')' is expected");
+            }
+            return filter;
+        }
+        if (token.kind != TokenKind.IDENTIFIER && token.kind != TokenKind.QUOTED_IDENTIFIER) {
+            throw error("Column name is expected but got '" + token.text + "'");
+        }
+        final Column column = lookupColumn(token.text);
+
+        if (acceptKeyword("is")) {
+            final boolean negated = acceptKeyword("not");
+            if (!acceptKeyword("null")) {
+                throw error("'null' is expected after 'is'");
+            }
+            return negated ? reader -> !reader.isNull(column) : reader -> reader.isNull(column);
+        }
+
+        final Token operatorToken = next();
+        if (operatorToken.kind != TokenKind.OPERATOR) {
+            throw error("Comparison operator is expected after '" + column.getName() + "'");
+        }
+        final Operator operator = Operator.of(operatorToken.text);
+        final Token literal = next();
+        if (literal.kind == TokenKind.IDENTIFIER && literal.text.equalsIgnoreCase("null")) {
+            if (operator == Operator.EQUAL) {
+                return reader -> reader.isNull(column);
+            } else if (operator == Operator.NOT_EQUAL) {
+                return reader -> !reader.isNull(column);
+            }
+            throw error("Only '==' and '!=' can be used with null");
+        }
+        return compileComparison(column, operator, literal);
+    }
+
+    private RowFilter compileComparison(Column column, Operator operator, Token literal) {
+        final Type type = column.getType();
+        if (Types.LONG.equals(type)) {
+            if (isIntegral(literal)) {
+                final long value = parseLong(literal, column);
+                return reader -> !reader.isNull(column) && operator.matches(Long.compare(reader.getLong(column), value));
+            }
+            final double value = parseDouble(literal, column);
+            return reader -> !reader.isNull(column) && operator.matches(Double.compare(reader.getLong(column), value));
+        } else if (Types.DOUBLE.equals(type)) {
+            final double value = parseDouble(literal, column);
+            return reader -> !reader.isNull(column) && operator.matches(Double.compare(reader.getDouble(column), value));
+        } else if (Types.STRING.equals(type)) {
+            if (literal.kind != TokenKind.STRING) {
+                throw error("String literal is expected for column '" + column.getName() + "'");
+            }
+            final String value = literal.text;
+            if (operator == Operator.EQUAL) {
+                return reader -> !reader.isNull(column) && value.equals(reader.getString(column));
+            } else if (operator == Operator.NOT_EQUAL) {
+                return reader -> !reader.isNull(column) && !value.equals(reader.getString(column));
+            }
+            return reader -> !reader.isNull(column) && operator.matches(reader.getString(column).compareTo(value));
+        } else if (Types.BOOLEAN.equals(type)) {
+            if (literal.kind != TokenKind.IDENTIFIER
+                    || !(literal.text.equalsIgnoreCase("true") || literal.text.equalsIgnoreCase("false"))) {
+                throw error("Boolean literal is expected for column '" + column.getName() + "'");
+            }
+            if (operator != Operator.EQUAL && operator != Operator.NOT_EQUAL) {
+                throw error("Only '==' and '!=' can be used with boolean column '" + column.getName() + "'");
+            }
+            final boolean value = Boolean.parseBoolean(literal.text.toLowerCase(Locale.ENGLISH));
+            return reader -> !reader.isNull(column) && operator.matches(Boolean.compare(reader.getBoolean(column), value));
+        } else if (Types.TIMESTAMP.equals(type)) {
+            if (literal.kind != TokenKind.STRING) {
+                throw error("Timestamp literal is expected for column '" + column.getName() + "'");
+            }
+            final Instant value = parseTimestamp(literal.text);
+            return reader -> !reader.isNull(column) && operator.matches(reader.getTimestampInstant(column).compareTo(value));
+        }
+        throw error("Column '" + column.getName() + "' of type " + type + " can not be compared");
+    }
+
+    private Column lookupColumn(String name) {
+        for (Column column : schema.getColumns()) {
+            if (column.getName().equals(name)) {
+                return column;
+            }
+        }
+        throw error("Column '" + name + "' is not found");
+    }
+
+    private boolean isIntegral(Token literal) {
+        return literal.kind == TokenKind.NUMBER && literal.text.matches("[-+]?\\d+");
+    }
+
+    private double parseDouble(Token literal, Column column) {
+        if (literal.kind != TokenKind.NUMBER) {
+            throw error("Numeric literal is expected for column '" + column.getName() + "'");
+        }
+        try {
+            return Double.parseDouble(literal.text);
+        } catch (NumberFormatException e) {
+            throw error("Invalid number '" + literal.text + "' for column '" + column.getName() + "'");
+        }
+    }
+
+    private long parseLong(Token literal, Column column) {
+        try {
+            return Long.parseLong(literal.text);
+        } catch (NumberFormatException e) {
+            throw error("Number '" + literal.text + "' is out of the range of long column '" + column.getName() + "'");
+        }
+    }
+
+    private Instant parseTimestamp(String text) {
+        try {
+            return Instant.parse(text);
+        } catch (DateTimeParseException ignored) {
+            // fall through to the other formats
+        }
+        try {
+            return LocalDateTime.parse(text, DATE_TIME_FORMATTER).toInstant(ZoneOffset.UTC);
+        } catch (DateTimeParseException ignored) {
+            // fall through to the other formats
+        }
+        try {
+            return LocalDate.parse(text).atStartOfDay(ZoneOffset.UTC).toInstant();
+        } catch (DateTimeParseException e) {
+            throw error("Invalid timestamp literal '" + text + "'");
+        }
+    }
+
+    private boolean acceptKeyword(String keyword) {
+        final Token token = peek();
+        if (token.kind == TokenKind.IDENTIFIER && token.text.equalsIgnoreCase(keyword)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private Token peek() {
+        return tokens.get(position);
+    }
+
+    private Token next() {
+        final Token token = tokens.get(position);
+        if (token.kind != TokenKind.END) {
+            position++;
+        }
+        return token;
+    }
+
+    private ConfigException error(String message) {
+        return new ConfigException(String.format("Invalid where clause \"%s\": %s.", expression, message));
+    }
+
+    private List<Token> tokenize(String text) {
+        final List<Token> result = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            final char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(') {
+                result.add(new Token(TokenKind.LEFT_PAREN, "("));
+                i++;
+            } else if (c == ')') {
+                result.add(new Token(TokenKind.RIGHT_PAREN, ")"));
+                i++;
+            } else if (c == '\'' || c == '"' || c == '`') {
+                final StringBuilder sb = new StringBuilder();
+                int j = i + 1;
+                while (true) {
+                    if (j >= text.length()) {
+                        throw error("Unterminated quote");
+                    }
+                    final char d = text.charAt(j);
+                    if (d == c) {
+                        if (j + 1 < text.length() && text.charAt(j + 1) == c) {
+                            sb.append(c);
+                            j += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    sb.append(d);
+                    j++;
+                }
+                result.add(new Token(c == '`' ? TokenKind.QUOTED_IDENTIFIER : TokenKind.STRING, sb.toString()));
+                i = j + 1;
+            } else if ("=!<>".indexOf(c) >= 0) {
+                int j = i + 1;
+                if (j < text.length() && "=>".indexOf(text.charAt(j)) >= 0) {
+                    j++;
+                }
+                result.add(new Token(TokenKind.OPERATOR, text.substring(i, j)));
+                i = j;
+            } else if (Character.isDigit(c) || ((c == '-' || c == '+') && i + 1 < text.length() && Character.isDigit(text.charAt(i + 1)))) {
+                int j = i + 1;
+                while (j < text.length() && (Character.isDigit(text.charAt(j)) || ".eE".indexOf(text.charAt(j)) >= 0
+                        || ((text.charAt(j) == '-' || text.charAt(j) == '+') && "eE".indexOf(text.charAt(j - 1)) >= 0))) {
+                    j++;
+                }
+                result.add(new Token(TokenKind.NUMBER, text.substring(i, j)));
+                i = j;
+            } else if (Character.isLetter(c) || c == '_') {
+                int j = i + 1;
+                while (j < text.length() && (Character.isLetterOrDigit(text.charAt(j)) || text.charAt(j) == '_')) {
+                    j++;
+                }
+                result.add(new Token(TokenKind.IDENTIFIER, text.substring(i, j)));
+                i = j;
+            } else {
+                throw error("Unexpected character '" + c + "'");
+            }
+        }
+        result.add(new Token(TokenKind.END, "<end>"));
+        return result;
+    }
+
+    private enum TokenKind {
+        IDENTIFIER, QUOTED_IDENTIFIER, STRING, NUMBER, OPERATOR, LEFT_PAREN, RIGHT_PAREN, END
+    }
+
+    private static class Token {
+        private final TokenKind kind;
+        private final String text;
+
+        private Token(TokenKind kind, String text) {
+            this.kind = kind;
+            this.text = text;
+        }
+    }
+
+    private enum Operator {
+        EQUAL, NOT_EQUAL, LESS, LESS_OR_EQUAL, GREATER, GREATER_OR_EQUAL;
+
+        static Operator of(String text) {
+            switch (text) {
+                case "==":
+                case "=":
+                    return EQUAL;
+                case "!=":
+                case "<>":
+                    return NOT_EQUAL;
+                case "<":
+                    return LESS;
+                case "<=":
+                    return LESS_OR_EQUAL;
+                case ">":
+                    return GREATER;
+                case ">=":
+                    return GREATER_OR_EQUAL;
+                default:
+                    throw new ConfigException("Unknown operator '" + text + "' in where clause.");
+            }
+        }
+
+        boolean matches(int comparison) {
+            switch (this) {
+                case EQUAL:
+                    return comparison == 0;
+                case NOT_EQUAL:
+                    return comparison != 0;
+                case LESS:
+                    return comparison < 0;
+                case LESS_OR_EQUAL:
+                    return comparison <= 0;
+                case GREATER:
+                    return comparison > 0;
+                default:
+                    return comparison >= 0;
+            }
+        }
+    }
+}
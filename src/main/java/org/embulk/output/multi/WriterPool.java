@@ -0,0 +1,209 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Page;
+import org.embulk.spi.TransactionalPageOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.function.IntFunction;
+
+/**
+ * Long-lived outputs of an output with the {@code writers} option. The output's transaction runs one task per writer;
+ * every task of the job feeds the writer of its index modulo the writer count through the writer's bounded queue, and
+ * the transaction commits the writers once all tasks have succeeded. The writers live in the JVM of the transaction,
+ * so every task must run there.
+ */
+class WriterPool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriterPool.class);
+    private static final Map<String, WriterPool> POOLS = new HashMap<>();
+
+    private final String key;
+    private final AsyncPageOutput[] writers;
+    // Reports of the committed writers, kept for the cleanup
+    private List<TaskReport> reports;
+    private boolean closed;
+
+    private WriterPool(String key, int writerCount) {
+        this.key = key;
+        this.writers = new AsyncPageOutput[writerCount];
+    }
+
+    static String keyOf(String jobId, String tag) {
+        return jobId + "/" + tag;
+    }
+
+    // Tasks of the output itself: one per writer, but never more than the tasks feeding them
+    static int writerCount(MultiOutputPlugin.OutputTask outputTask, int taskCount) {
+        return outputTask.getWriters().map(writers -> Math.min(writers, taskCount)).orElse(taskCount);
+    }
+
+    /**
+     * Creates the pool of the key. Called by the transaction before the tasks start.
+     */
+    static WriterPool create(String key, int writerCount) {
+        synchronized (POOLS) {
+            final WriterPool pool = new WriterPool(key, writerCount);
+            POOLS.put(key, pool);
+            return pool;
+        }
+    }
+
+    static WriterPool get(String key) {
+        synchronized (POOLS) {
+            final WriterPool pool = POOLS.get(key);
+            if (pool == null) {
+                throw new IllegalStateException(String.format(
+                        "Writers of %s are not found in this JVM. 'writers' needs every task to run in the JVM of the transaction.", key));
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Returns the reports of the committed writers of the key for the cleanup, and forgets the pool.
+     */
+    static Optional<List<TaskReport>> takeReports(String key) {
+        synchronized (POOLS) {
+            final WriterPool pool = POOLS.remove(key);
+            return pool != null ? Optional.ofNullable(pool.reports) : Optional.empty();
+        }
+    }
+
+    /**
+     * Returns the output of a task, which feeds the writer of the task. The writer is opened by its first task, with
+     * the index of the writer.
+     */
+    TransactionalPageOutput join(int taskIndex, IntFunction<TransactionalPageOutput> opener, Executor executor, int queueSize) {
+        final int writerIndex = taskIndex % writers.length;
+        synchronized (writers) {
+            if (closed) {
+                throw new IllegalStateException(String.format("Writers of %s have already been closed.", key));
+            }
+            if (writers[writerIndex] == null) {
+                // The transaction holds a lease of the shared executor until it commits the writers
+                writers[writerIndex] = new AsyncPageOutput(opener.apply(writerIndex), executor, queueSize);
+            }
+            return new Member(writers[writerIndex], writerIndex);
+        }
+    }
+
+    /**
+     * Finishes and commits every writer after all tasks have succeeded. A writer that no task opened reports empty.
+     */
+    List<TaskReport> commit() {
+        synchronized (writers) {
+            final List<TaskReport> result = new ArrayList<>(writers.length);
+            int committed = 0;
+            try {
+                for (AsyncPageOutput writer : writers) {
+                    if (writer != null) {
+                        writer.finish();
+                    }
+                }
+                for (AsyncPageOutput writer : writers) {
+                    result.add(writer != null ? writer.commit() : Exec.newTaskReport());
+                    committed++;
+                }
+            } catch (RuntimeException e) {
+                abort(committed);
+                throw e;
+            } finally {
+                closeAll();
+            }
+            reports = result;
+            return result;
+        }
+    }
+
+    /**
+     * Aborts every writer when a task failed, and forgets the pool.
+     */
+    void abort() {
+        synchronized (writers) {
+            try {
+                abort(0);
+            } finally {
+                closeAll();
+            }
+        }
+    }
+
+    private void abort(int from) {
+        synchronized (POOLS) {
+            POOLS.remove(key, this);
+        }
+        for (int i = from; i < writers.length; i++) {
+            if (writers[i] == null) {
+                continue;
+            }
+            try {
+                writers[i].abort();
+            } catch (RuntimeException e) {
+                LOGGER.warn(String.format("Failed to abort writer %d of %s.", i, key), e);
+            }
+        }
+    }
+
+    private void closeAll() {
+        closed = true;
+        for (int i = 0; i < writers.length; i++) {
+            if (writers[i] == null) {
+                continue;
+            }
+            try {
+                writers[i].close();
+            } catch (RuntimeException e) {
+                LOGGER.warn(String.format("Failed to close writer %d of %s.", i, key), e);
+            }
+            writers[i] = null;
+        }
+    }
+
+    /**
+     * Output of one task. The writer is finished, committed or aborted by the transaction, so the task only reports
+     * which writer took its rows.
+     */
+    private static class Member implements TransactionalPageOutput {
+        private final AsyncPageOutput writer;
+        private final int writerIndex;
+
+        private Member(AsyncPageOutput writer, int writerIndex) {
+            this.writer = writer;
+            this.writerIndex = writerIndex;
+        }
+
+        @Override
+        public void add(Page page) {
+            writer.add(page);
+        }
+
+        @Override
+        public void finish() {
+            writer.throwIfFailed();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public TaskReport commit() {
+            writer.throwIfFailed();
+            final TaskReport report = Exec.newTaskReport();
+            report.set("writer", writerIndex);
+            return report;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Page;
+import org.embulk.spi.TransactionalPageOutput;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestAsyncPageOutput {
+    @Test
+    void testPageOrder() throws Exception {
+        // 複数スレッドの共有executorでも、1つの出力へは1つのdrainだけがページを順に渡すこと
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final RecordingOutput recording = new RecordingOutput();
+            final AsyncPageOutput output = new AsyncPageOutput(recording, executor, 2);
+            for (int i = 0; i < 1000; i++) {
+                output.add(page(i));
+            }
+            output.finish();
+            output.commit();
+            output.close();
+
+            assertEquals(1000, recording.pages.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i, (int) recording.pages.get(i));
+            }
+            assertEquals(1, recording.maxConcurrentAdds.get());
+            assertTrue(recording.finished);
+            assertTrue(recording.committed);
+            assertTrue(recording.closed);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testErrorOnAdd() {
+        final RecordingOutput recording = new RecordingOutput();
+        recording.failAt = 1;
+        final AsyncPageOutput output = new AsyncPageOutput(recording, Runnable::run, 4);
+        output.add(page(0));
+        // 2ページ目のエラーは次のaddで投げられること
+        output.add(page(1));
+        final RuntimeException e = assertThrows(RuntimeException.class, () -> output.add(page(2)));
+        assertEquals("failed at 1", e.getMessage());
+        // 失敗後のページは出力に渡されず解放されること
+        assertEquals(1, recording.pages.size());
+        output.abort();
+        output.close();
+        assertTrue(recording.aborted);
+        assertTrue(recording.closed);
+    }
+
+    @Test
+    void testErrorOnFinishAndCommit() {
+        final RecordingOutput recording = new RecordingOutput();
+        recording.failAt = 0;
+        final AsyncPageOutput output = new AsyncPageOutput(recording, Runnable::run, 4);
+        output.add(page(0));
+        // finishとcommitも出力に渡る前に失敗すること
+        assertThrows(RuntimeException.class, output::finish);
+        assertThrows(RuntimeException.class, output::commit);
+        assertThrows(RuntimeException.class, output::throwIfFailed);
+        assertFalse(recording.finished);
+        assertFalse(recording.committed);
+        output.close();
+    }
+
+    @Test
+    void testReleaseDiscardedPages() {
+        final ManualExecutor executor = new ManualExecutor();
+        final RecordingOutput recording = new RecordingOutput();
+        final AsyncPageOutput output = new AsyncPageOutput(recording, executor, 4);
+        final AtomicInteger consumed = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            output.add(page(i), consumed::incrementAndGet);
+        }
+        assertEquals(0, consumed.get());
+
+        // abortされると残りのページは出力に渡されずに解放されること
+        final Thread aborting = new Thread(output::abort);
+        aborting.start();
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            while (aborting.getState() != Thread.State.WAITING) {
+                Thread.sleep(10);
+            }
+            executor.runAll();
+            aborting.join();
+        });
+        assertEquals(3, consumed.get());
+        assertTrue(recording.pages.isEmpty());
+        assertTrue(recording.aborted);
+        output.close();
+        assertTrue(recording.closed);
+    }
+
+    @Test
+    void testInterruptedAdd() {
+        final ManualExecutor executor = new ManualExecutor();
+        final RecordingOutput recording = new RecordingOutput();
+        final AsyncPageOutput output = new AsyncPageOutput(recording, executor, 1);
+        final AtomicInteger consumed = new AtomicInteger();
+        output.add(page(0), consumed::incrementAndGet);
+
+        // キューが一杯の間に割り込まれたページは保留数に残らないこと
+        Thread.currentThread().interrupt();
+        assertThrows(RuntimeException.class, () -> output.add(page(1), consumed::incrementAndGet));
+        assertTrue(Thread.interrupted());
+        assertEquals(1, consumed.get());
+
+        executor.runAll();
+        assertEquals(2, consumed.get());
+        assertTimeoutPreemptively(Duration.ofSeconds(5), output::finish);
+        assertEquals(Collections.singletonList(0), recording.pages);
+        output.close();
+    }
+
+    private static Page page(int index) {
+        final byte[] bytes = new byte[8];
+        bytes[4] = (byte) index;
+        bytes[5] = (byte) (index >> 8);
+        return Page.wrap(Buffer.wrap(bytes, 0, bytes.length));
+    }
+
+    // 明示的に呼ばれるまでタスクを実行しないexecutor
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        private void runAll() {
+            while (true) {
+                final Runnable task;
+                synchronized (this) {
+                    if (tasks.isEmpty()) {
+                        return;
+                    }
+                    task = tasks.remove(0);
+                }
+                task.run();
+            }
+        }
+    }
+
+    private static class RecordingOutput implements TransactionalPageOutput {
+        private final List<Integer> pages = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger concurrentAdds = new AtomicInteger();
+        private final AtomicInteger maxConcurrentAdds = new AtomicInteger();
+        private int failAt = -1;
+        private volatile boolean finished;
+        private volatile boolean closed;
+        private volatile boolean aborted;
+        private volatile boolean committed;
+
+        @Override
+        public void add(Page page) {
+            final int concurrent = concurrentAdds.incrementAndGet();
+            maxConcurrentAdds.accumulateAndGet(concurrent, Math::max);
+            try {
+                final byte[] bytes = page.buffer().array();
+                final int index = (bytes[4] & 0xff) | (bytes[5] & 0xff) << 8;
+                if (index == failAt) {
+                    throw new RuntimeException("failed at " + index);
+                }
+                pages.add(index);
+            } finally {
+                page.release();
+                concurrentAdds.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void finish() {
+            finished = true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public TaskReport commit() {
+            committed = true;
+            return null;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Exec;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestAsyncRunControl {
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+
+    private ExecutorService executorService;
+
+    @BeforeEach
+    void setUp() {
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    void testDetachTeeGroup() {
+        // 3つのoutputsのうち2つがフォーマッタを共有し、min_successは2
+        final MultiOutputPlugin.PluginTask task = pluginTask(2, null);
+        final AsyncRunControl runControl = AsyncRunControl.start(task, taskSource -> Collections.emptyList(), executorService,
+                Arrays.asList(delegate("file_0+file_1", 0, false), delegate("stdout_2", 2, false)));
+        // グループが外れると2つのoutputが失われ、残り1つではmin_successを満たさないこと
+        runControl.detach("file_0+file_1");
+        assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> assertThrows(CancellationException.class, runControl::waitAndGetResult));
+    }
+
+    @Test
+    void testDetachAtBarrierCountsOutputs() throws Exception {
+        final MultiOutputPlugin.PluginTask task = pluginTask(2, 1L);
+        final List<TaskReport> reports = Collections.singletonList(Exec.newTaskReport());
+        final AsyncRunControl runControl = AsyncRunControl.start(task, taskSource -> reports, executorService,
+                Arrays.asList(delegate("file_0+file_1", 0, false), delegate("stdout_2", 2, false)));
+        runControl.addTaskSource("file_0+file_1", Exec.newTaskSource());
+        // stdout_2がバリアに間に合わず外れても、グループの2つのoutputでmin_successを満たすこと
+        assertEquals(reports, runControl.waitAndGetResult());
+        assertEquals(Collections.singleton("stdout_2"), runControl.getDetachedTags());
+    }
+
+    @Test
+    void testMissingTeeGroupAtBarrier() {
+        final MultiOutputPlugin.PluginTask task = pluginTask(2, 1L);
+        final AsyncRunControl runControl = AsyncRunControl.start(task, taskSource -> Collections.emptyList(), executorService,
+                Arrays.asList(delegate("file_0+file_1", 0, false), delegate("stdout_2", 2, false)));
+        runControl.addTaskSource("stdout_2", Exec.newTaskSource());
+        // グループがバリアに間に合わなければ残り1つのoutputではmin_successを満たさないこと
+        assertThrows(ExecutionException.class, runControl::waitAndGetResult);
+    }
+
+    private static MultiOutputPlugin.PluginTask pluginTask(int minSuccess, Long barrierTimeoutSeconds) {
+        final ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("outputs", Arrays.asList(
+                        CONFIG_MAPPER_FACTORY.newConfigSource().set("type", "file"),
+                        CONFIG_MAPPER_FACTORY.newConfigSource().set("type", "file"),
+                        CONFIG_MAPPER_FACTORY.newConfigSource().set("type", "stdout")))
+                .set("min_success", minSuccess)
+                .set("barrier_timeout_seconds", barrierTimeoutSeconds);
+        return CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, MultiOutputPlugin.PluginTask.class);
+    }
+
+    private static OutputPluginDelegate delegate(String tag, int index, boolean required) {
+        final ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource().set("required", required);
+        return new OutputPluginDelegate(tag, index, null, config,
+                CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, MultiOutputPlugin.OutputTask.class), null);
+    }
+}
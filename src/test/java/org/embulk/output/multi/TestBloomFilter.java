@@ -0,0 +1,69 @@
+package org.embulk.output.multi;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestBloomFilter {
+    @Test
+    void testPut() {
+        final BloomFilter filter = BloomFilter.create(1000, 0.001);
+        assertFalse(filter.put(RowKeyHash.mix(1)));
+        assertTrue(filter.put(RowKeyHash.mix(1)));
+        assertFalse(filter.put(RowKeyHash.mix(2)));
+    }
+
+    @Test
+    void testFalsePositiveRate() {
+        // 想定件数までは誤検出率がfppの数倍程度に収まること
+        final BloomFilter filter = BloomFilter.create(100000, 0.01);
+        int falsePositives = 0;
+        for (long i = 0; i < 100000; i++) {
+            if (filter.put(RowKeyHash.mix(i))) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 2000, "false positives: " + falsePositives);
+    }
+
+    @Test
+    void testBits() {
+        assertEquals(64, BloomFilter.bits(1, 0.5));
+        // 1億件、誤検出率0.1%で約1.44Gbit
+        final long bits = BloomFilter.bits(100_000_000L, 0.001);
+        assertEquals(0, bits % 64);
+        assertTrue(bits > 1_400_000_000L && bits < 1_500_000_000L, "bits: " + bits);
+    }
+
+    @Test
+    void testShared() {
+        final BloomFilter first = BloomFilter.acquire("test/dedupe", 1000, 0.001);
+        final BloomFilter second = BloomFilter.acquire("test/dedupe", 1000, 0.001);
+        try {
+            assertSame(first, second);
+            assertFalse(first.put(42));
+            assertTrue(second.put(42));
+        } finally {
+            first.release();
+            second.release();
+        }
+    }
+
+    @Test
+    void testRelease() {
+        // タスク単位のフィルタはreleaseですぐに解放され、以降は使えないこと
+        final BloomFilter filter = BloomFilter.create(1000, 0.001);
+        filter.put(1);
+        filter.release();
+        assertThrows(IllegalStateException.class, () -> filter.put(1));
+        filter.release();
+
+        // 共有フィルタは最後の参照が解放されるまで使えること
+        final BloomFilter first = BloomFilter.acquire("test/release", 1000, 0.001);
+        final BloomFilter second = BloomFilter.acquire("test/release", 1000, 0.001);
+        first.release();
+        assertFalse(second.put(1));
+        second.release();
+        assertThrows(IllegalStateException.class, () -> second.put(2));
+    }
+}
@@ -0,0 +1,26 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestByteSize {
+    @Test
+    void testParse() {
+        assertEquals(1048576L, ByteSize.parse("size", "1048576"));
+        assertEquals(512L, ByteSize.parse("size", "512B"));
+        assertEquals(512L * 1024, ByteSize.parse("size", "512KB"));
+        assertEquals(64L * 1024 * 1024, ByteSize.parse("size", "64MB"));
+        assertEquals(64L * 1024 * 1024, ByteSize.parse("size", "64 mib"));
+        assertEquals(2L * 1024 * 1024 * 1024, ByteSize.parse("size", "2G"));
+    }
+
+    @Test
+    void testInvalid() {
+        assertThrows(ConfigException.class, () -> ByteSize.parse("size", "abc"));
+        assertThrows(ConfigException.class, () -> ByteSize.parse("size", "-1MB"));
+        assertThrows(ConfigException.class, () -> ByteSize.parse("size", "1.5GB"));
+        assertThrows(ConfigException.class, () -> ByteSize.parse("size", "99999999999TB"));
+    }
+}
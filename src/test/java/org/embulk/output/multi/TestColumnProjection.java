@@ -0,0 +1,76 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestColumnProjection {
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+
+    private Schema schema;
+
+    @BeforeEach
+    void setUp() {
+        schema = Schema.builder()
+                .add("user_id", Types.LONG)
+                .add("username", Types.STRING)
+                .add("email", Types.STRING)
+                .add("status", Types.STRING)
+                .build();
+    }
+
+    @Test
+    void testWithoutProjection() {
+        final ColumnProjection projection = ColumnProjection.of(outputTask(CONFIG_MAPPER_FACTORY.newConfigSource()), schema);
+        assertTrue(projection.isIdentity());
+        assertSame(schema, projection.getSchema());
+    }
+
+    @Test
+    void testColumns() {
+        // 指定した順序でスキーマが絞り込まれること
+        final ColumnProjection projection = ColumnProjection.of(outputTask(CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("columns", Arrays.asList("email", "user_id"))), schema);
+        assertFalse(projection.isIdentity());
+        assertEquals(2, projection.getSchema().getColumnCount());
+        assertEquals("email", projection.getSchema().getColumn(0).getName());
+        assertEquals("user_id", projection.getSchema().getColumn(1).getName());
+        assertEquals(2, projection.getSourceColumns().get(0).getIndex());
+        assertEquals(0, projection.getSourceColumns().get(1).getIndex());
+    }
+
+    @Test
+    void testExcludeColumns() {
+        final ColumnProjection projection = ColumnProjection.of(outputTask(CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("exclude_columns", Arrays.asList("username"))), schema);
+        assertEquals(3, projection.getSchema().getColumnCount());
+        assertEquals("user_id", projection.getSchema().getColumn(0).getName());
+        assertEquals("email", projection.getSchema().getColumn(1).getName());
+        assertEquals("status", projection.getSchema().getColumn(2).getName());
+    }
+
+    @Test
+    void testInvalidProjection() {
+        assertThrows(ConfigException.class, () -> ColumnProjection.of(outputTask(CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("columns", Arrays.asList("unknown"))), schema));
+        assertThrows(ConfigException.class, () -> ColumnProjection.of(outputTask(CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("columns", Arrays.asList("email", "email"))), schema));
+        assertThrows(ConfigException.class, () -> ColumnProjection.of(outputTask(CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("exclude_columns", Arrays.asList("user_id", "username", "email", "status"))), schema));
+        assertThrows(ConfigException.class, () -> ColumnProjection.of(outputTask(CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("columns", Arrays.asList("email"))
+                .set("exclude_columns", Arrays.asList("status"))), schema));
+    }
+
+    private static MultiOutputPlugin.OutputTask outputTask(ConfigSource config) {
+        return CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, MultiOutputPlugin.OutputTask.class);
+    }
+}
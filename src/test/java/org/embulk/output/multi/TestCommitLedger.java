@@ -0,0 +1,167 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Exec;
+import org.embulk.spi.OutputPlugin;
+import org.embulk.spi.Page;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalPageOutput;
+import org.embulk.spi.type.Types;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestCommitLedger {
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+
+    @TempDir
+    Path resumeStatePath;
+
+    @Test
+    void testRecordAndFind() {
+        final CommitLedger ledger = CommitLedger.of(pluginTask("job")).get();
+        assertEquals(Optional.empty(), ledger.find("file_0", 0));
+
+        final TaskReport report = Exec.newTaskReport().set("path", "/tmp/out.csv").set("rows", 10L);
+        ledger.record("file_0", 0, report);
+        // 記録したタスクレポートがそのまま読めること
+        final TaskReport found = ledger.find("file_0", 0).get();
+        assertEquals("/tmp/out.csv", found.get(String.class, "path"));
+        assertEquals(10L, (long) found.get(Long.class, "rows"));
+        // 他のoutputやタスクには影響しないこと
+        assertEquals(Optional.empty(), ledger.find("file_0", 1));
+        assertEquals(Optional.empty(), ledger.find("file_1", 0));
+
+        // 上書きできること
+        ledger.record("file_0", 0, Exec.newTaskReport().set("path", "/tmp/retry.csv"));
+        assertEquals("/tmp/retry.csv", ledger.find("file_0", 0).get().get(String.class, "path"));
+    }
+
+    @Test
+    void testLayout() throws Exception {
+        final CommitLedger ledger = CommitLedger.of(pluginTask("job")).get();
+        ledger.record("file_0", 3, Exec.newTaskReport().set("path", "/tmp/out.csv"));
+        // <resume_state_path>/<job id>/<tag>/<task index>.json に書かれ、一時ファイルが残らないこと
+        final Path entry = resumeStatePath.resolve("job").resolve("file_0").resolve("3.json");
+        assertTrue(Files.exists(entry));
+        try (Stream<Path> files = Files.list(entry.getParent())) {
+            assertEquals(1, files.count());
+        }
+
+        // 壊れたエントリはコミットされていないものとして扱うこと
+        Files.write(entry, "{".getBytes());
+        assertEquals(Optional.empty(), ledger.find("file_0", 3));
+
+        // ジョブの状態はまとめて消えること
+        ledger.delete();
+        assertFalse(Files.exists(resumeStatePath.resolve("job")));
+        // resume_state_pathがなければ台帳もない
+        assertEquals(Optional.empty(), CommitLedger.of(CONFIG_MAPPER_FACTORY.createConfigMapper().map(
+                CONFIG_MAPPER_FACTORY.newConfigSource().set("outputs", Collections.emptyList()), MultiOutputPlugin.PluginTask.class)));
+    }
+
+    @Test
+    void testResumeSkipsCommittedTask() {
+        final MultiOutputPlugin.PluginTask task = pluginTask("job");
+        final CommitLedger ledger = CommitLedger.of(task).get();
+        ledger.record("file_0", 0, Exec.newTaskReport().set("path", "/tmp/out.csv"));
+
+        final RecordingPlugin committed = new RecordingPlugin();
+        final RecordingPlugin pending = new RecordingPlugin();
+        final MultiTransactionalPageOutput output = MultiTransactionalPageOutput.open(task, Schema.builder().add("id", Types.LONG).build(), 0,
+                Arrays.asList(delegate("file_0", 0, committed), delegate("file_1", 1, pending)), SharedExecutor.acquire(2, false));
+        output.finish();
+        output.commit();
+        output.close();
+
+        // コミット済みのoutputは開かれず、残りのoutputだけが実行されて記録されること
+        assertEquals(0, committed.opened);
+        assertEquals(1, pending.opened);
+        assertTrue(pending.output.committed);
+        assertTrue(ledger.find("file_1", 0).isPresent());
+        assertEquals("/tmp/out.csv", ledger.find("file_0", 0).get().get(String.class, "path"));
+    }
+
+    private MultiOutputPlugin.PluginTask pluginTask(String jobId) {
+        final MultiOutputPlugin.PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(
+                CONFIG_MAPPER_FACTORY.newConfigSource()
+                        .set("outputs", Arrays.asList(
+                                CONFIG_MAPPER_FACTORY.newConfigSource().set("type", "file"),
+                                CONFIG_MAPPER_FACTORY.newConfigSource().set("type", "file")))
+                        .set("resume_state_path", resumeStatePath.toString()),
+                MultiOutputPlugin.PluginTask.class);
+        task.setJobId(jobId);
+        return task;
+    }
+
+    private static OutputPluginDelegate delegate(String tag, int index, OutputPlugin plugin) {
+        final ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource();
+        return new OutputPluginDelegate(tag, index, plugin, config,
+                CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, MultiOutputPlugin.OutputTask.class), Exec.newTaskSource());
+    }
+
+    private static class RecordingPlugin implements OutputPlugin {
+        private final RecordingOutput output = new RecordingOutput();
+        private int opened;
+
+        @Override
+        public ConfigDiff transaction(ConfigSource config, Schema schema, int taskCount, OutputPlugin.Control control) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ConfigDiff resume(TaskSource taskSource, Schema schema, int taskCount, OutputPlugin.Control control) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void cleanup(TaskSource taskSource, Schema schema, int taskCount, List<TaskReport> successTaskReports) {
+        }
+
+        @Override
+        public TransactionalPageOutput open(TaskSource taskSource, Schema schema, int taskIndex) {
+            opened++;
+            return output;
+        }
+    }
+
+    private static class RecordingOutput implements TransactionalPageOutput {
+        private volatile boolean committed;
+
+        @Override
+        public void add(Page page) {
+            page.release();
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public TaskReport commit() {
+            committed = true;
+            return Exec.newTaskReport().set("path", "/tmp/new.csv");
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.embulk.output.multi;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestLatencyHistogram {
+    @Test
+    void testPercentile() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(1_000_000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMax());
+        // 1000 は [512, 1024) のバケットに入る
+        assertEquals(1023, histogram.getPercentile(50));
+        assertEquals(1023, histogram.getPercentile(99));
+        assertEquals(1_000_000, histogram.getPercentile(100));
+    }
+
+    @Test
+    void testMerge() {
+        final LatencyHistogram first = new LatencyHistogram();
+        first.record(0);
+        first.record(10);
+        final LatencyHistogram second = LatencyHistogram.of(first.getCounts(), first.getMax());
+        second.record(5000);
+
+        first.merge(second);
+        assertEquals(5, first.getCount());
+        assertEquals(5000, first.getMax());
+        assertEquals(0, first.getPercentile(20));
+        assertEquals(15, first.getPercentile(60));
+    }
+}
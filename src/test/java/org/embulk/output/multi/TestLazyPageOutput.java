@@ -0,0 +1,115 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Page;
+import org.embulk.spi.TransactionalPageOutput;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestLazyPageOutput {
+    @Test
+    void testWithoutPages() {
+        final List<RecordingOutput> opened = new ArrayList<>();
+        final LazyPageOutput output = new LazyPageOutput(() -> {
+            final RecordingOutput recording = new RecordingOutput();
+            opened.add(recording);
+            return recording;
+        });
+        // ページがなければ出力は開かれず、空のタスクレポートでコミットされること
+        output.finish();
+        final TaskReport report = output.commit();
+        assertNotNull(report);
+        assertTrue(report.isEmpty());
+        output.close();
+        assertTrue(opened.isEmpty());
+    }
+
+    @Test
+    void testAbortWithoutPages() {
+        final List<RecordingOutput> opened = new ArrayList<>();
+        final LazyPageOutput output = new LazyPageOutput(() -> {
+            final RecordingOutput recording = new RecordingOutput();
+            opened.add(recording);
+            return recording;
+        });
+        // 開かれていなければabortとcloseは何もしないこと
+        output.abort();
+        output.close();
+        assertTrue(opened.isEmpty());
+    }
+
+    @Test
+    void testOpenOnFirstPage() {
+        final List<RecordingOutput> opened = new ArrayList<>();
+        final LazyPageOutput output = new LazyPageOutput(() -> {
+            final RecordingOutput recording = new RecordingOutput();
+            opened.add(recording);
+            return recording;
+        });
+        output.add(page());
+        output.add(page());
+        output.finish();
+        final TaskReport report = output.commit();
+        output.close();
+
+        // 最初のページで1度だけ開かれ、以降の呼び出しはその出力に渡ること
+        assertEquals(1, opened.size());
+        assertEquals(2, opened.get(0).pages);
+        assertTrue(opened.get(0).finished);
+        assertTrue(opened.get(0).closed);
+        assertEquals(2L, (long) report.get(Long.class, "pages"));
+    }
+
+    @Test
+    void testOpenFailure() {
+        final LazyPageOutput output = new LazyPageOutput(() -> {
+            throw new IllegalStateException("Failed to open");
+        });
+        // 開けなかった出力の失敗はaddから伝わり、abortとcloseは何もしないこと
+        assertThrows(IllegalStateException.class, () -> output.add(page()));
+        output.abort();
+        output.close();
+    }
+
+    private static Page page() {
+        final byte[] bytes = new byte[8];
+        return Page.wrap(Buffer.wrap(bytes, 0, bytes.length));
+    }
+
+    private static class RecordingOutput implements TransactionalPageOutput {
+        private long pages;
+        private boolean finished;
+        private boolean closed;
+
+        @Override
+        public void add(Page page) {
+            pages++;
+            page.release();
+        }
+
+        @Override
+        public void finish() {
+            finished = true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public TaskReport commit() {
+            return Exec.newTaskReport().set("pages", pages);
+        }
+    }
+}
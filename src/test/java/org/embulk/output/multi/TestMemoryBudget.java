@@ -0,0 +1,70 @@
+package org.embulk.output.multi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestMemoryBudget {
+    @Test
+    void testReserveAndFree() {
+        final MemoryBudget budget = MemoryBudget.acquire("test/reserve", 1024 * 1024);
+        try {
+            assertEquals(0, budget.reserve(512 * 1024));
+            assertEquals(0, budget.reserve(512 * 1024));
+            assertEquals(1024 * 1024, budget.getInflightBytes());
+            assertEquals(2, budget.getInflightPages());
+            budget.free(512 * 1024);
+            budget.free(512 * 1024);
+            assertEquals(0, budget.getInflightBytes());
+            assertEquals(0, budget.getInflightPages());
+        } finally {
+            budget.release();
+        }
+    }
+
+    @Test
+    void testWaitsForCredit() throws Exception {
+        final MemoryBudget budget = MemoryBudget.acquire("test/wait", 1024 * 1024);
+        try {
+            budget.reserve(1024 * 1024);
+            // 予算を使い切っている間は解放されるまで待つこと
+            final CompletableFuture<Long> waiting = CompletableFuture.supplyAsync(() -> budget.reserve(1024));
+            Thread.sleep(100);
+            assertFalse(waiting.isDone());
+            budget.free(1024 * 1024);
+            assertTrue(waiting.get(10, TimeUnit.SECONDS) > 0);
+            budget.free(1024);
+        } finally {
+            budget.release();
+        }
+    }
+
+    @Test
+    void testPageLargerThanBudget() throws Exception {
+        // 予算より大きいページも予算全体を使って通ること
+        final MemoryBudget budget = MemoryBudget.acquire("test/large", 1024 * 1024);
+        try {
+            assertEquals(0, budget.reserve(8 * 1024 * 1024));
+            budget.free(8 * 1024 * 1024);
+            assertEquals(0, budget.reserve(1024 * 1024));
+            budget.free(1024 * 1024);
+        } finally {
+            budget.release();
+        }
+    }
+
+    @Test
+    void testSharedByKey() {
+        final MemoryBudget first = MemoryBudget.acquire("test/shared", 1024 * 1024);
+        final MemoryBudget second = MemoryBudget.acquire("test/shared", 1024 * 1024);
+        try {
+            assertSame(first, second);
+        } finally {
+            first.release();
+            second.release();
+        }
+    }
+}
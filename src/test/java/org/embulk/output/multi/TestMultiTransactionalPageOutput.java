@@ -0,0 +1,265 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Exec;
+import org.embulk.spi.OutputPlugin;
+import org.embulk.spi.Page;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalPageOutput;
+import org.embulk.spi.type.Types;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestMultiTransactionalPageOutput {
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+    private static final Schema SCHEMA = Schema.builder().add("id", Types.LONG).build();
+
+    @Test
+    void testAbortOnlyUncommittedOutputs() {
+        final RecordingPlugin first = new RecordingPlugin(false);
+        final RecordingPlugin failing = new RecordingPlugin(true);
+        final RecordingPlugin third = new RecordingPlugin(false);
+        final MultiTransactionalPageOutput output = open(1,
+                delegate("file_0", 0, true, first), delegate("file_1", 1, true, failing), delegate("file_2", 2, true, third));
+        output.finish();
+        // 1つのoutputのcommitが失敗するとタスクが失敗し、abortはcommitしていないoutputにだけ渡ること
+        assertThrows(RuntimeException.class, output::commit);
+        output.abort();
+        output.close();
+
+        assertTrue(first.output.committed);
+        assertFalse(first.output.aborted);
+        assertTrue(third.output.committed);
+        assertFalse(third.output.aborted);
+        assertFalse(failing.output.committed);
+        assertTrue(failing.output.aborted);
+        for (RecordingPlugin plugin : Arrays.asList(first, failing, third)) {
+            assertTrue(plugin.output.closed);
+        }
+    }
+
+    @Test
+    void testDetachOptionalOnCommit() {
+        final RecordingPlugin required = new RecordingPlugin(false);
+        final RecordingPlugin optional = new RecordingPlugin(true);
+        final MultiTransactionalPageOutput output = open(1,
+                delegate("file_0", 0, true, required), delegate("file_1", 1, false, optional));
+        output.finish();
+        // 任意のoutputのcommitが失敗しても外れるだけで、外れたoutputだけがabortされること
+        final TaskReport report = output.commit();
+        assertNotNull(report);
+        output.close();
+
+        assertTrue(required.output.committed);
+        assertFalse(required.output.aborted);
+        assertTrue(required.output.closed);
+        assertFalse(optional.output.committed);
+        assertTrue(optional.output.aborted);
+        assertTrue(optional.output.closed);
+    }
+
+    @Test
+    void testMinSuccessAfterCommit() {
+        final RecordingPlugin required = new RecordingPlugin(false);
+        final RecordingPlugin optional = new RecordingPlugin(true);
+        final MultiTransactionalPageOutput output = open(2,
+                delegate("file_0", 0, true, required), delegate("file_1", 1, false, optional));
+        output.finish();
+        // min_successを割るとタスクは失敗するが、commit済みのoutputはabortされないこと
+        assertThrows(RuntimeException.class, output::commit);
+        output.abort();
+        output.close();
+
+        assertTrue(required.output.committed);
+        assertFalse(required.output.aborted);
+        assertTrue(optional.output.aborted);
+    }
+
+    @Test
+    void testLifecycleWithOneWorker() {
+        final RecordingPlugin[] plugins = {new RecordingPlugin(false), new RecordingPlugin(false), new RecordingPlugin(false)};
+        for (RecordingPlugin plugin : plugins) {
+            plugin.output.addMillis = 20;
+        }
+        // ワーカーが1つでも、finishが同じプールのワーカーを待って止まらないこと
+        final MultiTransactionalPageOutput output = open(1, true, 1,
+                delegate("file_0", 0, true, plugins[0]), delegate("file_1", 1, true, plugins[1]), delegate("file_2", 2, true, plugins[2]));
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            for (int i = 0; i < 5; i++) {
+                output.add(page());
+            }
+            output.finish();
+            output.commit();
+            output.close();
+        });
+        for (RecordingPlugin plugin : plugins) {
+            assertEquals(5, plugin.output.pages);
+            assertTrue(plugin.output.committed);
+        }
+    }
+
+    @Test
+    void testCloseOpenedOutputsOnOpenFailure() {
+        final RecordingPlugin first = new RecordingPlugin(false);
+        final RecordingPlugin failing = new RecordingPlugin(false);
+        failing.failOnOpen = true;
+        // 必須のoutputが開けなければ、先に開いたoutputはabortしてcloseされること
+        assertThrows(RuntimeException.class, () -> open(1,
+                delegate("file_0", 0, true, first), delegate("file_1", 1, true, failing)));
+
+        assertTrue(first.output.aborted);
+        assertTrue(first.output.closed);
+        assertFalse(failing.output.closed);
+    }
+
+    @Test
+    void testCloseOpenedOutputsOnMinSuccess() {
+        final RecordingPlugin first = new RecordingPlugin(false);
+        final RecordingPlugin failing = new RecordingPlugin(false);
+        failing.failOnOpen = true;
+        // 任意のoutputが開けずにmin_successを割った場合も、開いたoutputはcloseされること
+        assertThrows(RuntimeException.class, () -> open(2,
+                delegate("file_0", 0, true, first), delegate("file_1", 1, false, failing)));
+
+        assertTrue(first.output.aborted);
+        assertTrue(first.output.closed);
+    }
+
+    @Test
+    void testReleaseTokenBucketOnOpenFailure() {
+        final RecordingPlugin failing = new RecordingPlugin(false);
+        failing.failOnOpen = true;
+        final TokenBucket held = TokenBucket.acquire("test/file_0", 10, 0);
+        // outputが開けなければ、先に取得した共有のトークンバケットの参照は返されること
+        assertThrows(RuntimeException.class, () -> open(1, delegate("file_0", 0,
+                CONFIG_MAPPER_FACTORY.newConfigSource().set("required", true).set("max_rows_per_second", 10), failing)));
+        held.release();
+
+        final TokenBucket next = TokenBucket.acquire("test/file_0", 10, 0);
+        try {
+            assertNotSame(held, next);
+        } finally {
+            next.release();
+        }
+    }
+
+    private static MultiTransactionalPageOutput open(int minSuccess, OutputPluginDelegate... delegates) {
+        return open(minSuccess, false, 4, delegates);
+    }
+
+    private static MultiTransactionalPageOutput open(int minSuccess, boolean parallel, int maxThreads, OutputPluginDelegate... delegates) {
+        final List<ConfigSource> outputs = new ArrayList<>();
+        for (int i = 0; i < delegates.length; i++) {
+            outputs.add(CONFIG_MAPPER_FACTORY.newConfigSource().set("type", "file"));
+        }
+        final MultiOutputPlugin.PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(
+                CONFIG_MAPPER_FACTORY.newConfigSource().set("outputs", outputs).set("min_success", minSuccess).set("parallel", parallel),
+                MultiOutputPlugin.PluginTask.class);
+        task.setJobId("test");
+        return MultiTransactionalPageOutput.open(task, SCHEMA, 0, Arrays.asList(delegates), SharedExecutor.acquire(maxThreads, false));
+    }
+
+    private static Page page() {
+        final byte[] bytes = new byte[8];
+        return Page.wrap(Buffer.wrap(bytes, 0, bytes.length));
+    }
+
+    private static OutputPluginDelegate delegate(String tag, int index, boolean required, OutputPlugin plugin) {
+        return delegate(tag, index, CONFIG_MAPPER_FACTORY.newConfigSource().set("required", required), plugin);
+    }
+
+    private static OutputPluginDelegate delegate(String tag, int index, ConfigSource config, OutputPlugin plugin) {
+        return new OutputPluginDelegate(tag, index, plugin, config,
+                CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, MultiOutputPlugin.OutputTask.class), Exec.newTaskSource());
+    }
+
+    private static class RecordingPlugin implements OutputPlugin {
+        private final RecordingOutput output;
+        private boolean failOnOpen;
+
+        private RecordingPlugin(boolean failOnCommit) {
+            this.output = new RecordingOutput(failOnCommit);
+        }
+
+        @Override
+        public ConfigDiff transaction(ConfigSource config, Schema schema, int taskCount, OutputPlugin.Control control) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ConfigDiff resume(TaskSource taskSource, Schema schema, int taskCount, OutputPlugin.Control control) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void cleanup(TaskSource taskSource, Schema schema, int taskCount, List<TaskReport> successTaskReports) {
+        }
+
+        @Override
+        public TransactionalPageOutput open(TaskSource taskSource, Schema schema, int taskIndex) {
+            if (failOnOpen) {
+                throw new RuntimeException("open failed");
+            }
+            return output;
+        }
+    }
+
+    private static class RecordingOutput implements TransactionalPageOutput {
+        private final boolean failOnCommit;
+        private long addMillis;
+        private volatile int pages;
+        private volatile boolean closed;
+        private volatile boolean aborted;
+        private volatile boolean committed;
+
+        private RecordingOutput(boolean failOnCommit) {
+            this.failOnCommit = failOnCommit;
+        }
+
+        @Override
+        public void add(Page page) {
+            try {
+                Thread.sleep(addMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            pages++;
+            page.release();
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public TaskReport commit() {
+            if (failOnCommit) {
+                throw new RuntimeException("commit failed");
+            }
+            committed = true;
+            return Exec.newTaskReport();
+        }
+    }
+}
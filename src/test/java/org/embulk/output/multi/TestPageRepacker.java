@@ -0,0 +1,166 @@
+package org.embulk.output.multi;
+
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestPageRepacker {
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+    private static final Schema SCHEMA = Schema.builder().add("id", Types.LONG).build();
+    // ページヘッダ(4) + レコードサイズ(4) + nullビット(1) + long(8)
+    private static final int PAGE_HEADER_SIZE = 4;
+    private static final int RECORD_SIZE = 13;
+
+    @Test
+    void testMaxRows() {
+        final List<Integer> records = new ArrayList<>();
+        final PageRepacker repacker = new PageRepacker(projection(SCHEMA), new FixedBufferAllocator(1024), 3, page -> {
+            records.add(OutputMetrics.recordCount(page.buffer()));
+            page.release();
+        });
+        repack(repacker, 7);
+
+        // coalesce_rowsごとにページが出力され、残りはfinishで出力されること
+        assertEquals(Arrays.asList(3, 3, 1), records);
+    }
+
+    @Test
+    void testMaxRowsAfterFullBuffer() {
+        final List<Integer> records = new ArrayList<>();
+        // 2レコードしか入らないバッファでは、PageBuilderが自分でページを出力する
+        final PageRepacker repacker = new PageRepacker(projection(SCHEMA), new FixedBufferAllocator(PAGE_HEADER_SIZE + RECORD_SIZE * 2), 3, page -> {
+            records.add(OutputMetrics.recordCount(page.buffer()));
+            page.release();
+        });
+        repack(repacker, 6);
+
+        // 行数は実際に出力したページごとに数えられ、半端なページが出力されないこと
+        assertEquals(Arrays.asList(2, 2, 2), records);
+    }
+
+    @Test
+    void testCoalesce() {
+        final Schema schema = Schema.builder().add("name", Types.STRING).add("id", Types.LONG).build();
+        // 1ページ2レコードずつの入力
+        final List<Page> input = new ArrayList<>();
+        try (PageBuilder builder = Exec.getPageBuilder(new FixedBufferAllocator(PAGE_HEADER_SIZE + 17 * 2), schema, collect(input))) {
+            for (int i = 0; i < 6; i++) {
+                if (i == 3) {
+                    builder.setNull(schema.getColumn(0));
+                } else {
+                    builder.setString(schema.getColumn(0), "name" + i);
+                }
+                builder.setLong(schema.getColumn(1), i);
+                builder.addRecord();
+            }
+            builder.finish();
+        }
+        assertEquals(3, input.size());
+
+        final List<Page> output = new ArrayList<>();
+        final PageRepacker repacker = new PageRepacker(projection(schema), new FixedBufferAllocator(1024), Long.MAX_VALUE, output::add);
+        try (PageReader reader = Exec.getPageReader(schema)) {
+            for (Page page : input) {
+                reader.setPage(page);
+                while (reader.nextRecord()) {
+                    repacker.addRow(reader);
+                }
+            }
+        }
+        repacker.finish();
+        repacker.close();
+
+        // 1ページにまとまり、PageReaderで読み戻した値が元と同じであること
+        assertEquals(1, output.size());
+        try (PageReader reader = Exec.getPageReader(schema)) {
+            reader.setPage(output.get(0));
+            for (int i = 0; i < 6; i++) {
+                assertTrue(reader.nextRecord());
+                if (i == 3) {
+                    assertTrue(reader.isNull(schema.getColumn(0)));
+                } else {
+                    assertEquals("name" + i, reader.getString(schema.getColumn(0)));
+                }
+                assertEquals(i, reader.getLong(schema.getColumn(1)));
+            }
+            assertFalse(reader.nextRecord());
+        }
+    }
+
+    private static void repack(PageRepacker repacker, int rows) {
+        final List<Page> pages = new ArrayList<>();
+        try (PageBuilder builder = Exec.getPageBuilder(new FixedBufferAllocator(1024), SCHEMA, collect(pages))) {
+            for (int i = 0; i < rows; i++) {
+                builder.setLong(SCHEMA.getColumn(0), i);
+                builder.addRecord();
+            }
+            builder.finish();
+        }
+        try (PageReader reader = Exec.getPageReader(SCHEMA)) {
+            long expected = 0;
+            for (Page page : pages) {
+                reader.setPage(page);
+                while (reader.nextRecord()) {
+                    assertEquals(expected++, reader.getLong(SCHEMA.getColumn(0)));
+                    repacker.addRow(reader);
+                }
+            }
+        }
+        repacker.finish();
+        repacker.close();
+    }
+
+    private static PageOutput collect(List<Page> pages) {
+        return new PageOutput() {
+            @Override
+            public void add(Page page) {
+                pages.add(page);
+            }
+
+            @Override
+            public void finish() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static ColumnProjection projection(Schema schema) {
+        return ColumnProjection.of(CONFIG_MAPPER_FACTORY.createConfigMapper().map(
+                CONFIG_MAPPER_FACTORY.newConfigSource(), MultiOutputPlugin.OutputTask.class), schema);
+    }
+
+    private static class FixedBufferAllocator implements BufferAllocator {
+        private final int pageSize;
+
+        private FixedBufferAllocator(int pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public Buffer allocate() {
+            return allocate(pageSize);
+        }
+
+        @Override
+        public Buffer allocate(int minimumCapacity) {
+            return Buffer.wrap(new byte[Math.max(minimumCapacity, pageSize)]);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.embulk.output.multi;
+
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Page;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.msgpack.value.ImmutableValue;
+import org.msgpack.value.ValueFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestPageSpillFile {
+    @TempDir
+    Path directory;
+
+    @Test
+    void testRoundTrip() throws IOException {
+        final byte[] bytes = {1, 2, 3, 4, 5, 6, 7, 8};
+        final List<String> strings = Arrays.asList("foo", "日本語", "");
+        final List<ImmutableValue> values = Arrays.asList(
+                ValueFactory.newString("bar"),
+                ValueFactory.newMap(ValueFactory.newString("key"), ValueFactory.newArray(ValueFactory.newInteger(1), ValueFactory.newInteger(2))));
+        try (PageSpillFile spillFile = new PageSpillFile(directory, "test")) {
+            final PageSpillFile.Entry first = spillFile.write(page(bytes, strings, values));
+            final PageSpillFile.Entry second = spillFile.write(page(new byte[0], new ArrayList<>(), new ArrayList<>()));
+            assertEquals(2, spillFile.getSpilledPages());
+
+            // ページの中身と文字列・JSONの参照が書いた通りに読めること
+            final Page read = spillFile.read(first);
+            assertEquals(bytes.length, read.buffer().limit());
+            final byte[] readBytes = new byte[bytes.length];
+            read.buffer().getBytes(0, readBytes, 0, bytes.length);
+            assertArrayEquals(bytes, readBytes);
+            assertEquals(strings, read.getStringReferences());
+            assertEquals(values, read.getValueReferences());
+
+            final Page empty = spillFile.read(second);
+            assertEquals(0, empty.buffer().limit());
+            assertTrue(empty.getStringReferences().isEmpty());
+            assertTrue(empty.getValueReferences().isEmpty());
+        }
+        // closeで全てのファイルが消えること
+        assertEquals(0, spillFiles());
+    }
+
+    @Test
+    void testSegmentRollover() throws IOException {
+        // 1MBのページは63ページまで64MBのセグメントに収まり、64ページ目で次のセグメントに移ること
+        final byte[] bytes = new byte[1024 * 1024];
+        final List<PageSpillFile.Entry> entries = new ArrayList<>();
+        try (PageSpillFile spillFile = new PageSpillFile(directory, "test")) {
+            for (int i = 0; i < 63; i++) {
+                entries.add(spillFile.write(page(bytes, new ArrayList<>(), new ArrayList<>())));
+            }
+            assertEquals(1, spillFiles());
+            entries.add(spillFile.write(page(bytes, new ArrayList<>(), new ArrayList<>())));
+            assertEquals(2, spillFiles());
+
+            // 読み終えたセグメントは書き込み中でなければすぐに消えること
+            for (int i = 0; i < 62; i++) {
+                spillFile.read(entries.get(i));
+            }
+            assertEquals(2, spillFiles());
+            spillFile.read(entries.get(62));
+            assertEquals(1, spillFiles());
+            // 書き込み中のセグメントは読み終えても残ること
+            spillFile.read(entries.get(63));
+            assertEquals(1, spillFiles());
+        }
+        assertEquals(0, spillFiles());
+    }
+
+    @Test
+    void testDeleteDrainedSegments() throws IOException {
+        final PageSpillFile spillFile = new PageSpillFile(directory, "test", 64);
+        final PageSpillFile.Entry first = spillFile.write(page(new byte[40], new ArrayList<>(), new ArrayList<>()));
+        // セグメントより大きなページは1ページだけのセグメントになること
+        final PageSpillFile.Entry large = spillFile.write(page(new byte[100], new ArrayList<>(), new ArrayList<>()));
+        spillFile.write(page(new byte[40], new ArrayList<>(), new ArrayList<>()));
+        assertEquals(3, spillFiles());
+
+        // 読む順序に関わらず、封をされ読み終えたセグメントが消えること
+        assertEquals(100, spillFile.read(large).buffer().limit());
+        assertEquals(2, spillFiles());
+        spillFile.read(first);
+        assertEquals(1, spillFiles());
+
+        // 読まれていないページが残っていてもcloseで消えること
+        spillFile.close();
+        assertEquals(0, spillFiles());
+        assertThrows(IllegalStateException.class, () -> spillFile.read(first));
+        assertThrows(IllegalStateException.class, () -> spillFile.write(page(new byte[8], new ArrayList<>(), new ArrayList<>())));
+    }
+
+    private long spillFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("test-")).count();
+        }
+    }
+
+    private static Page page(byte[] bytes, List<String> strings, List<ImmutableValue> values) {
+        final Page page = Page.wrap(Buffer.wrap(bytes, 0, bytes.length));
+        page.setStringReferences(strings);
+        page.setValueReferences(values);
+        return page;
+    }
+}
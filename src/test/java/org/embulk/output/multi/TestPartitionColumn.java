@@ -0,0 +1,79 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestPartitionColumn {
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+
+    private Schema schema;
+
+    @BeforeEach
+    void setUp() {
+        schema = Schema.builder()
+                .add("status", Types.STRING)
+                .add("user_id", Types.LONG)
+                .add("registration_date", Types.TIMESTAMP)
+                .add("payload", Types.JSON)
+                .build();
+    }
+
+    @Test
+    void testValidColumns() {
+        assertNotNull(PartitionColumn.of(partitionBy(CONFIG_MAPPER_FACTORY.newConfigSource().set("column", "status")), schema));
+        assertNotNull(PartitionColumn.of(partitionBy(CONFIG_MAPPER_FACTORY.newConfigSource().set("column", "user_id")), schema));
+        // タイムスタンプはformatとtime_zoneで日付などに丸めて使えること
+        assertNotNull(PartitionColumn.of(partitionBy(CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("column", "registration_date")
+                .set("format", "%Y%m")
+                .set("time_zone", "Asia/Tokyo")), schema));
+    }
+
+    @Test
+    void testInvalidPartitionBy() {
+        assertThrows(ConfigException.class, () -> PartitionColumn.of(partitionBy(CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("column", "unknown")), schema));
+        // jsonの列では分割できないこと
+        assertThrows(ConfigException.class, () -> PartitionColumn.of(partitionBy(CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("column", "payload")), schema));
+        assertThrows(ConfigException.class, () -> PartitionColumn.of(partitionBy(CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("column", "status")
+                .set("max_open", 0)), schema));
+        // ジョブ全体のパーティション数の上限はタスクごとの上限以上であること
+        assertThrows(ConfigException.class, () -> PartitionColumn.of(partitionBy(CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("column", "status")
+                .set("max_open", 8)
+                .set("max_partitions", 4)), schema));
+    }
+
+    @Test
+    void testSanitize() {
+        assertEquals("2024-01-31", PartitionColumn.sanitize("2024-01-31"));
+        assertEquals("active_user.v2", PartitionColumn.sanitize("active_user.v2"));
+        // 区切り文字や引用符、非ASCII文字はUTF-8でパーセントエンコードされること
+        assertEquals("..%2F..%2Fetc", PartitionColumn.sanitize("../../etc"));
+        assertEquals("a%20b%27%3B", PartitionColumn.sanitize("a b';"));
+        assertEquals("%E6%9D%B1%E4%BA%AC", PartitionColumn.sanitize("東京"));
+        assertEquals("100%25", PartitionColumn.sanitize("100%"));
+        // 文字列の"null"はnull値のパーティションと区別されること
+        assertNotEquals(PartitionColumn.NULL_PARTITION, PartitionColumn.sanitize("null"));
+        assertEquals("%6Eull", PartitionColumn.sanitize("null"));
+        assertEquals("nullable", PartitionColumn.sanitize("nullable"));
+        // 空文字やディレクトリそのものを指す値は拒否されること
+        assertThrows(DataException.class, () -> PartitionColumn.sanitize(""));
+        assertThrows(DataException.class, () -> PartitionColumn.sanitize("."));
+        assertThrows(DataException.class, () -> PartitionColumn.sanitize(".."));
+    }
+
+    private static MultiOutputPlugin.PartitionTask partitionBy(ConfigSource config) {
+        return CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, MultiOutputPlugin.PartitionTask.class);
+    }
+}
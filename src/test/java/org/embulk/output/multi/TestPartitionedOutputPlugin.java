@@ -0,0 +1,171 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Exec;
+import org.embulk.spi.OutputPlugin;
+import org.embulk.spi.Page;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalPageOutput;
+import org.embulk.spi.type.Types;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestPartitionedOutputPlugin {
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+
+    private Schema schema;
+    private RecordingPlugin recording;
+
+    @BeforeEach
+    void setUp() {
+        schema = Schema.builder().add("status", Types.STRING).build();
+        recording = new RecordingPlugin();
+    }
+
+    @Test
+    void testReopenPartitions() {
+        final PartitionedOutputPlugin plugin = plugin(1, 16);
+        final ConfigDiff configDiff = plugin.transaction(config(), schema, 1, taskSource -> {
+            // max_open: 1で2つの値が交互に現れ、タスク数を超えて何度もパーティションを開き直すこと
+            for (int i = 0; i < 20; i++) {
+                final TransactionalPageOutput output = plugin.join(taskSource, i % 2 == 0 ? "a" : "b", 0);
+                output.add(page());
+                output.finish();
+                output.close();
+            }
+            return Collections.singletonList(Exec.newTaskReport());
+        });
+
+        // パーティションごとに1つのwriterが1度だけ開かれ、全ての行を受け取ってコミットされること
+        assertEquals(2, recording.outputs.size());
+        for (RecordingOutput output : recording.outputs) {
+            assertEquals(0, output.taskIndex);
+            assertEquals(10, output.pages);
+            assertTrue(output.committed);
+            assertTrue(output.closed);
+        }
+        assertEquals(2, recording.paths.size());
+        assertTrue(recording.paths.contains("/data/a/part"));
+        assertTrue(recording.paths.contains("/data/b/part"));
+        assertNotNull(configDiff);
+    }
+
+    @Test
+    void testMaxPartitions() {
+        final PartitionedOutputPlugin plugin = plugin(1, 1);
+        // 上限を超える値が現れるとConfigExceptionで失敗し、開いたパーティションはabortされること
+        assertThrows(ConfigException.class, () -> plugin.transaction(config(), schema, 1, taskSource -> {
+            plugin.join(taskSource, "a", 0).add(page());
+            plugin.join(taskSource, "b", 0);
+            return Collections.singletonList(Exec.newTaskReport());
+        }));
+        assertEquals(1, recording.outputs.size());
+        assertTrue(recording.outputs.get(0).aborted);
+        assertFalse(recording.outputs.get(0).committed);
+    }
+
+    @Test
+    void testResume() {
+        assertThrows(ConfigException.class, () -> plugin(1, 16).resume(Exec.newTaskSource(), schema, 1,
+                taskSource -> Collections.emptyList()));
+    }
+
+    private PartitionedOutputPlugin plugin(int maxOpen, int maxPartitions) {
+        final MultiOutputPlugin.PartitionTask partitionTask = CONFIG_MAPPER_FACTORY.createConfigMapper().map(
+                CONFIG_MAPPER_FACTORY.newConfigSource()
+                        .set("column", "status")
+                        .set("max_open", maxOpen)
+                        .set("max_partitions", maxPartitions),
+                MultiOutputPlugin.PartitionTask.class);
+        return new PartitionedOutputPlugin(recording, partitionTask, 4 + maxPartitions, false, 4);
+    }
+
+    private static ConfigSource config() {
+        return CONFIG_MAPPER_FACTORY.newConfigSource().set("path_prefix", "/data/${partition}/part");
+    }
+
+    private static Page page() {
+        final byte[] bytes = new byte[8];
+        return Page.wrap(Buffer.wrap(bytes, 0, bytes.length));
+    }
+
+    private static class RecordingPlugin implements OutputPlugin {
+        private final List<String> paths = Collections.synchronizedList(new ArrayList<>());
+        private final List<RecordingOutput> outputs = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public ConfigDiff transaction(ConfigSource config, Schema schema, int taskCount, OutputPlugin.Control control) {
+            // パーティションのトランザクションはwriterの1タスクで動くこと
+            assertEquals(1, taskCount);
+            paths.add(config.get(String.class, "path_prefix"));
+            control.run(Exec.newTaskSource());
+            return Exec.newConfigDiff();
+        }
+
+        @Override
+        public ConfigDiff resume(TaskSource taskSource, Schema schema, int taskCount, OutputPlugin.Control control) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void cleanup(TaskSource taskSource, Schema schema, int taskCount, List<TaskReport> successTaskReports) {
+        }
+
+        @Override
+        public TransactionalPageOutput open(TaskSource taskSource, Schema schema, int taskIndex) {
+            final RecordingOutput output = new RecordingOutput(taskIndex);
+            outputs.add(output);
+            return output;
+        }
+    }
+
+    private static class RecordingOutput implements TransactionalPageOutput {
+        private final int taskIndex;
+        private volatile int pages;
+        private volatile boolean closed;
+        private volatile boolean aborted;
+        private volatile boolean committed;
+
+        private RecordingOutput(int taskIndex) {
+            this.taskIndex = taskIndex;
+        }
+
+        @Override
+        public void add(Page page) {
+            pages++;
+            page.release();
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public TaskReport commit() {
+            committed = true;
+            return Exec.newTaskReport();
+        }
+    }
+}
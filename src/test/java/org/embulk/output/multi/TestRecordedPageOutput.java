@@ -0,0 +1,77 @@
+package org.embulk.output.multi;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Page;
+import org.embulk.spi.TransactionalPageOutput;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestRecordedPageOutput {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testEvents() throws Exception {
+        final Path file = tempDir.resolve("events.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(OutputEvents.FinishEvent.class);
+            recording.enable(OutputEvents.CommitEvent.class);
+            recording.start();
+            final RecordedPageOutput output = new RecordedPageOutput(new NullPageOutput(), "file_1", 3);
+            output.finish();
+            output.commit();
+            recording.stop();
+            recording.dump(file);
+        }
+        final List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        final List<String> names = events.stream().map(event -> event.getEventType().getName()).collect(Collectors.toList());
+        assertEquals(List.of("org.embulk.output.multi.Finish", "org.embulk.output.multi.Commit"), names);
+        for (RecordedEvent event : events) {
+            assertEquals("file_1", event.getString("tag"));
+            assertEquals(3, event.getInt("taskIndex"));
+        }
+    }
+
+    @Test
+    void testWithoutRecording() {
+        // 記録中でなければイベントを作るだけで出力はそのまま呼ばれること
+        final NullPageOutput delegate = new NullPageOutput();
+        new RecordedPageOutput(delegate, "file_1", 0).finish();
+        assertTrue(delegate.finished);
+    }
+
+    private static class NullPageOutput implements TransactionalPageOutput {
+        private boolean finished;
+
+        @Override
+        public void add(Page page) {
+        }
+
+        @Override
+        public void finish() {
+            finished = true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public TaskReport commit() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestRowAggregator {
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+
+    private Schema schema;
+
+    @BeforeEach
+    void setUp() {
+        schema = Schema.builder()
+                .add("status", Types.STRING)
+                .add("user_id", Types.LONG)
+                .add("amount", Types.DOUBLE)
+                .add("created_at", Types.TIMESTAMP)
+                .add("payload", Types.JSON)
+                .build();
+    }
+
+    @Test
+    void testSchema() {
+        final Schema result = RowAggregator.schemaOf(aggregate(Collections.singletonList("status"),
+                Arrays.asList("count", "sum(user_id)", "sum(amount)", "max(created_at)", "avg(user_id)", "count(payload)")), schema);
+        // group_byの列の後に集計値の列が並ぶこと
+        assertEquals(Schema.builder()
+                .add("status", Types.STRING)
+                .add("count", Types.LONG)
+                .add("sum_user_id", Types.LONG)
+                .add("sum_amount", Types.DOUBLE)
+                .add("max_created_at", Types.TIMESTAMP)
+                .add("avg_user_id", Types.DOUBLE)
+                .add("count_payload", Types.LONG)
+                .build(), result);
+    }
+
+    @Test
+    void testDefaultMetrics() {
+        // metrics省略時は件数のみ、group_by省略時は全体で1行
+        final Schema result = RowAggregator.schemaOf(
+                CONFIG_MAPPER_FACTORY.createConfigMapper().map(CONFIG_MAPPER_FACTORY.newConfigSource(), MultiOutputPlugin.AggregateTask.class),
+                schema);
+        assertEquals(Schema.builder().add("count", Types.LONG).build(), result);
+    }
+
+    @Test
+    void testEmptyTask() {
+        // group_byなしでは行のないタスクでもcount = 0の1行を出力すること
+        final RowAggregator global = RowAggregator.of(aggregate(
+                Collections.emptyList(), Arrays.asList("count", "sum(amount)")), schema);
+        assertEquals(0, global.getGroups());
+        assertEquals(1, global.getRows());
+        // group_byありではグループがないので何も出力しないこと
+        final RowAggregator grouped = RowAggregator.of(aggregate(
+                Collections.singletonList("status"), Collections.singletonList("count")), schema);
+        assertEquals(0, grouped.getRows());
+    }
+
+    @Test
+    void testInvalidAggregate() {
+        assertThrows(ConfigException.class, () -> RowAggregator.of(aggregate(
+                Collections.singletonList("unknown"), Collections.singletonList("count")), schema));
+        assertThrows(ConfigException.class, () -> RowAggregator.of(aggregate(
+                Collections.singletonList("payload"), Collections.singletonList("count")), schema));
+        assertThrows(ConfigException.class, () -> RowAggregator.of(aggregate(
+                Collections.emptyList(), Collections.singletonList("median(amount)")), schema));
+        assertThrows(ConfigException.class, () -> RowAggregator.of(aggregate(
+                Collections.emptyList(), Collections.singletonList("sum(status)")), schema));
+        assertThrows(ConfigException.class, () -> RowAggregator.of(aggregate(
+                Collections.emptyList(), Collections.singletonList("sum")), schema));
+        assertThrows(ConfigException.class, () -> RowAggregator.of(aggregate(
+                Collections.emptyList(), Arrays.asList("count", "count")), schema));
+        assertThrows(ConfigException.class, () -> RowAggregator.of(aggregate(
+                Collections.emptyList(), Collections.emptyList()), schema));
+    }
+
+    private static MultiOutputPlugin.AggregateTask aggregate(List<String> groupBy, List<String> metrics) {
+        final ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("group_by", groupBy)
+                .set("metrics", metrics);
+        return CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, MultiOutputPlugin.AggregateTask.class);
+    }
+}
@@ -0,0 +1,56 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestRowRouter {
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+
+    private Schema schema;
+
+    @BeforeEach
+    void setUp() {
+        schema = Schema.builder()
+                .add("user_id", Types.LONG)
+                .add("username", Types.STRING)
+                .build();
+    }
+
+    @Test
+    void testBroadcast() {
+        // broadcastの場合はルーターを使わないこと
+        assertNull(RowRouter.of(routing(CONFIG_MAPPER_FACTORY.newConfigSource()), schema));
+    }
+
+    @Test
+    void testHash() {
+        assertNotNull(RowRouter.of(routing(CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("mode", "hash")
+                .set("keys", Arrays.asList("user_id", "username"))), schema));
+    }
+
+    @Test
+    void testInvalidRouting() {
+        assertThrows(ConfigException.class, () -> RowRouter.of(routing(CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("mode", "random")), schema));
+        assertThrows(ConfigException.class, () -> RowRouter.of(routing(CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("mode", "hash")), schema));
+        assertThrows(ConfigException.class, () -> RowRouter.of(routing(CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("mode", "hash")
+                .set("keys", Collections.singletonList("unknown"))), schema));
+    }
+
+    private static MultiOutputPlugin.RoutingTask routing(ConfigSource config) {
+        return CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, MultiOutputPlugin.RoutingTask.class);
+    }
+}
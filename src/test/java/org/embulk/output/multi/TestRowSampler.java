@@ -0,0 +1,64 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestRowSampler {
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+
+    @Test
+    void testEveryNth() {
+        final RowFilter filter = RowSampler.of(sample(CONFIG_MAPPER_FACTORY.newConfigSource().set("every_nth", 3)), 0);
+        final boolean[] expected = {false, false, true, false, false, true, false};
+        for (boolean selected : expected) {
+            assertEquals(selected, filter.test(null));
+        }
+    }
+
+    @Test
+    void testRateIsReproducible() {
+        // 同じseedとタスク番号なら同じ行が選ばれること
+        final ConfigSource config = CONFIG_MAPPER_FACTORY.newConfigSource().set("rate", 0.1).set("seed", 42);
+        final RowFilter first = RowSampler.of(sample(config), 3);
+        final RowFilter second = RowSampler.of(sample(config), 3);
+        final RowFilter otherTask = RowSampler.of(sample(config), 4);
+        int selected = 0;
+        boolean differs = false;
+        for (int i = 0; i < 100000; i++) {
+            final boolean result = first.test(null);
+            assertEquals(result, second.test(null));
+            differs |= result != otherTask.test(null);
+            if (result) {
+                selected++;
+            }
+        }
+        assertTrue(differs);
+        assertTrue(selected > 9000 && selected < 11000, "selected: " + selected);
+    }
+
+    @Test
+    void testRateOfOne() {
+        final RowFilter filter = RowSampler.of(sample(CONFIG_MAPPER_FACTORY.newConfigSource().set("rate", 1.0)), 0);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.test(null));
+        }
+    }
+
+    @Test
+    void testValidation() {
+        assertThrows(ConfigException.class, () -> RowSampler.validate(sample(CONFIG_MAPPER_FACTORY.newConfigSource())));
+        assertThrows(ConfigException.class, () -> RowSampler.validate(sample(CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("rate", 0.5).set("every_nth", 2))));
+        assertThrows(ConfigException.class, () -> RowSampler.validate(sample(CONFIG_MAPPER_FACTORY.newConfigSource().set("rate", 0))));
+        assertThrows(ConfigException.class, () -> RowSampler.validate(sample(CONFIG_MAPPER_FACTORY.newConfigSource().set("rate", 1.5))));
+        assertThrows(ConfigException.class, () -> RowSampler.validate(sample(CONFIG_MAPPER_FACTORY.newConfigSource().set("every_nth", 0))));
+    }
+
+    private static MultiOutputPlugin.SampleTask sample(ConfigSource config) {
+        return CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, MultiOutputPlugin.SampleTask.class);
+    }
+}
@@ -0,0 +1,54 @@
+package org.embulk.output.multi;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestSharedExecutor {
+    @Test
+    void testBlockingCallsDoNotStarveWorkers() {
+        // 2つのリースがそれぞれ上限を超える数のトランザクションを待たせても、ページのワーカーが動けること
+        try (SharedExecutor.Lease first = SharedExecutor.acquire(1, false);
+             SharedExecutor.Lease second = SharedExecutor.acquire(1, false)) {
+            final CountDownLatch done = new CountDownLatch(1);
+            final List<Future<?>> transactions = new ArrayList<>();
+            for (SharedExecutor.Lease lease : new SharedExecutor.Lease[] {first, second}) {
+                for (int i = 0; i < 4; i++) {
+                    transactions.add(lease.getBlockingExecutorService().submit(() -> {
+                        done.await();
+                        return null;
+                    }));
+                }
+            }
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                first.getExecutorService().submit(done::countDown).get();
+                for (Future<?> transaction : transactions) {
+                    transaction.get();
+                }
+            });
+        }
+    }
+
+    @Test
+    void testSharedByLeases() {
+        try (SharedExecutor.Lease first = SharedExecutor.acquire(1, false)) {
+            // 後のリースの仮想スレッド指定は既存のスレッドに合わせて無視されること (警告のみ)
+            try (SharedExecutor.Lease second = SharedExecutor.acquire(2, true)) {
+                assertSame(first.getExecutorService(), second.getExecutorService());
+                assertSame(first.getBlockingExecutorService(), second.getBlockingExecutorService());
+            }
+            assertFalse(first.getExecutorService().isShutdown());
+        }
+        // 最後のリースが閉じられると次のリースは新しいexecutorを使うこと
+        try (SharedExecutor.Lease lease = SharedExecutor.acquire(1, false)) {
+            assertFalse(lease.getExecutorService().isShutdown());
+            assertFalse(lease.getBlockingExecutorService().isShutdown());
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Exec;
+import org.embulk.spi.FileOutput;
+import org.embulk.spi.FileOutputPlugin;
+import org.embulk.spi.FormatterPlugin;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalFileOutput;
+import org.embulk.spi.TransactionalPageOutput;
+import org.embulk.spi.type.Types;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestTeeFileOutputPlugin {
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+
+    private Schema schema;
+    private RecordingFormatter formatter;
+    private List<RecordingFilePlugin> plugins;
+    private TeeFileOutputPlugin tee;
+
+    @BeforeEach
+    void setUp() {
+        schema = Schema.builder().add("line", Types.STRING).build();
+        formatter = new RecordingFormatter();
+        plugins = Arrays.asList(new RecordingFilePlugin("file_0"), new RecordingFilePlugin("file_1"), new RecordingFilePlugin("file_2"));
+        final List<ConfigSource> configs = new ArrayList<>();
+        for (int i = 0; i < plugins.size(); i++) {
+            configs.add(CONFIG_MAPPER_FACTORY.newConfigSource()
+                    .set("path_prefix", "/data/out_" + i)
+                    .set("formatter", CONFIG_MAPPER_FACTORY.newConfigSource().set("type", "csv")));
+        }
+        tee = new TeeFileOutputPlugin(Arrays.asList("file_0", "file_1", "file_2"),
+                new ArrayList<FileOutputPlugin>(plugins), configs, formatter);
+    }
+
+    @Test
+    void testFanOut() {
+        final ConfigDiff configDiff = tee.transaction(CONFIG_MAPPER_FACTORY.newConfigSource(), schema, 1, taskSource -> {
+            final TransactionalPageOutput output = tee.open(taskSource, schema, 0);
+            try {
+                output.add(page("a,b\n"));
+                output.add(page("c,d\n"));
+                output.finish();
+                return Collections.singletonList(output.commit());
+            } finally {
+                output.close();
+            }
+        });
+
+        // フォーマットは1度だけで、全てのメンバーが同じバイト列を受け取ること
+        assertEquals(2, formatter.formatted.size());
+        for (RecordingFilePlugin plugin : plugins) {
+            final RecordingFileOutput output = plugin.outputs.get(0);
+            assertEquals("a,b\nc,d\n", new String(output.bytes.toByteArray(), StandardCharsets.UTF_8));
+            assertEquals(2, output.files);
+            assertTrue(output.finished);
+            assertTrue(output.committed);
+            assertTrue(output.closed);
+        }
+        // 最後のメンバーだけがコピーではなく元のバッファを受け取ること
+        for (int i = 0; i < 2; i++) {
+            assertSame(formatter.formatted.get(i), plugins.get(2).outputs.get(0).buffers.get(i));
+            assertNotSame(formatter.formatted.get(i), plugins.get(0).outputs.get(0).buffers.get(i));
+            assertNotSame(formatter.formatted.get(i), plugins.get(1).outputs.get(0).buffers.get(i));
+        }
+
+        // 各メンバーのトランザクションはそれぞれのタスクレポートを受け取ること
+        for (RecordingFilePlugin plugin : plugins) {
+            assertEquals(1, plugin.reports.size());
+            assertEquals(plugin.tag, plugin.reports.get(0).get(String.class, "tag"));
+        }
+
+        // config diffはメンバーのタグごとに分けられること
+        final Map<String, ConfigDiff> memberConfigDiffs = tee.getMemberConfigDiffs(configDiff);
+        assertEquals(Arrays.asList("file_0", "file_1", "file_2"), new ArrayList<>(memberConfigDiffs.keySet()));
+        for (RecordingFilePlugin plugin : plugins) {
+            assertEquals(plugin.tag, memberConfigDiffs.get(plugin.tag).get(String.class, "last_tag"));
+        }
+    }
+
+    @Test
+    void testMemberFailure() {
+        plugins.get(1).failOnAdd = true;
+        assertThrows(IllegalStateException.class, () -> tee.transaction(CONFIG_MAPPER_FACTORY.newConfigSource(), schema, 1, taskSource -> {
+            final TransactionalPageOutput output = tee.open(taskSource, schema, 0);
+            try {
+                output.add(page("a,b\n"));
+                output.finish();
+                return Collections.singletonList(output.commit());
+            } catch (RuntimeException e) {
+                output.abort();
+                throw e;
+            } finally {
+                output.close();
+            }
+        }));
+
+        // 1つのメンバーの失敗で全メンバーがabortされ、どれもコミットされないこと
+        for (RecordingFilePlugin plugin : plugins) {
+            final RecordingFileOutput output = plugin.outputs.get(0);
+            assertTrue(output.aborted);
+            assertFalse(output.committed);
+            assertTrue(output.closed);
+            assertTrue(plugin.reports.isEmpty());
+        }
+    }
+
+    private static Page page(String text) {
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return Page.wrap(Buffer.wrap(bytes, 0, bytes.length));
+    }
+
+    /**
+     * 行を整形する代わりにページのバイト列を1ファイルとして書き出すフォーマッタ
+     */
+    private static class RecordingFormatter implements FormatterPlugin {
+        private final List<Buffer> formatted = new ArrayList<>();
+
+        @Override
+        public void transaction(ConfigSource config, Schema schema, FormatterPlugin.Control control) {
+            assertEquals("csv", config.get(String.class, "type"));
+            control.run(Exec.newTaskSource());
+        }
+
+        @Override
+        public PageOutput open(TaskSource taskSource, Schema schema, FileOutput output) {
+            return new PageOutput() {
+                @Override
+                public void add(Page page) {
+                    final Buffer buffer = Buffer.wrap(Arrays.copyOfRange(page.buffer().array(), page.buffer().offset(),
+                            page.buffer().offset() + page.buffer().limit()), 0, page.buffer().limit());
+                    page.release();
+                    formatted.add(buffer);
+                    output.nextFile();
+                    output.add(buffer);
+                }
+
+                @Override
+                public void finish() {
+                    output.finish();
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+
+    private static class RecordingFilePlugin implements FileOutputPlugin {
+        private final String tag;
+        private final List<RecordingFileOutput> outputs = new ArrayList<>();
+        private final List<TaskReport> reports = new ArrayList<>();
+        private boolean failOnAdd;
+
+        private RecordingFilePlugin(String tag) {
+            this.tag = tag;
+        }
+
+        @Override
+        public ConfigDiff transaction(ConfigSource config, int taskCount, FileOutputPlugin.Control control) {
+            reports.addAll(control.run(Exec.newTaskSource().set("tag", tag)));
+            return Exec.newConfigDiff().set("last_tag", tag);
+        }
+
+        @Override
+        public ConfigDiff resume(TaskSource taskSource, int taskCount, FileOutputPlugin.Control control) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void cleanup(TaskSource taskSource, int taskCount, List<TaskReport> successTaskReports) {
+        }
+
+        @Override
+        public TransactionalFileOutput open(TaskSource taskSource, int taskIndex) {
+            final RecordingFileOutput output = new RecordingFileOutput(taskSource.get(String.class, "tag"), failOnAdd);
+            outputs.add(output);
+            return output;
+        }
+    }
+
+    private static class RecordingFileOutput implements TransactionalFileOutput {
+        private final String tag;
+        private final boolean failOnAdd;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final List<Buffer> buffers = new ArrayList<>();
+        private int files;
+        private boolean finished;
+        private boolean closed;
+        private boolean aborted;
+        private boolean committed;
+
+        private RecordingFileOutput(String tag, boolean failOnAdd) {
+            this.tag = tag;
+            this.failOnAdd = failOnAdd;
+        }
+
+        @Override
+        public void nextFile() {
+            files++;
+        }
+
+        @Override
+        public void add(Buffer buffer) {
+            if (failOnAdd) {
+                throw new IllegalStateException("Failed to write " + tag);
+            }
+            buffers.add(buffer);
+            bytes.write(buffer.array(), buffer.offset(), buffer.limit());
+            buffer.release();
+        }
+
+        @Override
+        public void finish() {
+            finished = true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public TaskReport commit() {
+            committed = true;
+            return Exec.newTaskReport().set("tag", tag);
+        }
+    }
+}
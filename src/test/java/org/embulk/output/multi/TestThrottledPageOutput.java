@@ -0,0 +1,140 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Page;
+import org.embulk.spi.TransactionalPageOutput;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestThrottledPageOutput {
+    @TempDir
+    Path spillDirectory;
+
+    @Test
+    void testDoesNotDelaySibling() {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        // 1秒に8バイト (1ページ) しか書けない出力
+        final RecordingOutput throttled = new RecordingOutput();
+        final ThrottledPageOutput throttledOutput = new ThrottledPageOutput(throttled, TokenBucket.acquire("test/sibling", 0, 8), new OutputMetrics());
+        final AsyncPageOutput output = MultiTransactionalPageOutput.Delegate.asyncOutputOf(
+                throttledOutput, executor, 1, false, throttledOutput, 0, Optional.empty(), () -> new PageSpillFile(spillDirectory, "test"));
+        final RecordingOutput sibling = new RecordingOutput();
+        try {
+            // キューが1ページ分でも、スロットリングされた出力に引きずられず隣の出力へすぐに書けること
+            assertTimeoutPreemptively(Duration.ofSeconds(2), () -> {
+                for (int i = 0; i < 10; i++) {
+                    output.add(page());
+                    sibling.add(page());
+                }
+            });
+            assertEquals(10, sibling.pages);
+            assertTrue(throttled.pages < 10);
+        } finally {
+            output.abort();
+            output.close();
+            executor.shutdown();
+        }
+        assertTrue(throttled.aborted);
+        assertTrue(throttled.closed);
+    }
+
+    @Test
+    void testWithoutThrottle() {
+        // スロットリングもparallelもなければタスクのスレッドで書くこと
+        assertNull(MultiTransactionalPageOutput.Delegate.asyncOutputOf(new RecordingOutput(), Runnable::run, 1, false, null, 0,
+                Optional.empty(), () -> fail("spill file is not used")));
+    }
+
+    @Test
+    void testDoesNotHoldWorkerThread() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        // 1秒に16バイト (2ページ) しか書けない出力
+        final RecordingOutput throttled = new RecordingOutput();
+        final ThrottledPageOutput throttledOutput = new ThrottledPageOutput(throttled, TokenBucket.acquire("test/worker", 0, 16), new OutputMetrics());
+        final AsyncPageOutput output = MultiTransactionalPageOutput.Delegate.asyncOutputOf(
+                throttledOutput, executor, 1, false, throttledOutput, 0, Optional.empty(), () -> new PageSpillFile(spillDirectory, "test"));
+        try {
+            for (int i = 0; i < 4; i++) {
+                output.add(page());
+            }
+            // トークンを待つ間もプールのスレッドを塞がず、他の出力の処理が進むこと
+            assertTimeoutPreemptively(Duration.ofMillis(500), () -> executor.submit(() -> {}).get());
+            assertTrue(throttled.pages < 4);
+            // 待っている間もページは順に渡りきること
+            assertTimeoutPreemptively(Duration.ofSeconds(5), output::finish);
+            assertEquals(4, throttled.pages);
+        } finally {
+            output.close();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testCloseWithoutWaiting() {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        // 1秒に8バイト (1ページ) しか書けない出力
+        final RecordingOutput throttled = new RecordingOutput();
+        final ThrottledPageOutput throttledOutput = new ThrottledPageOutput(throttled, TokenBucket.acquire("test/close", 0, 8), new OutputMetrics());
+        final AsyncPageOutput output = MultiTransactionalPageOutput.Delegate.asyncOutputOf(
+                throttledOutput, executor, 1, false, throttledOutput, 0, Optional.empty(), () -> new PageSpillFile(spillDirectory, "test"));
+        try {
+            for (int i = 0; i < 10; i++) {
+                output.add(page());
+            }
+            // abortは残りのページのトークンを待たずに返ること
+            assertTimeoutPreemptively(Duration.ofSeconds(1), () -> {
+                output.abort();
+                output.close();
+            });
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(throttled.pages < 10);
+        assertTrue(throttled.closed);
+    }
+
+    private static Page page() {
+        final byte[] bytes = new byte[8];
+        return Page.wrap(Buffer.wrap(bytes, 0, bytes.length));
+    }
+
+    private static class RecordingOutput implements TransactionalPageOutput {
+        private volatile int pages;
+        private boolean closed;
+        private boolean aborted;
+
+        @Override
+        public void add(Page page) {
+            pages++;
+            page.release();
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public TaskReport commit() {
+            return null;
+        }
+    }
+}
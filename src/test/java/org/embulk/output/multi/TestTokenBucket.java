@@ -0,0 +1,43 @@
+package org.embulk.output.multi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestTokenBucket {
+    @Test
+    void testRowsPerSecond() {
+        final TokenBucket bucket = TokenBucket.acquire("test/rows", 10000, 0);
+        try {
+            // 最初の1秒分はすぐに通ること
+            assertEquals(0, bucket.reserve(10000, Long.MAX_VALUE));
+            // 超過分はレートに応じた待ち時間になること (1000行 = 約100ms)
+            final long waitNanos = bucket.reserve(1000, 0);
+            assertTrue(waitNanos > TimeUnit.MILLISECONDS.toNanos(50), "wait: " + waitNanos);
+            assertTrue(waitNanos <= TimeUnit.MILLISECONDS.toNanos(100), "wait: " + waitNanos);
+        } finally {
+            bucket.release();
+        }
+    }
+
+    @Test
+    void testSharedByKey() {
+        final TokenBucket first = TokenBucket.acquire("test/shared", 0, 1024);
+        final TokenBucket second = TokenBucket.acquire("test/shared", 0, 1024);
+        try {
+            assertSame(first, second);
+        } finally {
+            first.release();
+            second.release();
+        }
+        // 全ての参照が解放されたら新しいバケットになること
+        final TokenBucket third = TokenBucket.acquire("test/shared", 0, 1024);
+        try {
+            assertNotSame(first, third);
+        } finally {
+            third.release();
+        }
+    }
+}
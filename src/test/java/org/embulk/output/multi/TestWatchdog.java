@@ -0,0 +1,119 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Page;
+import org.embulk.spi.TransactionalPageOutput;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestWatchdog {
+    @Test
+    void testReturnsInTime() {
+        assertEquals("ok", Watchdog.call("test", 10, () -> "ok"));
+        // 0以下はタイムアウトなし
+        assertEquals("ok", Watchdog.call("test", 0, () -> "ok"));
+    }
+
+    @Test
+    void testTimeout() {
+        // 停止した呼び出しは割り込まれ、タイムアウトとして失敗すること
+        final RuntimeException e = assertThrows(RuntimeException.class, () -> Watchdog.run("#add of test_0 on index 0", 1, () -> {
+            try {
+                Thread.sleep(60_000);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(interrupted);
+            }
+        }));
+        assertTrue(e.getMessage().contains("#add of test_0 on index 0 timed out"), e.getMessage());
+        // 割り込み状態は呼び出し元に残らないこと
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    void testTimeoutWithoutError() {
+        // 割り込みを無視して正常に戻った場合もタイムアウトとすること
+        assertThrows(RuntimeException.class, () -> Watchdog.run("test", 1, () -> {
+            final long deadline = System.nanoTime() + 1_500_000_000L;
+            while (System.nanoTime() < deadline) {
+                Thread.onSpinWait();
+            }
+        }));
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    void testAbandonOutputIgnoringInterrupts() {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final StuckOutput stuck = new StuckOutput();
+        final AsyncPageOutput output = new AsyncPageOutput(new WatchedPageOutput(stuck, "test_0", 0, 1, 0),
+                executor, 1, null, Long.MAX_VALUE, 1);
+        try {
+            // 割り込みを無視して戻らない出力は待ち続けずに見捨て、失敗として扱うこと
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                output.add(page());
+                output.add(page());
+                assertThrows(RuntimeException.class, () -> output.add(page()));
+                assertThrows(RuntimeException.class, output::finish);
+                assertThrows(RuntimeException.class, output::commit);
+                output.abort();
+                output.close();
+            });
+            assertTrue(stuck.aborted);
+            assertTrue(stuck.closed);
+            assertFalse(Thread.currentThread().isInterrupted());
+        } finally {
+            stuck.release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    private static Page page() {
+        final byte[] bytes = new byte[8];
+        return Page.wrap(Buffer.wrap(bytes, 0, bytes.length));
+    }
+
+    private static class StuckOutput implements TransactionalPageOutput {
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile boolean closed;
+        private volatile boolean aborted;
+
+        @Override
+        public void add(Page page) {
+            while (true) {
+                try {
+                    release.await();
+                    return;
+                } catch (InterruptedException e) {
+                    // 割り込みを無視する
+                }
+            }
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public TaskReport commit() {
+            return null;
+        }
+    }
+}
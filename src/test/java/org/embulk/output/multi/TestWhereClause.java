@@ -0,0 +1,57 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestWhereClause {
+    private Schema schema;
+
+    @BeforeEach
+    void setUp() {
+        schema = Schema.builder()
+                .add("user_id", Types.LONG)
+                .add("status", Types.STRING)
+                .add("score", Types.DOUBLE)
+                .add("active", Types.BOOLEAN)
+                .add("registration_date", Types.TIMESTAMP)
+                .add("payload", Types.JSON)
+                .build();
+    }
+
+    @Test
+    void testValidExpressions() {
+        // サポートしている構文がすべてコンパイルできること
+        assertNotNull(WhereClause.compile("status == 'active'", schema));
+        assertNotNull(WhereClause.compile("user_id > 1000", schema));
+        assertNotNull(WhereClause.compile("user_id >= 10.5", schema));
+        assertNotNull(WhereClause.compile("score < -1.5e3", schema));
+        assertNotNull(WhereClause.compile("active = true", schema));
+        assertNotNull(WhereClause.compile("registration_date >= '2024-01-01'", schema));
+        assertNotNull(WhereClause.compile("registration_date < '2024-01-01 12:00:00'", schema));
+        assertNotNull(WhereClause.compile("status is not null and (user_id <> 1 or not score <= 0)", schema));
+        assertNotNull(WhereClause.compile("`status` != 'it''s' OR payload IS NULL", schema));
+        assertNotNull(WhereClause.compile("status == null", schema));
+    }
+
+    @Test
+    void testInvalidExpressions() {
+        // 不正な式は設定エラーになること
+        assertThrows(ConfigException.class, () -> WhereClause.compile("unknown == 1", schema));
+        assertThrows(ConfigException.class, () -> WhereClause.compile("status == 1", schema));
+        assertThrows(ConfigException.class, () -> WhereClause.compile("user_id > 'a'", schema));
+        assertThrows(ConfigException.class, () -> WhereClause.compile("active > true", schema));
+        assertThrows(ConfigException.class, () -> WhereClause.compile("payload == 'x'", schema));
+        assertThrows(ConfigException.class, () -> WhereClause.compile("registration_date > 'yesterday'", schema));
+        assertThrows(ConfigException.class, () -> WhereClause.compile("(user_id > 1", schema));
+        assertThrows(ConfigException.class, () -> WhereClause.compile("user_id > 1 status", schema));
+        assertThrows(ConfigException.class, () -> WhereClause.compile("status == 'active", schema));
+        assertThrows(ConfigException.class, () -> WhereClause.compile("user_id ! 1", schema));
+        // longの範囲を超える整数も設定エラーになること
+        assertThrows(ConfigException.class, () -> WhereClause.compile("user_id > 99999999999999999999", schema));
+    }
+}
@@ -0,0 +1,129 @@
+package org.embulk.output.multi;
+
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Page;
+import org.embulk.spi.TransactionalPageOutput;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestWriterPool {
+    private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
+
+    @Test
+    void testWriterCount() {
+        assertEquals(4, WriterPool.writerCount(outputTask(4), 10));
+        // タスク数より多いwriterは作らないこと
+        assertEquals(2, WriterPool.writerCount(outputTask(4), 2));
+        // writers省略時は入力のタスク数のまま
+        assertEquals(10, WriterPool.writerCount(outputTask(null), 10));
+    }
+
+    @Test
+    void testTasksShareWriters() {
+        final WriterPool pool = WriterPool.create("test/share", 2);
+        final List<RecordingOutput> outputs = new ArrayList<>();
+        for (int taskIndex = 0; taskIndex < 4; taskIndex++) {
+            final TransactionalPageOutput output = pool.join(taskIndex, writerIndex -> {
+                final RecordingOutput opened = new RecordingOutput(writerIndex);
+                outputs.add(opened);
+                return opened;
+            }, Runnable::run, 4);
+            output.add(page());
+            output.finish();
+            output.close();
+        }
+
+        // writerは最初のタスクで1度だけ開かれ、タスク番号をwriter数で割った余りのwriterにページが渡ること
+        assertEquals(2, outputs.size());
+        assertEquals(0, outputs.get(0).writerIndex);
+        assertEquals(1, outputs.get(1).writerIndex);
+        for (RecordingOutput output : outputs) {
+            assertEquals(2, output.pages);
+            assertFalse(output.committed);
+        }
+
+        assertEquals(2, pool.commit().size());
+        for (RecordingOutput output : outputs) {
+            assertTrue(output.finished);
+            assertTrue(output.committed);
+            assertTrue(output.closed);
+        }
+        // cleanup用のレポートは1度だけ取り出せること
+        assertTrue(WriterPool.takeReports("test/share").isPresent());
+        assertEquals(Optional.empty(), WriterPool.takeReports("test/share"));
+    }
+
+    @Test
+    void testAbort() {
+        final WriterPool pool = WriterPool.create("test/abort", 1);
+        final RecordingOutput opened = new RecordingOutput(0);
+        final TransactionalPageOutput output = pool.join(0, writerIndex -> opened, Runnable::run, 4);
+        output.add(page());
+        // タスクのabortではwriterはabortされず、トランザクションがまとめてabortすること
+        output.abort();
+        assertFalse(opened.aborted);
+
+        pool.abort();
+        assertTrue(opened.aborted);
+        assertTrue(opened.closed);
+        assertThrows(IllegalStateException.class, () -> WriterPool.get("test/abort"));
+        assertThrows(IllegalStateException.class, () -> pool.join(1, writerIndex -> new RecordingOutput(0), Runnable::run, 4));
+    }
+
+    private static MultiOutputPlugin.OutputTask outputTask(Integer writers) {
+        return CONFIG_MAPPER_FACTORY.createConfigMapper().map(
+                CONFIG_MAPPER_FACTORY.newConfigSource().set("writers", writers), MultiOutputPlugin.OutputTask.class);
+    }
+
+    private static Page page() {
+        final byte[] bytes = new byte[8];
+        return Page.wrap(Buffer.wrap(bytes, 0, bytes.length));
+    }
+
+    private static class RecordingOutput implements TransactionalPageOutput {
+        private final int writerIndex;
+        private int pages;
+        private boolean finished;
+        private boolean closed;
+        private boolean aborted;
+        private boolean committed;
+
+        private RecordingOutput(int writerIndex) {
+            this.writerIndex = writerIndex;
+        }
+
+        @Override
+        public void add(Page page) {
+            pages++;
+            page.release();
+        }
+
+        @Override
+        public void finish() {
+            finished = true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public TaskReport commit() {
+            committed = true;
+            return null;
+        }
+    }
+}